@@ -0,0 +1,109 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.lang.instrument.*;
+import java.lang.ref.*;
+import java.security.*;
+import java.util.*;
+
+import org.apache.bcel.Repository;
+import org.apache.bcel.util.ClassLoaderRepository;
+
+/**
+Agent injects classes as they are loaded, instead of rewriting jars ahead
+of time:
+
+<pre>
+java -javaagent:path/to/tact.jar=inline,loud -jar files.jar
+</pre>
+
+The options are the same as Main's flags, without the dashes, separated by
+commas. Classes from the bootstrap class loader, the Java platform, tact
+and BCEL are left alone. The classes an injected class refers to are
+looked up through the loader that is loading it.
+*/
+public class Agent{
+	private Agent(){}
+
+	private static final String[] skipped = {
+		"edu/unh/cs/tact/",
+		"org/apache/bcel/",
+		"java/",
+		"javax/",
+		"jdk/",
+		"sun/",
+		"com/sun/",
+	};
+
+	public static void premain(String args, Instrumentation inst){
+		String cacheDir = null;
+		if(args != null){
+			for(String opt : args.split(",")){
+				if(opt.equals("loud"))
+					Main.loud = true;
+				else if(opt.equals("inline"))
+					Main.inline = true;
+				else if(opt.matches("sample=[1-9][0-9]{0,8}"))
+					Main.sample = Integer.parseInt(opt.substring("sample=".length()));
+				else if(opt.startsWith("engine=") && Injector.ENGINES.containsKey(opt.substring("engine=".length())))
+					Main.engine = Injector.ENGINES.get(opt.substring("engine=".length()));
+				else if(opt.startsWith("cache="))
+					cacheDir = opt.substring("cache=".length());
+				else if(!opt.isEmpty())
+					System.err.printf("tact: I don't know the option \"%s\".\n", opt);
+			}
+		}
+		if(cacheDir != null){
+			try{
+				Main.cache = new InjectCache(new File(cacheDir), Main.config());
+			}catch(IOException e){
+				System.err.printf("tact: I failed to open the cache: %s\n", e);
+			}
+		}
+		inst.addTransformer(new Transformer());
+	}
+
+	private static class Transformer implements ClassFileTransformer{
+		/**
+		repos holds a BCEL repository for each loader, which caches the
+		classes looked up through it. They're soft, so that a loader that
+		is otherwise unreachable can be collected once memory is short.
+		*/
+		private final Map<ClassLoader, SoftReference<ClassLoaderRepository>> repos =
+			new WeakHashMap<ClassLoader, SoftReference<ClassLoaderRepository>>();
+
+		private ClassLoaderRepository repoFor(ClassLoader loader){
+			SoftReference<ClassLoaderRepository> ref = repos.get(loader);
+			ClassLoaderRepository r = ref == null ? null : ref.get();
+			if(r == null){
+				r = new ClassLoaderRepository(loader);
+				repos.put(loader, new SoftReference<ClassLoaderRepository>(r));
+			}
+			return r;
+		}
+
+		// BCEL's Repository isn't safe for concurrent use, and classes may load in parallel.
+		public synchronized byte[] transform(ClassLoader loader, String name,
+				Class<?> redefined, ProtectionDomain domain, byte[] classfile){
+			if(loader == null || name == null || isSkipped(name))
+				return null;
+
+			try{
+				Repository.setRepository(repoFor(loader));
+				return Main.inject(classfile, name + ".class", true);
+			}catch(Throwable e){
+				// Returning null loads the class as it was.
+				System.err.printf("tact: I failed to inject %s: %s\n", name, e);
+				return null;
+			}
+		}
+	}
+
+	private static boolean isSkipped(String name){
+		for(String prefix : skipped)
+			if(name.startsWith(prefix))
+				return true;
+		return false;
+	}
+}
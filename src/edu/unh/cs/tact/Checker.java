@@ -2,70 +2,393 @@
 package edu.unh.cs.tact;
 
 import java.util.*;
-import static java.util.Collections.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.invoke.*;
 import java.lang.ref.*;
 import java.lang.reflect.*;
 
+import static edu.unh.cs.tact.Util.*;
+
 public class Checker{
 	private static boolean enabled = true;
 
-	private static Map<Object, WeakReference<Thread>> owners =
-		synchronizedMap(new ThreadMap());
+	private static final ThreadMap owners = new ThreadMap();
+
+	private static final WeakIdentityMap<Object> runtimeGuarded =
+		new WeakIdentityMap<Object>();
+
+	/**
+	guardFields holds the handles of the guards resolved for each class of
+	guarded object, by guard name. Each class's guards are resolved through
+	its own loader.
+	*/
+	private static final ClassValue<ConcurrentMap<String, MethodHandle>> guardFields =
+		new ClassValue<ConcurrentMap<String, MethodHandle>>(){
+			@Override protected ConcurrentMap<String, MethodHandle> computeValue(Class<?> c){
+				return new ConcurrentHashMap<String, MethodHandle>();
+			}
+		};
+
+	/**
+	sampleAccesses is N when only 1 in N of each thread's checks is made,
+	set by the tact.sample system property. For 1 in N at each access
+	site, inject with -sample=N instead.
+	*/
+	private static int sampleAccesses = Integer.getInteger("tact.sample", 1);
+
+	/**
+	sampleObjects is N when only about 1 in N objects, picked by identity,
+	is checked, set by the tact.sampleObjects system property. Every access
+	to a picked object is checked, so its ownership is tracked exactly.
+	*/
+	private static int sampleObjects = Integer.getInteger("tact.sampleObjects", 1);
+
+	/**
+	violations collects what the checks find, instead of throwing it, when
+	the tact.report system property is true. The program goes on as if
+	each check had passed.
+	*/
+	private static Violations violations = Boolean.getBoolean("tact.report")
+		? Violations.start(Long.getLong("tact.reportInterval", 100))
+		: null;
+
+	/**
+	metrics counts checks per site and class when the tact.metrics system
+	property is true, or tact.metricsFile names a file to dump them to
+	every tact.metricsInterval seconds.
+	*/
+	private static Metrics metrics = Boolean.getBoolean("tact.metrics")
+			|| System.getProperty("tact.metricsFile") != null
+		? Metrics.start(owners, runtimeGuarded,
+			System.getProperty("tact.metricsFile"), Long.getLong("tact.metricsInterval", 10))
+		: null;
+
+	/** count adds one of kind to site and o's class, if metrics are on. */
+	private static void count(int kind, String site, Object o){
+		Metrics m = metrics;
+		if(m != null)
+			m.count(kind, site, o);
+	}
+
+	/** report sets where violations go; null throws them. */
+	static void report(Violations v){
+		violations = v;
+	}
+
+	/** measure sets the Metrics that checks are counted in; null counts nothing. */
+	static void measure(Metrics m){
+		metrics = m;
+	}
+
+	/** newMetrics returns a Metrics over Checker's tables, which no checks count in yet. */
+	static Metrics newMetrics(){
+		return new Metrics(owners, runtimeGuarded);
+	}
+
+	/** sampledSites is set once a site injected with -sample has checked. */
+	private static boolean sampledSites = false;
+
+	/** siteIds is the last id given to a site injected with -sample. */
+	private static final AtomicInteger siteIds = new AtomicInteger();
+
+	private static final int[] NO_SITES = new int[0];
+
+	/**
+	Local is a thread's own state. Its self reference is the owner of
+	everything the thread claims, so a claim costs a table entry and no
+	reference object of its own; with a million short-lived threads, the
+	collector has a million references to process instead of one per
+	owned object.
+	*/
+	private static class Local{
+		final WeakReference<Thread> self = new WeakReference<Thread>(Thread.currentThread());
+		/** countdown is the number of checks left to skip when sampling accesses. */
+		int countdown = 0;
+		/** sites has the checks left to skip at each site injected with -sample, by id. */
+		int[] sites = NO_SITES;
+		/** domains has the bits of the Domains the thread is a member of. */
+		long domains = 0;
+	}
+
+	private static final ThreadLocal<Local> local = new ThreadLocal<Local>(){
+		@Override protected Local initialValue(){
+			return new Local();
+		}
+	};
+
+	/** sample sets sampleAccesses and sampleObjects; 1 checks everything. */
+	static void sample(int accesses, int objects){
+		if(accesses < 1 || objects < 1)
+			throw new IllegalArgumentException("sample rates must be positive");
+		sampleAccesses = accesses;
+		sampleObjects = objects;
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	Sites injected with -sample call sampleSite the first time they're
+	reached, for an id to keep their countdown by.
+	*/
+	public static int sampleSite(){
+		return siteIds.incrementAndGet();
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	Sites injected with -sample=n call skipSite on each visit, with their
+	id. Each thread counts down each site on its own, so no visit writes
+	to memory that other threads use; the first visit checks, and then 1
+	in n.
+	*/
+	public static boolean skipSite(int site, int n){
+		Local l = local.get();
+		int[] c = l.sites;
+		if(site >= c.length)
+			l.sites = c = Arrays.copyOf(c, Math.max(site + 1, c.length * 2));
+		if(--c[site] > 0)
+			return true;
+		c[site] = n;
+		if(!sampledSites)
+			sampledSites = true;
+		return false;
+	}
+
+	/** isSampling is true if some checks may have been skipped. */
+	private static boolean isSampling(){
+		return sampleAccesses > 1 || sampleObjects > 1 || sampledSites;
+	}
 
-	private static Map<Object, Object> runtimeGuarded =
-		synchronizedMap(new WeakHashMap<Object, Object>());
+	/** skip is true if the check of o falls outside the sample. */
+	private static boolean skip(Object o){
+		if(sampleObjects > 1 && spread(System.identityHashCode(o)) % sampleObjects != 0)
+			return true;
+		if(sampleAccesses > 1){
+			Local l = local.get();
+			if(--l.countdown > 0)
+				return true;
+			l.countdown = sampleAccesses;
+		}
+		return false;
+	}
+
+	/** spread mixes identity hashes, which may be sequential, and drops the sign. */
+	private static int spread(int h){
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & 0x7fffffff;
+	}
 
 	/** Aside from unit tests, don't call this manually. */
 	public static void check(Object o){
+		check(o, null);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	site names the access, for violation messages.
+	*/
+	public static void check(Object o, String site){
+		check(o, site, false);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	checkRead is check for accesses that only read o, which frozen objects
+	allow. An injected object's frozen state is seen without a lookup.
+	*/
+	public static void checkRead(Object o, String site){
+		if(o instanceof Owned && ((Owned)o).tact$owner() == FROZEN)
+			return;
+		check(o, site, true);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	wouldPass is true if checking o, or only reading it if read is true,
+	would pass in the current Thread without claiming o. It changes
+	nothing. Injected code asks it before a loop, and skips the loop's
+	checks of o while the answer is true. It's false for an object that a
+	Domain owns, since another member may give it away while the loop runs.
+	*/
+	public static boolean wouldPass(Object o, boolean read){
 		if(!enabled || o == null)
+			return true;
+
+		Object guard = guardOf(o);
+		if(guard != null)
+			return Thread.holdsLock(guard);
+		WeakReference<Thread> ref = ownerOf(o);
+		if(ref == FROZEN)
+			return read;
+		if(ref instanceof Domain.Ref)
+			return false;
+		return ref != null && isMine(ref, Thread.currentThread());
+	}
+
+	private static void check(Object o, String site, boolean read){
+		if(!enabled || o == null || skip(o))
+			return;
+		count(Metrics.CHECK, site, o);
+
+		if(o instanceof Owned){
+			checkSlot((Owned)o, site, read);
 			return;
+		}
 
 		Thread ct = Thread.currentThread();
 
 		Object guard = runtimeGuarded.get(o);
 		if(guard != null){
-			if(!Thread.holdsLock(guard))
-				throw new IllegalAccessError(String.format(
-					"BAD unguarded-access [general] (%s -> %s)",
-					o, Thread.currentThread()));
+			checkGuard(o, guard, site);
 			return;
 		}
 
 		WeakReference<Thread> ref = owners.get(o);
 
 		if(ref == null){
-			owners.put(o, new WeakReference<Thread>(ct));
-			//System.err.printf("OK claim \"%s\" -> %s\n", o, ct);
+			ref = owners.putIfAbsent(o, local.get().self);
+			if(ref == null){
+				//System.err.printf("OK claim \"%s\" -> %s\n", o, ct);
+				count(Metrics.CLAIM, site, o);
+				return;
+			}
+			// Another thread claimed it first.
+		}
+
+		checkOwner(o, ref, ct, site, read);
+	}
+
+	/** checkSlot is check for objects injected with an owner slot,
+	which holds either the owner's WeakReference or a Guard.
+	*/
+	private static void checkSlot(Owned o, String site, boolean read){
+		Thread ct = Thread.currentThread();
+
+		Object s = o.tact$owner();
+		if(s == null){
+			if(o.tact$claim(null, local.get().self)){
+				count(Metrics.CLAIM, site, o);
+				return;
+			}
+			s = o.tact$owner();
+		}
+
+		if(s instanceof Guard){
+			checkGuard(o, ((Guard)s).lock, site);
+			return;
+		}
+
+		@SuppressWarnings("unchecked")
+		WeakReference<Thread> ref = (WeakReference<Thread>)s;
+		checkOwner(o, ref, ct, site, read);
+	}
+
+	private static void checkGuard(Object o, Object guard, String site){
+		count(Metrics.GUARD, site, o);
+		if(!Thread.holdsLock(guard))
+			fail(Violations.UNGUARDED, site, o, guard);
+	}
+
+	private static void checkOwner(Object o, WeakReference<Thread> ref, Thread ct, String site, boolean read){
+		if(ref == FROZEN){
+			if(!read)
+				fail(Violations.WRITE_FROZEN, site, o, null);
+			return;
+		}
+
+		if(ref instanceof Domain.Ref){
+			Domain.Ref d = (Domain.Ref)ref;
+			if((local.get().domains & d.bit) == 0)
+				fail(Violations.ACCESS, site, o, d.domain);
 			return;
 		}
 
 		Thread owner = ref.get();
-		if(owner == null)
-			throw new IllegalAccessError(String.format("BAD re-thread \"%s\" -> %s\n", o, ct));
+		if(owner == null){
+			fail(Violations.RETHREAD, site, o, null);
+			return;
+		}
 
 		if(owner.equals(ct)){
 			//System.err.printf("OK access (%s -> %s)\n", o, ct);
 			return;
 		}
 
-		throw new IllegalAccessError(String.format("BAD access (%s -> %s)\n", o, ct));
+		fail(Violations.ACCESS, site, o, owner);
+	}
+
+	/**
+	fail reports a violation of kind at site on o, or throws it as an
+	IllegalAccessError if violations aren't being reported.
+	*/
+	static void fail(int kind, String site, Object o, Object other){
+		count(Metrics.VIOLATION, site, o);
+		Thread ct = Thread.currentThread();
+		Violations v = violations;
+		if(v != null){
+			v.record(kind, site, o, other, ct);
+			return;
+		}
+		throw new IllegalAccessError(Violations.format(kind, site,
+			String.valueOf(o), other == null ? null : String.valueOf(other), ct));
 	}
 
 	/** Aside from unit tests, don't call this manually. */
 	public static void guardByThis(Object o){
-		if(!enabled || o == null)
+		guardByThis(o, null);
+	}
+
+	/** Aside from unit tests, don't call this manually. */
+	public static void guardByThis(Object o, String site){
+		if(!enabled || o == null || skip(o))
 			return;
+		count(Metrics.CHECK, site, o);
+		count(Metrics.GUARD, site, o);
 
 		if(!Thread.holdsLock(o))
-			throw new IllegalAccessError(String.format(
-				"BAD unguarded-access [this] (%s -> %s)", o, Thread.currentThread()));
+			fail(Violations.UNGUARDED_THIS, site, o, null);
 	}
 
 	/** Aside from unit tests, don't call this manually. */
 	public static void guardByField(Object o, String guard){
-		if(!enabled || o == null)
+		guardByField(o, guard, null);
+	}
+
+	/** Aside from unit tests, don't call this manually. */
+	public static void guardByField(Object o, String guard, String site){
+		if(!enabled || o == null || skip(o))
 			return;
+		count(Metrics.CHECK, site, o);
+		count(Metrics.GUARD, site, o);
+
+		Object g;
+		try{
+			g = (Object)guardFor(o, guard).invokeExact(o);
+		}catch(RuntimeException e){
+			throw e;
+		}catch(Error e){
+			throw e;
+		}catch(Throwable e){
+			throw new RuntimeException(e);
+		}
+
+		if(!Thread.holdsLock(g))
+			fail(Violations.UNGUARDED_FIELD, site, o, g);
+	}
+
+	/** guardFor returns a handle that takes o and returns its guard lock.
+	Each guard name is resolved once for each class of guarded object, or
+	each class whose static fields are guarded, through the class's loader.
+	*/
+	private static MethodHandle guardFor(Object o, String guard){
+		Class<?> c = o instanceof Class ? (Class<?>)o : o.getClass();
+		ConcurrentMap<String, MethodHandle> m = guardFields.get(c);
+		MethodHandle h = m.get(guard);
+		if(h == null){
+			h = resolveGuard(guard, c.getClassLoader());
+			m.putIfAbsent(guard, h);
+		}
+		return h;
+	}
 
+	private static MethodHandle resolveGuard(String guard, ClassLoader loader){
 		int fieldPos = guard.lastIndexOf('.');
 		if(fieldPos == -1 || fieldPos == guard.length()-1)
 			throw new AssertionError("Bad guard name: \""+guard+"\"");
@@ -73,18 +396,19 @@ public class Checker{
 		String className = guard.substring(0, fieldPos);
 		String field = guard.substring(fieldPos+1);
 
-		Object g = null;
+		MethodType getter = MethodType.methodType(Object.class, Object.class);
 		try{
-			Class<?> c = Class.forName(className);
+			Class<?> c = Class.forName(className, true, loader);
 			if(field.equals("class"))
-				g = c;
-			else{
-				Field f = c.getDeclaredField(field);
-				boolean acc = f.isAccessible();
-				f.setAccessible(true);
-				g = f.get(o);
-				f.setAccessible(acc);
-			}
+				return MethodHandles.dropArguments(
+					MethodHandles.constant(Object.class, c), 0, Object.class);
+
+			Field f = c.getDeclaredField(field);
+			f.setAccessible(true);
+			MethodHandle h = MethodHandles.lookup().unreflectGetter(f);
+			if(Modifier.isStatic(f.getModifiers()))
+				h = MethodHandles.dropArguments(h, 0, Object.class);
+			return h.asType(getter);
 		}catch(ClassNotFoundException e){
 			throw new RuntimeException(e);
 		}catch(NoSuchFieldException e){
@@ -92,10 +416,6 @@ public class Checker{
 		}catch(IllegalAccessException e){
 			throw new RuntimeException(e);
 		}
-
-		if(!Thread.holdsLock(g))
-			throw new IllegalAccessError(String.format(
-				"BAD unguarded-access [static] (%s -> %s)", o, Thread.currentThread()));
 	}
 
 	/** release releases o from the current thread's ownership.
@@ -107,10 +427,20 @@ public class Checker{
 
 		Thread ct = Thread.currentThread();
 
-		WeakReference<Thread> ref = owners.get(o);
-		if(ref == null)
-			throw new IllegalAccessError(
-				String.format("BAD release-unowned (%s <- %s)", o, ct));
+		WeakReference<Thread> ref = ownerOf(o);
+		if(ref == null){
+			if(!isSampling()) // Or the check that would have claimed it was skipped.
+				fail(Violations.RELEASE_UNOWNED, null, o, null);
+			return;
+		}
+
+		if(ref instanceof Domain.Ref){
+			if(isMine(ref, ct))
+				disown(o, ref);
+			else
+				fail(Violations.RELEASE, null, o, ((Domain.Ref)ref).domain);
+			return;
+		}
 
 		Thread owner = ref.get();
 		if(owner == null){
@@ -119,12 +449,12 @@ public class Checker{
 		}
 
 		if(owner.equals(ct)){
-			owners.remove(o);
+			disown(o, ref);
 			//System.err.printf("OK release (%s <- %s)\n", o, ct);
 			return;
 		}
 
-		throw new IllegalAccessError(String.format("BAD release (%s <- %s)\n", o, ct));
+		fail(Violations.RELEASE, null, o, owner);
 	}
 
 	/** guardBy changes o's ownership from the default strategy to
@@ -136,14 +466,121 @@ public class Checker{
 		if(!enabled || o == null)
 			return;
 
-		Object oldGuard =
-			runtimeGuarded.put(o, guard);
+		Object oldGuard = o instanceof Owned
+			? guardSlot((Owned)o, guard)
+			: runtimeGuarded.putIfAbsent(o, guard);
 
 		if(oldGuard != null && !oldGuard.equals(guard))
-			throw new IllegalAccessError(String.format("BAD new-guard (%s, %s -> %s)", o, oldGuard, guard));
+			fail(Violations.NEW_GUARD, null, o, oldGuard);
 	}
 
 
+	/**
+	FROZEN owns the objects that have been frozen. Its referent is never
+	set, so it's only ever compared with.
+	*/
+	private static final WeakReference<Thread> FROZEN = new WeakReference<Thread>(null);
+
+	/** share gives o to the Threads of d, together. Any member may then use
+	it, and no other Thread may. The current Thread needn't be a member.
+	@throws IllegalAccessError if another Thread owns o, or o is guarded
+	*/
+	public static void share(Object o, Domain d){
+		notNull(d, "d");
+		if(!enabled || o == null)
+			return;
+
+		WeakReference<Thread> ref = ownerOf(o);
+		if(ref == d.ref)
+			return;
+		Object guard = guardOf(o);
+		if(guard != null){
+			fail(Violations.NEW_GUARD, null, o, guard);
+			return;
+		}
+		if(ref != null && !isMine(ref, Thread.currentThread())){
+			fail(Violations.ACCESS, null, o, describe(ref));
+			return;
+		}
+		setOwner(o, d.ref);
+	}
+
+	/** shareGraph shares root with d, like share, along with every object
+	reachable from it by at most depth references that the current Thread
+	owns or that has no owner yet. Other objects are left alone, as in
+	releaseGraph.
+	@throws IllegalAccessError if share would throw for root
+	*/
+	public static void shareGraph(Object root, final Domain d, int depth, Class<?>... types){
+		notNull(d, "d");
+		if(!enabled || root == null)
+			return;
+
+		share(root, d);
+		final Thread ct = Thread.currentThread();
+		Graph.walk(root, depth, types, new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(!isFree(o, ct))
+					return false;
+				setOwner(o, d.ref);
+				return true;
+			}
+		});
+	}
+
+	/** freeze makes o read-only for good. Any Thread may then read it
+	without a lock, and writing it is a violation. Build an object, then
+	freeze it, then share it. Freezing does not affect fields annotated
+	with @GuardedBy.
+	@throws IllegalAccessError if another Thread owns o, or o is guarded
+	by a lock that the current Thread does not hold
+	*/
+	public static void freeze(Object o){
+		if(!enabled || o == null)
+			return;
+
+		WeakReference<Thread> ref = ownerOf(o);
+		if(ref == FROZEN)
+			return;
+
+		Object guard = guardOf(o);
+		if(guard != null){
+			if(!Thread.holdsLock(guard)){
+				fail(Violations.UNGUARDED, null, o, guard);
+				return;
+			}
+		}else if(ref != null && !isMine(ref, Thread.currentThread())){
+			fail(Violations.ACCESS, null, o, describe(ref));
+			return;
+		}
+
+		setOwner(o, FROZEN);
+		if(guard != null && !(o instanceof Owned))
+			runtimeGuarded.remove(o);
+	}
+
+	/** freezeGraph freezes root, like freeze, along with every object
+	reachable from it by at most depth references that the current Thread
+	owns or that has no owner yet. Other objects are left alone, as in
+	releaseGraph.
+	@throws IllegalAccessError if freeze would throw for root
+	*/
+	public static void freezeGraph(Object root, int depth, Class<?>... types){
+		if(!enabled || root == null)
+			return;
+
+		freeze(root);
+		final Thread ct = Thread.currentThread();
+		Graph.walk(root, depth, types, new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(!isFree(o, ct))
+					return false;
+				setOwner(o, FROZEN);
+				return true;
+			}
+		});
+	}
+
 	/** init should be called before any of the Checker methods not injected by tact
 	will be called.
 	*/
@@ -151,6 +588,26 @@ public class Checker{
 		enabled = false; // TODO: Well, this name is a lie.
 	}
 
+	/**
+	fastTrack is set once FastTrack checks instead of Checker. Checker's
+	methods then leave ownership alone, but still tell FastTrack about the
+	Threads they start and the objects they hand off.
+	*/
+	private static boolean fastTrack = false;
+
+	/** useFastTrack turns ownership checking off for FastTrack. */
+	static void useFastTrack(){
+		enabled = false;
+		fastTrack = true;
+	}
+
+	/** start starts t, which begins after what the current Thread has done so far. */
+	private static void start(Thread t){
+		if(fastTrack)
+			FastTrack.fork(t);
+		t.start();
+	}
+
 	/** releaseAndStart atomically creates a new Thread with r, gives ownership
 	of r to the new Thread, and starts that Thread.
 	Use this when a runnable is created with the default
@@ -160,7 +617,7 @@ public class Checker{
 	public static Thread releaseAndStart(Runnable r){
 		Thread t = new Thread(r);
 		giveTo(r, t);
-		t.start();
+		start(t);
 		return t;
 	}
 
@@ -170,11 +627,331 @@ public class Checker{
 	*/
 	public static void releaseAndStart(Thread t){
 		giveTo(t, t);
-		t.start();
+		start(t);
 	}
 
-	private static synchronized void giveTo(Object o, Thread t){
+	private static void giveTo(Object o, Thread t){
 		release(o);
-		owners.put(o, new WeakReference<Thread>(t));
+		setOwner(o, referTo(t));
+	}
+
+	/** referTo returns a weak reference to t, which is t's own if t is the current Thread. */
+	private static WeakReference<Thread> referTo(Thread t){
+		if(t == Thread.currentThread())
+			return local.get().self;
+		return new WeakReference<Thread>(t);
+	}
+
+	/** setOwner makes ref's thread o's owner, whatever o's state was. */
+	private static void setOwner(Object o, WeakReference<Thread> ref){
+		if(!(o instanceof Owned)){
+			owners.put(o, ref);
+			return;
+		}
+
+		Owned w = (Owned)o;
+		while(!w.tact$claim(w.tact$owner(), ref))
+			;
+	}
+
+	/** ALL is the depth at which the graph methods follow every reference. */
+	public static final int ALL = Integer.MAX_VALUE;
+
+	/** releaseGraph releases root, like release, along with every object
+	reachable from it by at most depth references that the current Thread
+	owns. Objects that another Thread owns or that are guarded are left
+	alone, and so is what is reachable only through them. If types are
+	given, only arrays and instances of types are released or followed.
+	See Graph for which references are followed.
+	@throws IllegalAccessError if the current thread does not own root.
+	*/
+	public static void releaseGraph(Object root, int depth, Class<?>... types){
+		if(!enabled || root == null)
+			return;
+
+		release(root);
+		final Thread ct = Thread.currentThread();
+		Graph.walk(root, depth, types, new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(!isFree(o, ct))
+					return false;
+				WeakReference<Thread> ref = ownerOf(o);
+				if(ref != null)
+					disown(o, ref);
+				return true;
+			}
+		});
+	}
+
+	/** guardGraph guards root with guard, like guardBy, along with every
+	object reachable from it by at most depth references that the current
+	Thread owns or that has no owner yet. Objects that another Thread owns
+	or that are already guarded are left alone, as in releaseGraph.
+	@throws IllegalAccessError if root already has a different guard
+	*/
+	public static void guardGraph(Object root, final Object guard, int depth, Class<?>... types){
+		if(!enabled || root == null)
+			return;
+
+		guardBy(root, guard);
+		final Thread ct = Thread.currentThread();
+		Graph.walk(root, depth, types, new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(!isFree(o, ct))
+					return false;
+				Object old = o instanceof Owned
+					? guardSlot((Owned)o, guard)
+					: runtimeGuarded.putIfAbsent(o, guard);
+				return old == null;
+			}
+		});
+	}
+
+	/** releaseAndStartGraph is releaseAndStart(r) for r and the objects
+	reachable from it, which are given to the new Thread as in releaseGraph.
+	@return the newly-created Thread
+	*/
+	public static Thread releaseAndStartGraph(Runnable r, int depth, Class<?>... types){
+		Thread t = new Thread(r);
+		giveGraph(r, t, depth, types);
+		start(t);
+		return t;
+	}
+
+	/** releaseAndStartGraph is releaseAndStart(t) for t and the objects
+	reachable from it, which are given to t as in releaseGraph.
+	*/
+	public static void releaseAndStartGraph(Thread t, int depth, Class<?>... types){
+		giveGraph(t, t, depth, types);
+		start(t);
+	}
+
+	/** releaseAndStartVirtual is releaseAndStart(r) for a new virtual Thread.
+	@throws UnsupportedOperationException if the JVM has no virtual threads
+	@return the newly-created Thread
+	*/
+	public static Thread releaseAndStartVirtual(Runnable r){
+		Thread t = newVirtualThread(r);
+		giveTo(r, t);
+		start(t);
+		return t;
+	}
+
+	/** releaseAndStartVirtualGraph is releaseAndStartGraph(r, depth, types)
+	for a new virtual Thread.
+	@throws UnsupportedOperationException if the JVM has no virtual threads
+	@return the newly-created Thread
+	*/
+	public static Thread releaseAndStartVirtualGraph(Runnable r, int depth, Class<?>... types){
+		Thread t = newVirtualThread(r);
+		giveGraph(r, t, depth, types);
+		start(t);
+		return t;
+	}
+
+	/** virtualThreads makes unstarted virtual threads, or is null before Java 21. */
+	private static final MethodHandle virtualThreads = virtualThreadMaker();
+
+	private static MethodHandle virtualThreadMaker(){
+		try{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			MethodHandles.Lookup l = MethodHandles.publicLookup();
+			MethodHandle ofVirtual = l.findStatic(Thread.class, "ofVirtual",
+				MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")));
+			MethodHandle unstarted = l.findVirtual(builder, "unstarted",
+				MethodType.methodType(Thread.class, Runnable.class));
+			// (Runnable) -> ofVirtual().unstarted(r)
+			return MethodHandles.foldArguments(
+				unstarted, ofVirtual.asType(MethodType.methodType(builder)));
+		}catch(ClassNotFoundException e){
+			return null;
+		}catch(NoSuchMethodException e){
+			return null;
+		}catch(IllegalAccessException e){
+			return null;
+		}
+	}
+
+	private static Thread newVirtualThread(Runnable r){
+		if(virtualThreads == null)
+			throw new UnsupportedOperationException("This JVM has no virtual threads.");
+		try{
+			return (Thread)virtualThreads.invokeExact(r);
+		}catch(RuntimeException e){
+			throw e;
+		}catch(Error e){
+			throw e;
+		}catch(Throwable e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void giveGraph(Object root, Thread t, int depth, Class<?>[] types){
+		if(!enabled)
+			return;
+
+		giveTo(root, t);
+		final Thread ct = Thread.currentThread();
+		final WeakReference<Thread> ref = referTo(t);
+		Graph.walk(root, depth, types, new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(!isFree(o, ct))
+					return false;
+				setOwner(o, ref);
+				return true;
+			}
+		});
+	}
+
+	/**
+	TRANSIT owns objects on their way from one thread to another, so that
+	neither thread can use them meanwhile. It is never started.
+	*/
+	private static final Thread TRANSIT = new Thread("tact-transit");
+
+	/** newTransit returns an owner, distinct from all others, for objects in transit. */
+	static WeakReference<Thread> newTransit(){
+		return new WeakReference<Thread>(TRANSIT);
+	}
+
+	/**
+	handOff gives root and the objects reachable from it, as in
+	releaseGraph, to the transit owner to. Another thread takes them from
+	to with takeOver. Objects shared with a Domain stay shared. Under
+	FastTrack, what the current Thread has done happens before takeOver.
+	*/
+	static void handOff(Object root, int depth, Class<?>[] types, final WeakReference<Thread> to){
+		if(fastTrack)
+			FastTrack.release(to);
+		if(!enabled || root == null || !Graph.isVisitable(root))
+			return;
+
+		final Thread ct = Thread.currentThread();
+		Graph.Visitor v = new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(!isFree(o, ct) || ownerOf(o) instanceof Domain.Ref)
+					return false; // A domain's objects stay with it
+				setOwner(o, to);
+				return true;
+			}
+		};
+		if(v.visit(root))
+			Graph.walk(root, depth, types, v);
+	}
+
+	/**
+	takeOver makes the current Thread the owner of the objects reachable
+	from root that from owns, after handOff. Objects with no owner are
+	passed through, and left alone.
+	*/
+	static void takeOver(Object root, int depth, Class<?>[] types, final WeakReference<Thread> from){
+		if(fastTrack)
+			FastTrack.acquire(from);
+		if(!enabled || root == null || !Graph.isVisitable(root))
+			return;
+
+		final WeakReference<Thread> self = local.get().self;
+		Graph.Visitor v = new Graph.Visitor(){
+			public boolean visit(Object o){
+				if(isGuarded(o))
+					return false;
+				WeakReference<Thread> ref = ownerOf(o);
+				if(ref == from){
+					setOwner(o, self);
+					return true;
+				}
+				return ref == null;
+			}
+		};
+		if(v.visit(root))
+			Graph.walk(root, depth, types, v);
+	}
+
+	/** isFree is true if o is unguarded, and owned by ct or no one. */
+	private static boolean isFree(Object o, Thread ct){
+		if(isGuarded(o))
+			return false;
+		WeakReference<Thread> ref = ownerOf(o);
+		return ref == null || isMine(ref, ct);
+	}
+
+	/** isMine is true if ref is ct's, or a Domain's that ct is a member of. */
+	private static boolean isMine(WeakReference<Thread> ref, Thread ct){
+		if(ref instanceof Domain.Ref)
+			return (local.get().domains & ((Domain.Ref)ref).bit) != 0;
+		return ref.get() == ct;
+	}
+
+	/** describe returns the owner that ref stands for, for violations. */
+	private static Object describe(WeakReference<Thread> ref){
+		if(ref instanceof Domain.Ref)
+			return ((Domain.Ref)ref).domain;
+		return ref.get();
+	}
+
+	/** joinDomain adds the current Thread to, or removes it from, the Domain with bit. */
+	static void joinDomain(long bit, boolean join){
+		Local l = local.get();
+		l.domains = join ? l.domains | bit : l.domains & ~bit;
+	}
+
+	/** inDomain is true if the current Thread is in the Domain with bit. */
+	static boolean inDomain(long bit){
+		return (local.get().domains & bit) != 0;
+	}
+
+	private static boolean isGuarded(Object o){
+		return guardOf(o) != null;
+	}
+
+	/** guardOf returns o's runtime guard, or null if it has none. */
+	private static Object guardOf(Object o){
+		if(!(o instanceof Owned))
+			return runtimeGuarded.get(o);
+		Object s = ((Owned)o).tact$owner();
+		return s instanceof Guard ? ((Guard)s).lock : null;
+	}
+
+	/** ownerOf returns the reference to o's owner, or null if o has none. */
+	@SuppressWarnings("unchecked")
+	private static WeakReference<Thread> ownerOf(Object o){
+		if(!(o instanceof Owned))
+			return owners.get(o);
+
+		Object s = ((Owned)o).tact$owner();
+		if(s instanceof WeakReference)
+			return (WeakReference<Thread>)s;
+		return null;
+	}
+
+	/** disown removes o's owner, if it is still ref. */
+	private static void disown(Object o, WeakReference<Thread> ref){
+		if(o instanceof Owned)
+			((Owned)o).tact$claim(ref, null);
+		else
+			owners.remove(o, ref);
+	}
+
+	/** guardSlot installs guard in o's slot, unless it already has one.
+	@return the existing guard, or null if guard was installed
+	*/
+	private static Object guardSlot(Owned o, Object guard){
+		Guard g = new Guard(guard);
+		while(true){
+			Object s = o.tact$owner();
+			if(s instanceof Guard)
+				return ((Guard)s).lock;
+			if(o.tact$claim(s, g))
+				return null;
+		}
+	}
+
+	/** Guard marks an owner slot that holds a runtime guard instead of an owner. */
+	private static class Guard{
+		final Object lock;
+
+		Guard(Object lock){
+			this.lock = lock;
+		}
 	}
 }
@@ -0,0 +1,252 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+CheckerBench measures Checker's entry points and ThreadMap, from 1 thread
+up to the number of processors, each thread working on its own set of
+live objects. It prints one CSV line per case, thread count and object
+count, so runs can be diffed or loaded elsewhere:
+
+<pre>
+bench,threads,objects,ops_per_s,ns_per_op
+</pre>
+
+ns_per_op is per thread. The arguments, all optional, are the maximum
+number of threads (0 for the number of processors), the milliseconds to measure each line, and a file to
+write the CSV to instead of standard output.
+<p>
+guardByThis locks each object around its check, so it includes an
+uncontended monitor enter and exit; claim includes allocating the object
+it claims.
+*/
+public class CheckerBench{
+	private static final int[] OBJECTS = { 16, 4096, 1 << 18 };
+	private static long millis = 500;
+
+	/** sink keeps the JIT from discarding results. */
+	static volatile Object sink;
+
+	public static void main(String[] args) throws Exception{
+		int max = Runtime.getRuntime().availableProcessors();
+		if(args.length > 0 && Integer.parseInt(args[0]) > 0)
+			max = Integer.parseInt(args[0]);
+		if(args.length > 1)
+			millis = Long.parseLong(args[1]);
+		PrintStream out = System.out;
+		if(args.length > 2)
+			out = new PrintStream(new FileOutputStream(args[2]));
+
+		out.println("bench,threads,objects,ops_per_s,ns_per_op");
+		for(Case c : cases()){
+			for(int n = 1; n <= max; n = next(n, max)){
+				for(int objs : OBJECTS){
+					run(c, n, objs, millis / 2); // warm up
+					double ops = run(c, n, objs, millis);
+					out.printf("%s,%d,%d,%.0f,%.2f\n", c.name, n, objs, ops, n * 1e9 / ops);
+					out.flush();
+				}
+			}
+		}
+		if(out != System.out)
+			out.close();
+	}
+
+	private static int next(int n, int max){
+		if(n == max)
+			return max + 1;
+		return Math.min(n * 2, max);
+	}
+
+	/**
+	A Case is one benchmark. Each thread calls setUp on its own objects,
+	then op on each of them in turn until time is up.
+	*/
+	private static abstract class Case{
+		final String name;
+
+		Case(String name){
+			this.name = name;
+		}
+
+		/** begin is called before each run, on the main thread. */
+		void begin(){}
+
+		/** make returns an object for a thread's set, which is guarded by lock. */
+		Object make(Object lock){
+			return new Object();
+		}
+
+		void setUp(Object o, Object lock){}
+
+		/** pass does op on all of objs, holding lock if the case needs it. */
+		void pass(Object[] objs, Object lock){
+			for(Object o : objs)
+				op(o);
+		}
+
+		abstract void op(Object o);
+	}
+
+	/** Guarded is guarded by its lock field, for guardByField. */
+	static class Guarded{
+		final Object lock;
+
+		Guarded(Object lock){
+			this.lock = lock;
+		}
+	}
+
+	private static final String GUARD = Guarded.class.getName() + ".lock";
+
+	private static ThreadMap map;
+	private static final WeakReference<Thread> nobody = new WeakReference<Thread>(null);
+
+	private static List<Case> cases(){
+		List<Case> cs = new ArrayList<Case>();
+		cs.add(new Case("check.claim"){
+			void op(Object o){
+				Checker.check(new Object());
+			}
+		});
+		cs.add(new Case("check.owned"){
+			void setUp(Object o, Object lock){
+				Checker.check(o);
+			}
+
+			void op(Object o){
+				Checker.check(o);
+			}
+		});
+		cs.add(new Case("check.guarded"){
+			void setUp(Object o, Object lock){
+				Checker.guardBy(o, lock);
+			}
+
+			void pass(Object[] objs, Object lock){
+				synchronized(lock){
+					super.pass(objs, lock);
+				}
+			}
+
+			void op(Object o){
+				Checker.check(o);
+			}
+		});
+		cs.add(new Case("checkRead.frozen"){
+			void setUp(Object o, Object lock){
+				Checker.freeze(o);
+			}
+
+			void op(Object o){
+				Checker.checkRead(o, null);
+			}
+		});
+		cs.add(new Case("guardByThis"){
+			void op(Object o){
+				synchronized(o){
+					Checker.guardByThis(o);
+				}
+			}
+		});
+		cs.add(new Case("guardByField"){
+			Object make(Object lock){
+				return new Guarded(lock);
+			}
+
+			void pass(Object[] objs, Object lock){
+				synchronized(lock){
+					super.pass(objs, lock);
+				}
+			}
+
+			void op(Object o){
+				Checker.guardByField(o, GUARD);
+			}
+		});
+		cs.add(new Case("release+claim"){
+			void setUp(Object o, Object lock){
+				Checker.check(o);
+			}
+
+			void op(Object o){
+				Checker.release(o);
+				Checker.check(o);
+			}
+		});
+		cs.add(new Case("ThreadMap.get"){
+			void begin(){
+				map = new ThreadMap();
+			}
+
+			void setUp(Object o, Object lock){
+				map.put(o, nobody);
+			}
+
+			void op(Object o){
+				sink = map.get(o);
+			}
+		});
+		cs.add(new Case("ThreadMap.put+remove"){
+			void begin(){
+				map = new ThreadMap();
+			}
+
+			void op(Object o){
+				map.put(o, nobody);
+				map.remove(o);
+			}
+		});
+		return cs;
+	}
+
+	/** run returns the ops per second of nthreads threads running c on nobjs objects each. */
+	private static double run(final Case c, int nthreads, final int nobjs, final long ms) throws Exception{
+		c.begin();
+		final double[] rates = new double[nthreads];
+		final CyclicBarrier ready = new CyclicBarrier(nthreads);
+		Thread[] ts = new Thread[nthreads];
+		for(int i = 0; i < nthreads; i++){
+			final int id = i;
+			ts[i] = new Thread(){
+				public void run(){
+					Object lock = new Object();
+					Object[] objs = new Object[nobjs];
+					for(int j = 0; j < objs.length; j++){
+						objs[j] = c.make(lock);
+						c.setUp(objs[j], lock);
+					}
+					try{
+						ready.await();
+					}catch(Exception e){
+						throw new RuntimeException(e);
+					}
+
+					long start = System.nanoTime();
+					long deadline = start + ms * 1000000L;
+					long n = 0, now;
+					do{
+						c.pass(objs, lock);
+						n += objs.length;
+						now = System.nanoTime();
+					}while(now < deadline);
+					rates[id] = n * 1e9 / (now - start);
+				}
+			};
+		}
+
+		for(Thread t : ts)
+			t.start();
+		for(Thread t : ts)
+			t.join();
+
+		double total = 0;
+		for(double r : rates)
+			total += r;
+		return total;
+	}
+}
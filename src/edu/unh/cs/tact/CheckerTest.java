@@ -4,6 +4,8 @@ package edu.unh.cs.tact;
 import org.junit.*;
 import static org.junit.Assert.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
 
 import org.apache.bcel.Repository;
 import org.apache.bcel.classfile.*;
@@ -71,20 +73,13 @@ public class CheckerTest{
 	}
 
 	private void doInAnotherThread(Runnable r){
-		ExceptionGrabber g = new ExceptionGrabber(r);
-		Thread t = new Thread(g);
-		t.start();
-		try{
-			t.join();
-		}catch(InterruptedException e){
-			// hrm
-			throw new RuntimeException(e);
-		}
-		if(g.err != null)
-			throw new RuntimeException(g.err);
+		Throwable err = ExceptionGrabber.inAnotherThread(r);
+		if(err != null)
+			throw new RuntimeException(err);
 	}
 
-	private static class ExceptionGrabber implements Runnable{
+	/** ExceptionGrabber runs r, and keeps what it throws. The engines' tests use it too. */
+	static class ExceptionGrabber implements Runnable{
 		private final Runnable r;
 		public Throwable err = null;
 
@@ -99,6 +94,23 @@ public class CheckerTest{
 				err = e;
 			}
 		}
+
+		/**
+		inAnotherThread runs r in a new Thread, started plainly, so no engine
+		orders what r does with the caller, and returns what r threw.
+		*/
+		static Throwable inAnotherThread(Runnable r){
+			ExceptionGrabber g = new ExceptionGrabber(r);
+			Thread t = new Thread(g);
+			t.start();
+			try{
+				t.join();
+			}catch(InterruptedException e){
+				// hrm
+				throw new RuntimeException(e);
+			}
+			return g.err;
+		}
 	}
 
 	private static class ThisDummy{
@@ -163,6 +175,48 @@ public class CheckerTest{
 		Checker.guardByField(d, ThisDummy.class.getName()+".class");
 	}
 
+	@Test(expected=IllegalAccessError.class)
+	public void badCachedField(){
+		ThisDummy d = new ThisDummy();
+		synchronized(d.flock){
+			Checker.guardByField(d, ThisDummy.class.getName()+".flock");
+		}
+		Checker.guardByField(new ThisDummy(), ThisDummy.class.getName()+".flock");
+	}
+
+	@Test public void fieldInAnotherLoader() throws Exception{
+		final String name = ThisDummy.class.getName();
+		final byte[] b = Repository.lookupClass(ThisDummy.class).getBytes();
+		ClassLoader l = new ClassLoader(CheckerTest.class.getClassLoader()){
+			@Override protected Class<?> loadClass(String n, boolean resolve) throws ClassNotFoundException{
+				if(!n.equals(name))
+					return super.loadClass(n, resolve);
+				synchronized(this){
+					Class<?> c = findLoadedClass(n);
+					return c != null ? c : defineClass(n, b, 0, b.length);
+				}
+			}
+		};
+		Class<?> c = Class.forName(name, true, l);
+		assertNotSame(ThisDummy.class, c);
+		java.lang.reflect.Constructor<?> k = c.getDeclaredConstructor();
+		k.setAccessible(true);
+		Object d = k.newInstance();
+		java.lang.reflect.Field f = c.getDeclaredField("flock");
+		f.setAccessible(true);
+
+		ThisDummy mine = new ThisDummy();
+		synchronized(mine.flock){
+			Checker.guardByField(mine, name+".flock");
+		}
+		synchronized(f.get(d)){
+			Checker.guardByField(d, name+".flock"); // Its own loader's flock
+		}
+		synchronized(c){
+			Checker.guardByField(d, name+".class");
+		}
+	}
+
 	@Test(expected=ClassNotFoundException.class)
 	public void badClass() throws Throwable{
 		try{
@@ -206,4 +260,473 @@ public class CheckerTest{
 			Checker.guardByThis(d);
 		}
 	}
+
+	private static class SlotDummy implements Owned{
+		// tact -inline injects the equivalent of this into each class
+		private final AtomicReference<Object> slot = new AtomicReference<Object>();
+
+		public Object tact$owner(){
+			return slot.get();
+		}
+
+		public boolean tact$claim(Object expect, Object update){
+			return slot.compareAndSet(expect, update);
+		}
+	}
+
+	@Test public void goodSlotSameThread(){
+		SlotDummy d = new SlotDummy();
+		Checker.check(d);
+		Checker.check(d);
+		assertNotNull(d.tact$owner());
+	}
+
+	@Test(expected=IllegalAccessError.class)
+	public void slotOwner() throws Throwable{
+		final SlotDummy d = new SlotDummy();
+		Checker.check(d);
+		try{
+			doInAnotherThread(new Runnable(){
+				public void run(){
+					Checker.check(d);
+				}
+			});
+		}catch(RuntimeException e){
+			throw Util.rootCause(e);
+		}
+	}
+
+	@Test public void goodSlotRuntimeGuard(){
+		final SlotDummy d = new SlotDummy();
+		final String s = "I'm a guard";
+		Checker.check(d);
+		Checker.guardBy(d, s);
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				synchronized(s){
+					Checker.check(d);
+				}
+			}
+		});
+	}
+
+	@Test public void slotRelease(){
+		final SlotDummy d = new SlotDummy();
+		Checker.check(d);
+		Checker.release(d);
+		assertNull(d.tact$owner());
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.check(d);
+			}
+		});
+	}
+
+	@Test public void sampleAccesses(){
+		final Object o = new Object();
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.check(o);
+			}
+		});
+
+		Checker.sample(4, 1);
+		try{
+			int errors = 0;
+			for(int i = 0; i < 8; i++){
+				try{
+					Checker.check(o);
+				}catch(IllegalAccessError e){
+					errors++;
+				}
+			}
+			assertEquals(2, errors);
+		}finally{
+			Checker.sample(1, 1);
+		}
+	}
+
+	@Test public void sampleObjects(){
+		Checker.sample(1, Integer.MAX_VALUE);
+		try{
+			final Object o = new Object();
+			doInAnotherThread(new Runnable(){
+				public void run(){
+					Checker.check(o);
+				}
+			});
+			Checker.check(o); // almost surely not in the sample
+			Checker.release(new Object()); // never claimed, since it wasn't checked
+		}finally{
+			Checker.sample(1, 1);
+		}
+	}
+
+	@Test public void report(){
+		final Object o = new Object();
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.check(o);
+			}
+		});
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		Violations v = new Violations(8, new PrintStream(buf));
+		Checker.report(v);
+		try{
+			Checker.check(o, "Here.there:7");
+			Checker.check(o, "Here.there:7");
+			Checker.release(new Object());
+		}finally{
+			Checker.report(null);
+		}
+		assertEquals(3, v.drain());
+		String out = buf.toString();
+		assertTrue(out, out.startsWith("BAD access (java.lang.Object@"));
+		assertTrue(out, out.contains("at Here.there:7\n"));
+		assertTrue(out, out.contains("(repeated 1 more times)"));
+		assertTrue(out, out.contains("BAD release-unowned"));
+	}
+
+	@Test public void metrics(){
+		Metrics m = Checker.newMetrics();
+		Checker.measure(m);
+		try{
+			Object o = new Object(), g = new Object();
+			Checker.check(o, "Here.there:7");
+			Checker.check(o, "Here.there:7");
+			Checker.guardBy(g, o);
+			synchronized(o){
+				Checker.check(g, "Here.there:8");
+			}
+		}finally{
+			Checker.measure(null);
+		}
+		assertEquals(3, m.getChecks());
+		assertEquals(1, m.getClaims());
+		assertEquals(1, m.getGuardChecks());
+		assertEquals(0, m.getViolations());
+		assertTrue(m.hotSites(1)[0], m.hotSites(1)[0].startsWith("Here.there:7: 2 checks"));
+	}
+
+	@Test public void freeze(){
+		final Object o = new Object();
+		Checker.check(o);
+		Checker.freeze(o);
+		Checker.freeze(o); // Again is fine
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.checkRead(o, null);
+			}
+		});
+		Checker.checkRead(o, null);
+		try{
+			Checker.check(o);
+			fail("wrote a frozen object");
+		}catch(IllegalAccessError e){
+			assertTrue(e.getMessage(), e.getMessage().startsWith("BAD write-frozen"));
+		}
+		Checker.release(o); // Frozen for good
+		assertChecksFail(o);
+	}
+
+	@Test public void freezeSlot(){
+		final SlotDummy o = new SlotDummy();
+		Checker.check(o);
+		Checker.freeze(o);
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.checkRead(o, null);
+			}
+		});
+		assertChecksFail(o);
+	}
+
+	@Test public void freezeGuarded(){
+		final Object o = new Object(), lock = new Object();
+		Checker.guardBy(o, lock);
+		try{
+			Checker.freeze(o);
+			fail("froze without holding the guard");
+		}catch(IllegalAccessError e){
+		}
+		synchronized(lock){
+			Checker.freeze(o);
+		}
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.checkRead(o, null);
+			}
+		});
+	}
+
+	@Test(expected=IllegalAccessError.class)
+	public void freezeOthers() throws Throwable{
+		final Object[] made = new Object[1];
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				made[0] = new Object();
+				Checker.check(made[0]);
+			}
+		});
+		Checker.freeze(made[0]);
+	}
+
+	@Test public void freezeGraph(){
+		final Node b = new Node(new int[1], null), a = new Node(b, null);
+		Checker.check(a);
+		Checker.check(b);
+		Checker.check(b.next);
+		Checker.freezeGraph(a, Checker.ALL);
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				Checker.checkRead(a, null);
+				Checker.checkRead(b, null);
+				Checker.checkRead(b.next, null);
+			}
+		});
+		assertChecksFail(b.next);
+	}
+
+	@Test public void domain(){
+		final Domain d = new Domain("pool");
+		final Object o = new Object();
+		final Node n = new Node(new int[1], null);
+		Checker.check(o);
+		Checker.share(o, d);
+		Checker.shareGraph(n, d, Checker.ALL);
+		Checker.share(o, d); // Again is fine
+		assertFalse(d.isMember());
+
+		Runnable use = new Runnable(){
+			public void run(){
+				d.join();
+				assertTrue(d.isMember());
+				Checker.check(o);
+				Checker.check(n);
+				Checker.check(n.next);
+			}
+		};
+		doInAnotherThread(use);
+		doInAnotherThread(use);
+		try{
+			Checker.check(o);
+			fail("a non-member used a domain's object");
+		}catch(IllegalAccessError e){
+			assertTrue(e.getMessage(), e.getMessage().contains("owned by Domain[pool]"));
+		}
+
+		d.join();
+		Checker.check(o);
+		assertFalse(Checker.wouldPass(o, true)); // Another member may give it away
+		d.leave();
+		assertChecksFail(o);
+	}
+
+	@Test public void domainRelease(){
+		final Domain d = new Domain("release");
+		Object o = new Object();
+		Checker.check(o);
+		Checker.share(o, d);
+		d.join();
+		try{
+			Checker.release(o);
+		}finally{
+			d.leave();
+		}
+		checkAll(o); // Nobody's now
+	}
+
+	@Test public void domainThreads() throws Exception{
+		final Domain d = new Domain("factory");
+		final Object o = new Object();
+		Checker.check(o);
+		Checker.share(o, d);
+		java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(2,
+			d.threadFactory(java.util.concurrent.Executors.defaultThreadFactory()));
+		try{
+			pool.submit(new Runnable(){
+				public void run(){
+					Checker.check(o);
+				}
+			}).get();
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	@Test(expected=IllegalAccessError.class)
+	public void shareOthers() throws Throwable{
+		final Object[] made = new Object[1];
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				made[0] = new Object();
+				Checker.check(made[0]);
+			}
+		});
+		Checker.share(made[0], new Domain("others"));
+	}
+
+	private static class Node{
+		Object next;
+		Object other;
+
+		Node(Object next, Object other){
+			this.next = next;
+			this.other = other;
+		}
+	}
+
+	/** checkAll checks each of objs, in order, in another thread. */
+	private void checkAll(final Object... objs){
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				for(Object o : objs)
+					Checker.check(o);
+			}
+		});
+	}
+
+	private void assertChecksFail(Object o){
+		try{
+			checkAll(o);
+		}catch(RuntimeException e){
+			assertTrue(Util.rootCause(e) instanceof IllegalAccessError);
+			return;
+		}
+		fail("another thread could check " + o);
+	}
+
+	@Test public void releaseGraph(){
+		int[] leaf = new int[1];
+		List<Object> list = new ArrayList<Object>(Arrays.asList(leaf));
+		Node[] arr = { new Node(list, null) };
+		Node root = new Node(arr, null);
+		root.other = root; // a cycle
+		for(Object o : new Object[]{ root, arr, arr[0], list, leaf })
+			Checker.check(o);
+
+		Checker.releaseGraph(root, Checker.ALL);
+		checkAll(root, arr, arr[0], list, leaf);
+	}
+
+	/** Batch is a program's collection, whose elements are walked along with its fields. */
+	private static class Batch extends ArrayList<Node>{
+		Object label;
+	}
+
+	/** Index is a program's map, whose keys and values are walked along with its fields. */
+	private static class Index extends HashMap<Object, Object>{
+		Object label;
+	}
+
+	@Test public void releaseGraphSubclasses(){
+		Batch b = new Batch();
+		b.label = new int[1];
+		b.add(new Node(null, null));
+		Index x = new Index();
+		x.label = new int[1];
+		Object k = new int[1], v = new int[1];
+		x.put(k, v);
+		Node root = new Node(b, x);
+		for(Object o : new Object[]{ root, b, b.label, b.get(0), x, x.label, k, v })
+			Checker.check(o);
+
+		Checker.releaseGraph(root, Checker.ALL);
+		checkAll(root, b, b.label, b.get(0), x, x.label, k, v);
+	}
+
+	@Test public void releaseGraphDepth(){
+		Node c = new Node(null, null), b = new Node(c, null), a = new Node(b, null);
+		Checker.check(a);
+		Checker.check(b);
+		Checker.check(c);
+
+		Checker.releaseGraph(a, 1);
+		checkAll(a, b);
+		assertChecksFail(c);
+	}
+
+	@Test public void releaseGraphTypes(){
+		Object other = new Object();
+		Node b = new Node(null, null), a = new Node(b, other);
+		Checker.check(a);
+		Checker.check(b);
+		Checker.check(other);
+
+		Checker.releaseGraph(a, Checker.ALL, Node.class);
+		checkAll(a, b);
+		assertChecksFail(other);
+	}
+
+	@Test public void releaseGraphSkipsOthers(){
+		final Node[] made = new Node[1];
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				made[0] = new Node(null, null);
+				Checker.check(made[0]);
+			}
+		});
+		Node a = new Node(made[0], null);
+		Checker.check(a);
+		Checker.releaseGraph(a, Checker.ALL); // doesn't take made[0]
+		assertChecksFail(made[0]);
+	}
+
+	@Test public void guardGraph(){
+		final Object lock = new Object();
+		final Node b = new Node(new int[1], null), a = new Node(b, null);
+		Checker.check(a);
+		Checker.check(b);
+		Checker.guardGraph(a, lock, Checker.ALL);
+
+		doInAnotherThread(new Runnable(){
+			public void run(){
+				synchronized(lock){
+					Checker.check(a);
+					Checker.check(b);
+					Checker.check(b.next);
+				}
+			}
+		});
+		assertChecksFail(b.next);
+	}
+
+	@Test public void releaseAndStartGraph() throws InterruptedException{
+		final Node b = new Node(new int[1], null);
+		Checker.check(b);
+		Checker.check(b.next);
+		ExceptionGrabber g = new ExceptionGrabber(new Runnable(){
+			public void run(){
+				Checker.check(b);
+				Checker.check(b.next);
+			}
+		});
+		Checker.check(g);
+
+		Checker.releaseAndStartGraph(g, Checker.ALL).join();
+		assertNull(g.err);
+	}
+
+	@Test public void releaseAndStartVirtual() throws InterruptedException{
+		final Node b = new Node(null, null);
+		Checker.check(b);
+		ExceptionGrabber g = new ExceptionGrabber(new Runnable(){
+			public void run(){
+				Checker.check(b);
+			}
+		});
+		Checker.check(g);
+
+		Thread t;
+		try{
+			t = Checker.releaseAndStartVirtualGraph(g, Checker.ALL);
+		}catch(UnsupportedOperationException e){
+			Assume.assumeNoException(e); // Before Java 21
+			return;
+		}
+		t.join();
+		assertNull(g.err);
+		assertChecksFail(b);
+	}
 }
@@ -0,0 +1,85 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.lang.ref.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+A Domain is a group of Threads that own objects together, for a pool
+whose threads share work that they coordinate some other way than by
+locking it. Any member may use an object that Checker.share gives the
+domain, with no lock, and a Thread outside it is caught as if the object
+had a single owner.
+<p>
+Each domain is a bit, and each Thread keeps the bits of the domains it's
+in, so checking membership is a mask. Threads join themselves, or are
+made by threadFactory. There can be at most 64 domains in a JVM, and
+their bits aren't reused.
+*/
+public final class Domain{
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final String name;
+	final Ref ref;
+
+	/** A Ref owns a domain's objects, in Checker's tables or their slots. */
+	static final class Ref extends WeakReference<Thread>{
+		final Domain domain;
+		final long bit;
+
+		Ref(Domain domain, long bit){
+			super(null);
+			this.domain = domain;
+			this.bit = bit;
+		}
+	}
+
+	/**
+	Domain makes a domain with no members.
+	@throws IllegalStateException if 64 domains have already been made
+	*/
+	public Domain(String name){
+		this.name = notNull(name, "name");
+		int id = count.getAndIncrement();
+		if(id >= 64)
+			throw new IllegalStateException("There can be at most 64 domains");
+		ref = new Ref(this, 1L << id);
+	}
+
+	/** join makes the current Thread a member. */
+	public void join(){
+		Checker.joinDomain(ref.bit, true);
+	}
+
+	/** leave makes the current Thread no longer a member. */
+	public void leave(){
+		Checker.joinDomain(ref.bit, false);
+	}
+
+	/** isMember is true if the current Thread is a member. */
+	public boolean isMember(){
+		return Checker.inDomain(ref.bit);
+	}
+
+	/** threadFactory returns a ThreadFactory whose Threads, made by f, join this domain when they start. */
+	public ThreadFactory threadFactory(final ThreadFactory f){
+		notNull(f, "f");
+		return new ThreadFactory(){
+			public Thread newThread(final Runnable r){
+				return f.newThread(new Runnable(){
+					public void run(){
+						join();
+						r.run();
+					}
+				});
+			}
+		};
+	}
+
+	@Override public String toString(){
+		return "Domain[" + name + "]";
+	}
+}
@@ -0,0 +1,735 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+Eraser is the lockset engine, which tact injects instead of Checker's
+ownership checks with -engine=eraser. Instead of being told each field's
+guard, it infers one, as in Savage et al.'s Eraser: the locks that were
+held at every access to the field once a second Thread used it. A field
+that Threads write with no lock in common is reported.
+<p>
+A variable is virgin until a Thread uses it, and then exclusive to that
+Thread. When another Thread reads it, it becomes shared, and when another
+Thread writes it, shared-modified. From then on its candidates are the
+locks held at each access, intersected, and a shared-modified variable
+with no candidates left is reported once. So an object may be built by
+one Thread and then only read by others with no lock, but an object that
+is handed from Thread to Thread some other way, like a queue, is
+reported when the second Thread writes it.
+<p>
+Sets of locks are interned, so a Thread's held locks and a variable's
+candidates are each one LockSet, of small lock ids. An access by the
+Thread a variable is exclusive to, or by a Thread that holds exactly its
+candidates, is one compare, with no lock. Each Thread remembers the sets
+it has made lately, by taking or releasing a lock or by intersecting.
+A set that nothing refers to is collected, and a lock's id is reused
+once the lock and every set with it have been.
+<p>
+Once a Thread has been collected, a new Thread gets its tid, so tids
+only grow to the most Threads alive at once, and never reach the states
+below zero. A variable that was exclusive to the collected Thread is
+exclusive to the new one, as if the new one had used it first.
+<p>
+Variables are a field of an object or class, or a whole array. The guard
+inferred for each field is printed at exit, as a @GuardedBy annotation
+where the lock can be named: the object itself, a class, or a field of
+the field's class.
+*/
+public class Eraser{
+	private Eraser(){}
+
+	/** A Var's state, unless it's the tid of the Thread it's exclusive to. */
+	private static final int VIRGIN = -1;
+	private static final int SHARED = -2;
+	private static final int SHARED_MODIFIED = -3;
+
+	/** MEMO is how many sets of each kind a Thread remembers making. It must be a power of two. */
+	private static final int MEMO = 64;
+
+	/** Local is what a Thread holds, and the sets it has made lately. */
+	private static class Local{
+		final int tid = newTid(Thread.currentThread());
+		/** lockset is the set of the locks the Thread holds. */
+		LockSet lockset = EMPTY;
+		/** held has the ids of the locks the Thread holds, the first n of them, and counts how often it holds each. */
+		int[] held = new int[4];
+		int[] counts = new int[4];
+		int n;
+		/** changeSet, changeLock and changed remember with(set, lock), or without(set, ~lock), by a hash of both. */
+		final LockSet[] changeSet = new LockSet[MEMO];
+		final int[] changeLock = new int[MEMO];
+		final LockSet[] changed = new LockSet[MEMO];
+		/** meetA, meetB and meets remember meet(a, b), by a hash of both. */
+		final LockSet[] meetA = new LockSet[MEMO];
+		final LockSet[] meetB = new LockSet[MEMO];
+		final LockSet[] meets = new LockSet[MEMO];
+	}
+
+	/** TidRef is a Thread's tid. It's queued on deadThreads once the Thread is collected, and its tid reused. */
+	private static final class TidRef extends WeakReference<Thread>{
+		final int tid;
+
+		TidRef(Thread t, int tid){
+			super(t, deadThreads);
+			this.tid = tid;
+		}
+	}
+
+	private static final ReferenceQueue<Thread> deadThreads = new ReferenceQueue<Thread>();
+
+	/** threads guards what follows. */
+	private static final Object threads = new Object();
+
+	/** tidRefs holds each live Thread's TidRef, by tid, so that it's queued. */
+	private static TidRef[] tidRefs = new TidRef[16];
+
+	/** freeTids holds the first nfreeTids tids that can be reused, and nextTid is the least tid never used. */
+	private static int[] freeTids = new int[16];
+	private static int nfreeTids = 0;
+	private static int nextTid = 0;
+
+	/** newTid returns a tid for t, reusing a collected Thread's if there is one. */
+	private static int newTid(Thread t){
+		synchronized(threads){
+			for(Reference<? extends Thread> r; (r = deadThreads.poll()) != null;){
+				int tid = ((TidRef)r).tid;
+				tidRefs[tid] = null;
+				freeTids[nfreeTids++] = tid;
+			}
+			int tid = nfreeTids > 0 ? freeTids[--nfreeTids] : nextTid++;
+			if(tid == tidRefs.length){
+				tidRefs = Arrays.copyOf(tidRefs, tid * 2);
+				freeTids = Arrays.copyOf(freeTids, tid * 2);
+			}
+			tidRefs[tid] = new TidRef(t, tid);
+			return tid;
+		}
+	}
+
+	/** tidCount is the number of tids handed out, reused ones once. */
+	static int tidCount(){
+		synchronized(threads){
+			return nextTid;
+		}
+	}
+
+	private static final ThreadLocal<Local> local = new ThreadLocal<Local>(){
+		@Override protected Local initialValue(){
+			return new Local();
+		}
+	};
+
+	/**
+	Var is what Eraser knows about the accesses to a field, or to a whole
+	array if field is null. An object's Vars are chained, in the order
+	their fields were first used.
+	*/
+	private static class Var{
+		final String field;
+		volatile Var next;
+		/** state is VIRGIN, SHARED, SHARED_MODIFIED, or the tid of the Thread it's exclusive to. */
+		volatile int state = VIRGIN;
+		/** locks is the set of candidate locks, once the Var is shared. */
+		volatile LockSet locks = EMPTY;
+		boolean reported;
+
+		Var(String field){
+			this.field = field;
+		}
+	}
+
+	private static final WeakIdentityMap<Var> vars = new WeakIdentityMap<Var>();
+
+	/** varOf returns field's Var in o, adding it if there isn't one. */
+	private static Var varOf(Object o, String field){
+		Var first = vars.get(o);
+		if(first == null){
+			first = new Var(field);
+			Var old = vars.putIfAbsent(o, first);
+			if(old == null)
+				return first;
+			first = old;
+		}
+
+		Var v = find(first, field);
+		if(v != null)
+			return v;
+		synchronized(first){
+			Var last = first;
+			for(v = first; v != null; v = v.next){
+				if(isField(v, field))
+					return v;
+				last = v;
+			}
+			return last.next = new Var(field);
+		}
+	}
+
+	/** find returns field's Var in the chain from v, or null. */
+	private static Var find(Var v, String field){
+		for(; v != null; v = v.next)
+			if(isField(v, field))
+				return v;
+		return null;
+	}
+
+	/** isField is true if v is field's. Injected field names are constants, so they're usually the same String. */
+	private static boolean isField(Var v, String field){
+		return v.field == field || field != null && field.equals(v.field);
+	}
+
+	/** LockSet is an interned set of locks, so equal sets are the same LockSet. ids are the locks' ids, sorted. */
+	private static final class LockSet{
+		final int[] ids;
+		final int hash;
+
+		LockSet(int[] ids, int hash){
+			this.ids = ids;
+			this.hash = hash;
+		}
+	}
+
+	/** LockRef is a lock's id. */
+	private static final class LockRef extends WeakReference<Object>{
+		final int id;
+
+		LockRef(Object lock, int id){
+			super(lock, deadLocks);
+			this.id = id;
+		}
+	}
+
+	/** SetRef is an interned LockSet's entry in the table, which keeps its ids to let them go once it's collected. */
+	private static final class SetRef extends WeakReference<LockSet>{
+		final int[] ids;
+		final int hash;
+		SetRef next;
+
+		SetRef(LockSet s){
+			super(s, deadSets);
+			ids = s.ids;
+			hash = s.hash;
+		}
+	}
+
+	private static final ReferenceQueue<Object> deadLocks = new ReferenceQueue<Object>();
+	private static final ReferenceQueue<LockSet> deadSets = new ReferenceQueue<LockSet>();
+
+	private static final WeakIdentityMap<LockRef> lockRefs = new WeakIdentityMap<LockRef>();
+
+	/** interned guards what follows. */
+	private static final Object interned = new Object();
+
+	/** table chains the interned sets' SetRefs, by hash. */
+	private static SetRef[] table = new SetRef[64];
+	private static int size = 0;
+
+	/** byId holds each lock's LockRef, by id, and uses counts the interned sets with each id. */
+	private static LockRef[] byId = new LockRef[16];
+	private static int[] uses = new int[16];
+
+	/** freeIds holds the first nfree ids that can be reused, and nextId is the least id never used. */
+	private static int[] freeIds = new int[16];
+	private static int nfree = 0;
+	private static int nextId = 0;
+
+	/** EMPTY is the set of no locks. */
+	private static final LockSet EMPTY = intern(new int[0]);
+
+	private static int lockId(Object lock){
+		LockRef r = lockRefs.get(lock);
+		if(r != null)
+			return r.id;
+		synchronized(interned){
+			r = lockRefs.get(lock);
+			if(r == null){
+				expunge();
+				int id = nfree > 0 ? freeIds[--nfree] : nextId++;
+				if(id == byId.length){
+					byId = Arrays.copyOf(byId, id * 2);
+					uses = Arrays.copyOf(uses, id * 2);
+				}
+				r = new LockRef(lock, id);
+				byId[id] = r;
+				lockRefs.put(lock, r);
+			}
+			return r.id;
+		}
+	}
+
+	/** lockIdCount is the number of lock ids handed out, reused ones once. */
+	static int lockIdCount(){
+		synchronized(interned){
+			return nextId;
+		}
+	}
+
+	private static Object lockOf(int id){
+		synchronized(interned){
+			LockRef r = byId[id];
+			return r == null ? null : r.get();
+		}
+	}
+
+	/** intern returns the LockSet of the sorted lock ids. */
+	private static LockSet intern(int[] ids){
+		int hash = Arrays.hashCode(ids);
+		synchronized(interned){
+			expunge();
+			for(SetRef r = table[hash & (table.length - 1)]; r != null; r = r.next){
+				if(r.hash != hash || !Arrays.equals(r.ids, ids))
+					continue;
+				LockSet s = r.get();
+				if(s != null)
+					return s;
+			}
+
+			LockSet s = new LockSet(ids, hash);
+			if(++size > table.length * 3 / 4)
+				rehash();
+			SetRef r = new SetRef(s);
+			int i = hash & (table.length - 1);
+			r.next = table[i];
+			table[i] = r;
+			for(int id : ids)
+				uses[id]++;
+			return s;
+		}
+	}
+
+	private static void rehash(){
+		SetRef[] t = new SetRef[table.length * 2];
+		for(SetRef r : table){
+			while(r != null){
+				SetRef next = r.next;
+				int i = r.hash & (t.length - 1);
+				r.next = t[i];
+				t[i] = r;
+				r = next;
+			}
+		}
+		table = t;
+	}
+
+	/** expunge drops the sets that have been collected, and frees the ids of collected locks that no set has. */
+	private static void expunge(){
+		for(Reference<? extends LockSet> ref; (ref = deadSets.poll()) != null;){
+			SetRef r = (SetRef)ref;
+			int i = r.hash & (table.length - 1);
+			if(table[i] == r){
+				table[i] = r.next;
+			}else{
+				SetRef p = table[i];
+				while(p != null && p.next != r)
+					p = p.next;
+				if(p != null)
+					p.next = r.next;
+			}
+			size--;
+			for(int id : r.ids)
+				if(--uses[id] == 0 && byId[id].get() == null)
+					free(id);
+		}
+		for(Reference<?> ref; (ref = deadLocks.poll()) != null;){
+			LockRef r = (LockRef)ref;
+			if(byId[r.id] == r && uses[r.id] == 0)
+				free(r.id);
+		}
+	}
+
+	private static void free(int id){
+		byId[id] = null;
+		if(nfree == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, nfree * 2);
+		freeIds[nfree++] = id;
+	}
+
+	private static int slot(int a, int b){
+		int h = a * 0x9E3779B9 + b;
+		return (h ^ h >>> 16) & (MEMO - 1);
+	}
+
+	/** with returns the set of lock and the locks in set, which doesn't have it. */
+	private static LockSet with(Local l, LockSet set, int lock){
+		int i = slot(set.hash, lock);
+		if(l.changeSet[i] == set && l.changeLock[i] == lock)
+			return l.changed[i];
+
+		int[] s = set.ids;
+		int at = -Arrays.binarySearch(s, lock) - 1;
+		int[] t = new int[s.length + 1];
+		System.arraycopy(s, 0, t, 0, at);
+		t[at] = lock;
+		System.arraycopy(s, at, t, at + 1, s.length - at);
+		return remember(l, i, set, lock, intern(t));
+	}
+
+	/** without returns set, which has lock, without it. */
+	private static LockSet without(Local l, LockSet set, int lock){
+		int i = slot(set.hash, ~lock);
+		if(l.changeSet[i] == set && l.changeLock[i] == ~lock)
+			return l.changed[i];
+
+		int[] s = set.ids;
+		int at = Arrays.binarySearch(s, lock);
+		int[] t = new int[s.length - 1];
+		System.arraycopy(s, 0, t, 0, at);
+		System.arraycopy(s, at + 1, t, at, t.length - at);
+		return remember(l, i, set, ~lock, intern(t));
+	}
+
+	private static LockSet remember(Local l, int i, LockSet set, int lock, LockSet r){
+		l.changeSet[i] = set;
+		l.changeLock[i] = lock;
+		l.changed[i] = r;
+		return r;
+	}
+
+	/** meet returns the intersection of sets a and b. */
+	private static LockSet meet(Local l, LockSet a, LockSet b){
+		if(a == b)
+			return a;
+		if(a == EMPTY || b == EMPTY)
+			return EMPTY;
+		int i = slot(a.hash, b.hash);
+		if(l.meetA[i] == a && l.meetB[i] == b)
+			return l.meets[i];
+
+		int[] s = a.ids, t = b.ids;
+		int[] u = new int[Math.min(s.length, t.length)];
+		int n = 0;
+		for(int j = 0, k = 0; j < s.length && k < t.length;){
+			if(s[j] < t[k])
+				j++;
+			else if(s[j] > t[k])
+				k++;
+			else{
+				u[n++] = s[j];
+				j++;
+				k++;
+			}
+		}
+		LockSet m = intern(Arrays.copyOf(u, n));
+		l.meetA[i] = a;
+		l.meetB[i] = b;
+		l.meets[i] = m;
+		return m;
+	}
+
+	/**
+	init replaces ownership checking with lockset inference, so Checker's
+	methods leave ownership alone. Injected code calls it instead of
+	Checker.init.
+	*/
+	public static void init(){
+		Checker.init();
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	read is read(o, null, site), for an element of the array o.
+	*/
+	public static void read(Object o, String site){
+		access(o, null, false, site);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	read records a read of o's field by the current Thread at site,
+	holding the locks it holds. A null field is the whole of o.
+	*/
+	public static void read(Object o, String field, String site){
+		access(o, field, false, site);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	write is write(o, null, site), for an element of the array o.
+	*/
+	public static void write(Object o, String site){
+		access(o, null, true, site);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	write records a write to o's field by the current Thread at site, and
+	reports it if no lock has been held at each of the field's shared
+	accesses.
+	*/
+	public static void write(Object o, String field, String site){
+		access(o, field, true, site);
+	}
+
+	private static void access(Object o, String field, boolean write, String site){
+		if(o == null)
+			return;
+		Local l = local.get();
+		Var v = varOf(o, field);
+		int s = v.state;
+		if(s == l.tid || v.locks == l.lockset && (s == SHARED_MODIFIED || s == SHARED && !write))
+			return;
+
+		synchronized(v){
+			s = v.state;
+			if(s == VIRGIN || s == l.tid){
+				v.state = l.tid;
+				return;
+			}
+			LockSet locks = s >= 0 ? l.lockset : meet(l, v.locks, l.lockset);
+			int next = write || s == SHARED_MODIFIED ? SHARED_MODIFIED : SHARED;
+			if(next == s && locks == v.locks)
+				return;
+			v.locks = locks; // Before state, which the fast path reads first
+			v.state = next;
+
+			boolean race = next == SHARED_MODIFIED && locks == EMPTY && !v.reported;
+			if(race)
+				v.reported = true;
+			guess(o, v.field, locks, next == SHARED_MODIFIED, race ? site : null);
+			if(race)
+				Checker.fail(Violations.LOCKSET, site, o, null);
+		}
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	wouldPass is wouldPass(o, null, read), for the array o.
+	*/
+	public static boolean wouldPass(Object o, boolean read){
+		return wouldPass(o, null, read);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	wouldPass is true if reading o's field, or writing it if read is false,
+	would take the one-compare path, so it would change nothing. Injected
+	code asks it before a loop, and skips the loop's accesses while it's
+	true.
+	*/
+	public static boolean wouldPass(Object o, String field, boolean read){
+		if(o == null)
+			return true;
+		Var v = find(vars.get(o), field);
+		if(v == null)
+			return false;
+		Local l = local.get();
+		int s = v.state;
+		return s == l.tid || v.locks == l.lockset && (s == SHARED_MODIFIED || s == SHARED && read);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	acquire is called after the current Thread acquires lock.
+	*/
+	public static void acquire(Object lock){
+		if(lock == null)
+			return;
+		Local l = local.get();
+		int id = lockId(lock);
+		for(int i = 0; i < l.n; i++){
+			if(l.held[i] == id){
+				l.counts[i]++;
+				return;
+			}
+		}
+		if(l.n == l.held.length){
+			l.held = Arrays.copyOf(l.held, l.n * 2);
+			l.counts = Arrays.copyOf(l.counts, l.n * 2);
+		}
+		l.held[l.n] = id;
+		l.counts[l.n] = 1;
+		l.n++;
+		l.lockset = with(l, l.lockset, id);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	release is called before the current Thread releases lock.
+	*/
+	public static void release(Object lock){
+		if(lock == null)
+			return;
+		LockRef r = lockRefs.get(lock);
+		if(r == null)
+			return; // Never acquired
+		int id = r.id;
+		Local l = local.get();
+		for(int i = 0; i < l.n; i++){
+			if(l.held[i] != id)
+				continue;
+			if(--l.counts[i] > 0)
+				return;
+			l.n--;
+			l.held[i] = l.held[l.n];
+			l.counts[i] = l.counts[l.n];
+			l.lockset = without(l, l.lockset, id);
+			return;
+		}
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	volatileRead does nothing; locksets aren't changed by volatile fields.
+	*/
+	public static void volatileRead(Object o){
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	volatileWrite does nothing; locksets aren't changed by volatile fields.
+	*/
+	public static void volatileWrite(Object o){
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	fork does nothing; a new Thread holds no locks.
+	*/
+	public static void fork(Object t){
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	join does nothing; locksets aren't changed by joining.
+	*/
+	public static void join(Object t){
+	}
+
+	/** guesses holds what the next report says of each field, by its declaring class and name. */
+	private static final Map<String, Guess> guesses = new HashMap<String, Guess>();
+
+	static{
+		Runtime.getRuntime().addShutdownHook(new Thread("tact-eraser-exit"){
+			@Override public void run(){
+				write(System.getProperty("tact.guards"));
+			}
+		});
+	}
+
+	/**
+	Guess is what the report says of a field: the names of the locks held
+	at each of its shared accesses, whether it has been written while
+	shared, and where, if anywhere, it was first written with no lock in
+	common.
+	*/
+	private static class Guess{
+		Set<String> guards;
+		boolean modified;
+		String race;
+
+		String describe(String field){
+			if(!modified)
+				return "// " + field + " is only read once shared";
+			if(race != null)
+				return "// " + field + " has no lock in common, as at " + race;
+
+			List<String> named = new ArrayList<String>();
+			for(String g : guards)
+				if(g.indexOf('@') == -1)
+					named.add(g.equals("this") ? 0 : named.size(), g);
+			if(named.isEmpty())
+				return "// " + field + " has no guard that @GuardedBy can name: " + guards;
+
+			StringBuilder sb = new StringBuilder("@GuardedBy(\"").append(named.get(0)).append("\") ").append(field);
+			for(int i = 1; i < named.size(); i++)
+				sb.append(i == 1 ? " // or " : ", ").append(named.get(i));
+			return sb.toString();
+		}
+	}
+
+	/**
+	guess adds what a shared access to o's field found to its guess: the
+	candidate locks, and whether it's been written. A race is the site of
+	a write with no candidates left.
+	*/
+	private static void guess(Object o, String field, LockSet locks, boolean modified, String race){
+		if(field == null)
+			return; // An array's elements have no field to annotate
+		Class<?> c = declaring(o instanceof Class ? (Class<?>)o : o.getClass(), field);
+		Set<String> guards = new TreeSet<String>();
+		for(int id : locks.ids){
+			Object lock = lockOf(id);
+			if(lock != null)
+				guards.add(guardName(lock, o, c));
+		}
+
+		String name = c.getName() + "." + field;
+		synchronized(guesses){
+			Guess g = guesses.get(name);
+			if(g == null){
+				g = new Guess();
+				g.guards = guards;
+				guesses.put(name, g);
+			}else{
+				g.guards.retainAll(guards);
+			}
+			g.modified |= modified;
+			if(g.race == null)
+				g.race = race;
+		}
+	}
+
+	/** declaring returns the class that declares field, c or one of its superclasses. */
+	private static Class<?> declaring(Class<?> c, String field){
+		for(Class<?> k = c; k != null; k = k.getSuperclass())
+			for(Field f : k.getDeclaredFields())
+				if(f.getName().equals(field))
+					return k;
+		return c;
+	}
+
+	/**
+	guardName names lock as @GuardedBy would, for a field of o declared by
+	c, or describes it, with an @, if it can't be named.
+	*/
+	private static String guardName(Object lock, Object o, Class<?> c){
+		if(lock instanceof Class)
+			return ((Class<?>)lock).getName() + ".class";
+		if(lock == o)
+			return "this";
+		for(Field f : c.getDeclaredFields()){
+			boolean isStatic = Modifier.isStatic(f.getModifiers());
+			if(f.getType().isPrimitive() || !isStatic && o instanceof Class)
+				continue;
+			try{
+				f.setAccessible(true);
+				if(f.get(isStatic ? null : o) == lock)
+					return c.getName() + "." + f.getName();
+			}catch(IllegalAccessException e){
+				// Try the next
+			}catch(RuntimeException e){
+				// Inaccessible, on Java 9 and later
+			}
+		}
+		return lock.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(lock));
+	}
+
+	/**
+	report prints the guard inferred for each field that Threads have
+	shared since the last report, and forgets them.
+	*/
+	static void report(PrintStream out){
+		Map<String, Guess> g;
+		synchronized(guesses){
+			g = new TreeMap<String, Guess>(guesses);
+			guesses.clear();
+		}
+		if(g.isEmpty())
+			return;
+		out.println("// tact: guards inferred from locksets");
+		for(Map.Entry<String, Guess> e : g.entrySet())
+			out.println(e.getValue().describe(e.getKey()));
+		out.flush();
+	}
+
+	/** write reports to file, or to standard error if it's null. */
+	private static void write(String file){
+		if(file == null){
+			report(System.err);
+			return;
+		}
+		try{
+			PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+			try{
+				report(out);
+			}finally{
+				out.close();
+			}
+		}catch(IOException e){
+			System.err.printf("tact: I failed to write the guards: %s\n", e);
+		}
+	}
+}
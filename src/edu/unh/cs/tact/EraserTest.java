@@ -0,0 +1,188 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static edu.unh.cs.tact.CheckerTest.ExceptionGrabber.inAnotherThread;
+
+public class EraserTest{
+	/** Guarded has a field for each kind of guard the report can name. */
+	static class Guarded{
+		static final Object LOCK = new Object();
+		final Object lock = new Object();
+		int byThis, byClass, byStatic, byField, byNothing, readOnly, racy;
+	}
+
+	private static Runnable write(final Object o, final Object lock){
+		return new Runnable(){
+			public void run(){
+				Eraser.acquire(lock);
+				Eraser.write(o, "test");
+				Eraser.release(lock);
+			}
+		};
+	}
+
+	private static String report(){
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		Eraser.report(new PrintStream(b));
+		return b.toString();
+	}
+
+	/** forget drops what the tests taught Eraser, so it isn't printed at exit. */
+	@After public void forget(){
+		report();
+	}
+
+	@Test public void exclusive(){
+		Object o = new Object();
+		Eraser.write(o, "test");
+		Eraser.read(o, "test");
+		Eraser.write(o, "test");
+		Eraser.read(null, "test");
+	}
+
+	@Test public void sharedReads(){
+		final Object o = new Object();
+		Eraser.write(o, "test");
+		Runnable read = new Runnable(){
+			public void run(){
+				Eraser.read(o, "test");
+			}
+		};
+		assertNull(inAnotherThread(read));
+		assertNull(inAnotherThread(read));
+		Eraser.read(o, "test");
+	}
+
+	@Test public void commonLock(){
+		Object o = new Object(), a = new Object(), b = new Object();
+		Eraser.acquire(a);
+		Eraser.acquire(b);
+		Eraser.write(o, "test");
+		Eraser.release(b);
+		Eraser.release(a);
+		assertNull(inAnotherThread(write(o, b)));
+		assertNull(inAnotherThread(write(o, b)));
+	}
+
+	@Test public void noCommonLock(){
+		Object o = new Object();
+		write(o, new Object()).run();
+		assertNull(inAnotherThread(write(o, new Object()))); // Its first lockset
+		Throwable e = inAnotherThread(write(o, new Object()));
+		assertTrue(e instanceof IllegalAccessError);
+		assertTrue(e.getMessage(), e.getMessage().contains("race [lockset]"));
+		assertNull(inAnotherThread(write(o, null))); // Reported once
+	}
+
+	@Test public void readThenWrite(){
+		final Object o = new Object();
+		Eraser.write(o, "test");
+		assertNull(inAnotherThread(new Runnable(){
+			public void run(){
+				Eraser.read(o, "test");
+			}
+		}));
+		Throwable e = inAnotherThread(write(o, null));
+		assertTrue(e.getMessage(), e.getMessage().contains("race [lockset]"));
+	}
+
+	@Test public void reentrant(){
+		Object o = new Object(), lock = new Object();
+		Eraser.write(o, "test");
+		Eraser.acquire(lock);
+		Eraser.acquire(lock);
+		Eraser.release(lock);
+		assertNull(inAnotherThread(write(o, lock)));
+		Eraser.write(o, "test"); // Still holds lock
+		Eraser.release(lock);
+		Eraser.release(lock); // Not held
+		Throwable e = inAnotherThread(write(o, null));
+		assertTrue(e.getMessage(), e.getMessage().contains("race [lockset]"));
+	}
+
+	@Test public void lockIdsAreReused(){
+		Object o = new Object();
+		int before = Eraser.lockIdCount();
+		for(int i = 0; i < 1000; i++){
+			Object lock = new Object();
+			Eraser.acquire(lock);
+			Eraser.write(o, "test");
+			Eraser.release(lock);
+			if(i % 100 == 0)
+				System.gc();
+		}
+		assertTrue(Eraser.lockIdCount() - before < 1000);
+	}
+
+	@Test public void tidsAreReused(){
+		Object o = new Object();
+		int before = Eraser.tidCount();
+		for(int i = 0; i < 100; i++){
+			assertNull(inAnotherThread(write(o, o)));
+			System.gc();
+		}
+		assertTrue(Eraser.tidCount() - before < 100);
+	}
+
+	@Test public void wouldPass(){
+		Object o = new Object(), lock = new Object();
+		assertFalse(Eraser.wouldPass(o, true));
+		Eraser.write(o, "test");
+		assertTrue(Eraser.wouldPass(o, false));
+		assertNull(inAnotherThread(write(o, lock)));
+		assertFalse(Eraser.wouldPass(o, true));
+		Eraser.acquire(lock);
+		assertTrue(Eraser.wouldPass(o, false));
+		Eraser.release(lock);
+		assertTrue(Eraser.wouldPass(null, false));
+	}
+
+	@Test public void guards(){
+		final Guarded g = new Guarded();
+		Runnable r = new Runnable(){
+			public void run(){
+				Eraser.acquire(g);
+				Eraser.write(g, "byThis", "test");
+				Eraser.release(g);
+				Eraser.acquire(Guarded.class);
+				Eraser.write(g, "byClass", "test");
+				Eraser.release(Guarded.class);
+				Eraser.acquire(Guarded.LOCK);
+				Eraser.write(g, "byStatic", "test");
+				Eraser.release(Guarded.LOCK);
+				Eraser.acquire(g.lock);
+				Eraser.write(g, "byField", "test");
+				Eraser.release(g.lock);
+				Object other = new Object();
+				Eraser.acquire(other);
+				Eraser.write(g, "byNothing", "test");
+				Eraser.release(other);
+				Eraser.read(g, "readOnly", "test");
+			}
+		};
+		r.run();
+		assertNull(inAnotherThread(r));
+		Eraser.write(g, "racy", "test");
+		Throwable e = inAnotherThread(new Runnable(){
+			public void run(){
+				Eraser.write(g, "racy", "racy-site");
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("race [lockset]"));
+
+		String name = Guarded.class.getName();
+		String s = report();
+		assertTrue(s, s.contains("@GuardedBy(\"this\") " + name + ".byThis\n"));
+		assertTrue(s, s.contains("@GuardedBy(\"" + name + ".class\") " + name + ".byClass\n"));
+		assertTrue(s, s.contains("@GuardedBy(\"" + name + ".LOCK\") " + name + ".byStatic\n"));
+		assertTrue(s, s.contains("@GuardedBy(\"" + name + ".lock\") " + name + ".byField\n"));
+		assertTrue(s, s.contains("// " + name + ".byNothing has no guard that @GuardedBy can name"));
+		assertTrue(s, s.contains("// " + name + ".readOnly is only read once shared\n"));
+		assertTrue(s, s.contains("// " + name + ".racy has no lock in common, as at racy-site\n"));
+		assertEquals("", report());
+	}
+}
@@ -0,0 +1,239 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import org.apache.bcel.generic.*;
+
+import static edu.unh.cs.tact.Util.*;
+import static edu.unh.cs.tact.Flow.*;
+
+/**
+EscapeAnalysis finds the allocations in a method whose objects never
+leave it: they are not stored into a field, static or array, passed to a
+method (constructors included), returned, or thrown. Only the thread
+running the method can ever see such an object, so neither its claim nor
+the accesses to it need checks.
+<p>
+Each state maps the locals and operand stack slots to the allocation
+that produced their value, if any. When two paths disagree about a slot,
+both allocations are treated as escaping, which keeps the states small
+and the answer conservative. Methods with subroutines are left alone.
+*/
+class EscapeAnalysis{
+	public final MethodGen mg;
+	public final ConstantPoolGen cp;
+	public final InstructionList list;
+
+	/** sites maps each allocation to its symbol, an index into allocs. */
+	private final Map<InstructionHandle, Integer> sites = new HashMap<InstructionHandle, Integer>();
+	private final List<InstructionHandle> allocs = new ArrayList<InstructionHandle>();
+	private final BitSet escaped = new BitSet();
+	private Map<InstructionHandle, State> in = null;
+
+	public EscapeAnalysis(MethodGen mg, ConstantPoolGen cp){
+		this.mg = notNull(mg, "mg");
+		this.cp = notNull(cp, "cp");
+		this.list = mg.getInstructionList();
+	}
+
+	/** run performs the analysis; call it before the other methods. */
+	public EscapeAnalysis run(){
+		if(list.getStart() == null || hasSubroutines(list))
+			return this;
+
+		for(InstructionHandle h = list.getStart(); h != null; h = h.getNext()){
+			if(isAlloc(h.getInstruction())){
+				sites.put(h, allocs.size());
+				allocs.add(h);
+			}
+		}
+		if(allocs.isEmpty())
+			return this;
+
+		in = analyze();
+		if(in == null)
+			escaped.set(0, allocs.size());
+		return this;
+	}
+
+	/** isLocalAlloc is true if h allocates objects that don't escape. */
+	public boolean isLocalAlloc(InstructionHandle h){
+		Integer site = sites.get(h);
+		return in != null && site != null && !escaped.get(site);
+	}
+
+	/** isLocalAccess is true if the field or array access h works on an object that doesn't escape. */
+	public boolean isLocalAccess(InstructionHandle h){
+		if(in == null)
+			return false;
+		State s = in.get(h);
+		if(s == null)
+			return false;
+		int depth = subjectDepth(h.getInstruction(), cp);
+		if(depth < 0 || depth >= s.stack.length)
+			return false;
+		int sym = s.stack[s.stack.length - 1 - depth];
+		return sym != UNKNOWN && !escaped.get(sym);
+	}
+
+	private static boolean isAlloc(Instruction i){
+		return i instanceof NEW
+			|| i instanceof NEWARRAY
+			|| i instanceof ANEWARRAY
+			|| i instanceof MULTIANEWARRAY
+			;
+	}
+
+	private Map<InstructionHandle, State> analyze(){
+		Map<InstructionHandle, State> in = new HashMap<InstructionHandle, State>();
+		Deque<InstructionHandle> work = new ArrayDeque<InstructionHandle>();
+
+		int[] locals = new int[mg.getMaxLocals()];
+		Arrays.fill(locals, UNKNOWN);
+		in.put(list.getStart(), new State(locals, new int[0]));
+		work.add(list.getStart());
+
+		list.setPositions();
+		CodeExceptionGen[] handlers = mg.getExceptionHandlers();
+
+		while(!work.isEmpty()){
+			InstructionHandle h = work.poll();
+			State s = in.get(h);
+
+			// Anything in a local here may be seen by the handlers covering h.
+			for(CodeExceptionGen eh : handlers){
+				int pos = h.getPosition();
+				if(pos < eh.getStartPC().getPosition() || pos > eh.getEndPC().getPosition())
+					continue;
+				State hs = new State(s.locals.clone(), new int[]{ UNKNOWN });
+				if(flow(in, eh.getHandlerPC(), hs, work) < 0)
+					return null;
+			}
+
+			State out = transfer(h, s);
+			if(out == null)
+				return null;
+
+			for(InstructionHandle succ : successors(h))
+				if(flow(in, succ, out, work) < 0)
+					return null;
+		}
+		return in;
+	}
+
+	/** flow merges s into the state at h, queueing h if it changed. */
+	private int flow(Map<InstructionHandle, State> in, InstructionHandle h, State s, Deque<InstructionHandle> work){
+		State old = in.get(h);
+		if(old == null){
+			in.put(h, s.copy());
+			work.add(h);
+			return 1;
+		}
+		int change = old.merge(s);
+		if(change > 0)
+			work.add(h);
+		return change;
+	}
+
+	private State transfer(InstructionHandle h, State s){
+		Instruction i = h.getInstruction();
+		State out = s.copy();
+		int[] stk = s.stack;
+		int n = stk.length;
+
+		if(i instanceof ALOAD){
+			out.stack = Arrays.copyOf(stk, n + 1);
+			out.stack[n] = s.locals[((ALOAD)i).getIndex()];
+			return out;
+		}
+		if(i instanceof ASTORE){
+			if(n < 1)
+				return null;
+			out.locals[((ASTORE)i).getIndex()] = stk[n - 1];
+			out.stack = Arrays.copyOf(stk, n - 1);
+			return out;
+		}
+		if(i instanceof CHECKCAST)
+			return n < 1 ? null : out;
+		if(isShuffle(i)){
+			out.stack = shuffle(i, stk);
+			return out.stack == null ? null : out;
+		}
+
+		int consumed = i.consumeStack(cp);
+		int produced = i.produceStack(cp);
+		if(consumed > n)
+			return null;
+
+		if(i instanceof InvokeInstruction){
+			escape(stk, n - consumed, n);
+		}else if(i instanceof PUTFIELD || i instanceof PUTSTATIC
+				|| i instanceof AASTORE || i instanceof ARETURN || i instanceof ATHROW){
+			escape(stk, n - 1, n); // the value stored, returned or thrown
+		}
+
+		if(i instanceof StoreInstruction){
+			StoreInstruction st = (StoreInstruction)i;
+			out.locals[st.getIndex()] = UNKNOWN;
+			if(st.getType(cp).getSize() == 2)
+				out.locals[st.getIndex() + 1] = UNKNOWN;
+		}
+
+		out.stack = Arrays.copyOf(stk, n - consumed + produced);
+		Arrays.fill(out.stack, n - consumed, out.stack.length, UNKNOWN);
+		Integer site = sites.get(h);
+		if(site != null)
+			out.stack[out.stack.length - 1] = site;
+		return out;
+	}
+
+	private void escape(int[] slots, int from, int to){
+		for(int k = from; k < to; k++)
+			if(slots[k] != UNKNOWN)
+				escaped.set(slots[k]);
+	}
+
+	private class State{
+		final int[] locals;
+		int[] stack;
+
+		State(int[] locals, int[] stack){
+			this.locals = locals;
+			this.stack = stack;
+		}
+
+		State copy(){
+			return new State(locals.clone(), stack.clone());
+		}
+
+		/**
+		merge folds o into this state, returning 1 if this changed,
+		0 if it didn't, and -1 if the stacks can't be merged.
+		*/
+		int merge(State o){
+			if(o.stack.length != stack.length)
+				return -1;
+			boolean changed = merge(locals, o.locals);
+			if(merge(stack, o.stack))
+				changed = true;
+			return changed ? 1 : 0;
+		}
+
+		private boolean merge(int[] mine, int[] theirs){
+			boolean changed = false;
+			for(int k = 0; k < mine.length; k++){
+				if(mine[k] == theirs[k])
+					continue;
+				// Either value could be here, so stop tracking both.
+				if(theirs[k] != UNKNOWN)
+					escaped.set(theirs[k]);
+				if(mine[k] != UNKNOWN){
+					escaped.set(mine[k]);
+					mine[k] = UNKNOWN;
+					changed = true;
+				}
+			}
+			return changed;
+		}
+	}
+}
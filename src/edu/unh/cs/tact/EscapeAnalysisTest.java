@@ -0,0 +1,119 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.generic.*;
+
+public class EscapeAnalysisTest{
+	private ConstantPoolGen cp;
+	private InstructionFactory f;
+	private InstructionList il;
+
+	@Before public void setUp(){
+		cp = new ConstantPoolGen();
+		f = new InstructionFactory(cp);
+		il = new InstructionList();
+	}
+
+	private InstructionHandle newArray(int local){
+		il.append(new ICONST(4));
+		InstructionHandle h = il.append(new NEWARRAY(Constants.T_INT));
+		il.append(new ASTORE(local));
+		return h;
+	}
+
+	private InstructionHandle store(int local){
+		il.append(new ALOAD(local));
+		il.append(new ICONST(0));
+		il.append(new ICONST(1));
+		return il.append(new IASTORE());
+	}
+
+	private EscapeAnalysis run(){
+		if(il.getEnd() == null || !(il.getEnd().getInstruction() instanceof ReturnInstruction))
+			il.append(new RETURN());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID,
+			new Type[]{ Type.OBJECT }, new String[]{ "o" }, "m", "Dummy", il, cp);
+		mg.setMaxLocals();
+		return new EscapeAnalysis(mg, cp).run();
+	}
+
+	@Test public void scratchArray(){
+		InstructionHandle a = newArray(2);
+		InstructionHandle s = store(2);
+		il.append(new ALOAD(2));
+		InstructionHandle len = il.append(new ARRAYLENGTH());
+		il.append(new POP());
+		EscapeAnalysis e = run();
+		assertTrue(e.isLocalAlloc(a));
+		assertTrue(e.isLocalAccess(s));
+		assertTrue(e.isLocalAccess(len));
+	}
+
+	@Test public void returned(){
+		InstructionHandle a = newArray(2);
+		InstructionHandle s = store(2);
+		il.append(new ALOAD(2));
+		il.append(new ARETURN());
+		EscapeAnalysis e = run();
+		assertFalse(e.isLocalAlloc(a));
+		assertFalse(e.isLocalAccess(s));
+	}
+
+	@Test public void passed(){
+		InstructionHandle a = newArray(2);
+		il.append(new ALOAD(2));
+		il.append(f.createInvoke("Dummy", "use", Type.VOID,
+			new Type[]{ Type.OBJECT }, Constants.INVOKESTATIC));
+		assertFalse(run().isLocalAlloc(a));
+	}
+
+	@Test public void storedInField(){
+		InstructionHandle a = newArray(2);
+		il.append(new ALOAD(1));
+		il.append(new ALOAD(2));
+		il.append(f.createFieldAccess("Dummy", "arr", new ArrayType(Type.INT, 1), Constants.PUTFIELD));
+		assertFalse(run().isLocalAlloc(a));
+	}
+
+	@Test public void storedInArray(){
+		il.append(new ICONST(1));
+		InstructionHandle outer = il.append(new ANEWARRAY(cp.addClass("java.lang.Object")));
+		il.append(new ASTORE(2));
+		InstructionHandle inner = newArray(3);
+		il.append(new ALOAD(2));
+		il.append(new ICONST(0));
+		il.append(new ALOAD(3));
+		il.append(new AASTORE());
+		EscapeAnalysis e = run();
+		assertTrue(e.isLocalAlloc(outer));
+		assertFalse(e.isLocalAlloc(inner));
+	}
+
+	@Test public void constructed(){
+		InstructionHandle a = il.append(f.createNew("java.lang.Object"));
+		il.append(new DUP());
+		il.append(f.createInvoke("java.lang.Object", "<init>", Type.VOID,
+			Type.NO_ARGS, Constants.INVOKESPECIAL));
+		il.append(new ASTORE(2));
+		assertFalse(run().isLocalAlloc(a));
+	}
+
+	@Test public void merged(){
+		il.append(new ILOAD(0));
+		BranchHandle br = il.append(new IFEQ(null));
+		InstructionHandle a = newArray(2);
+		BranchHandle skip = il.append(new GOTO(null));
+		br.setTarget(il.append(new NOP()));
+		InstructionHandle b = newArray(2);
+		skip.setTarget(il.append(new NOP()));
+		InstructionHandle s = store(2);
+		EscapeAnalysis e = run();
+		assertFalse(e.isLocalAlloc(a));
+		assertFalse(e.isLocalAlloc(b));
+		assertFalse(e.isLocalAccess(s));
+	}
+}
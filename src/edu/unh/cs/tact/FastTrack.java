@@ -0,0 +1,462 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+FastTrack is the happens-before engine, which tact injects instead of
+Checker's ownership checks with -engine=fasttrack. Instead of making
+each object belong to one Thread, it reports data races: two accesses to
+an object by different Threads, at least one of them a write, that no
+synchronization orders. An object may move between Threads as often as
+it likes, through a lock, a volatile field, Thread.start and join, or a
+java.util.concurrent object, and nothing is reported.
+<p>
+Each Thread has a vector clock, and each variable keeps the epoch, c@t,
+of its last write and its last read, as in Flanagan and Freund's
+FastTrack. An epoch takes the place of a whole clock until reads from
+several Threads overlap. A Thread's second read or write of a variable
+in the same epoch, with no synchronization since its first, is one
+compare, with no lock.
+<p>
+A variable is a field of an object or class, or a whole array, so
+unordered writes to different elements of an array are reported. An
+object's volatile fields synchronize as one, along with its monitor.
+Violations are reported or thrown as Checker's are.
+<p>
+Once a Thread has been collected, a new Thread gets its tid, so clocks
+only grow to the most Threads alive at once. The new Thread is taken to
+come after all the collected one did.
+*/
+public class FastTrack{
+	private FastTrack(){}
+
+	/** TID_BITS is the number of low bits of an epoch that hold its Thread's id. */
+	private static final int TID_BITS = 24;
+	private static final long TID_MASK = (1L << TID_BITS) - 1;
+
+	/** SHARED is a Var's read epoch once its reads are kept in a clock instead. */
+	private static final long SHARED = -1;
+
+	/** Local is a Thread's vector clock, whose own entry is its current epoch. */
+	private static class Local{
+		final int tid;
+		/** vc is the clock, by tid. Entries past its end are 0. */
+		long[] vc;
+		/** epoch is vc[tid]@tid. */
+		long epoch;
+
+		Local(Thread t){
+			ThreadRef old = reuse();
+			tid = old != null ? old.tid : nextTid();
+			vc = new long[tid + 1];
+			if(old != null)
+				vc[tid] = old.local.vc[tid]; // So all of the old Thread's epochs come before this one's
+			publish(new ThreadRef(t, this, tid, vc[tid] + 1));
+			tick();
+		}
+
+		/** tick starts the Thread's next epoch, after it has released something. */
+		void tick(){
+			vc[tid]++;
+			epoch = epoch(vc[tid], tid);
+		}
+
+		/** saw is true if epoch e happened before the Thread's current epoch. */
+		boolean saw(long e){
+			return clockOf(e) <= clock(vc, tidOf(e));
+		}
+	}
+
+	/**
+	ThreadRef is a Thread's tid, and the first clock of its epochs. It's
+	queued on dead once the Thread is collected, and its tid reused.
+	*/
+	private static class ThreadRef extends WeakReference<Thread>{
+		final Local local;
+		final int tid;
+		final long start;
+
+		ThreadRef(Thread t, Local local, int tid, long start){
+			super(t, dead);
+			this.local = local;
+			this.tid = tid;
+			this.start = start;
+		}
+	}
+
+	private static final ReferenceQueue<Thread> dead = new ReferenceQueue<Thread>();
+
+	/** free holds the ThreadRefs of collected Threads whose tids haven't been reused. */
+	private static final ArrayDeque<ThreadRef> free = new ArrayDeque<ThreadRef>();
+
+	/** tids is the number of tids handed out. Guarded by free, as are the writes to threads. */
+	private static int tids = 0;
+
+	/** threads holds the ThreadRef of each tid, for violations. */
+	private static volatile AtomicReferenceArray<ThreadRef> threads = new AtomicReferenceArray<ThreadRef>(16);
+
+	/** reuse returns the ThreadRef of a collected Thread whose tid can be reused, or null. */
+	private static ThreadRef reuse(){
+		synchronized(free){
+			for(Reference<? extends Thread> r; (r = dead.poll()) != null;)
+				free.add((ThreadRef)r);
+			return free.poll();
+		}
+	}
+
+	private static int nextTid(){
+		synchronized(free){
+			if(tids > TID_MASK)
+				throw new IllegalStateException("FastTrack can tell at most " + TID_MASK + " live Threads apart");
+			AtomicReferenceArray<ThreadRef> a = threads;
+			if(tids == a.length()){
+				AtomicReferenceArray<ThreadRef> b = new AtomicReferenceArray<ThreadRef>(a.length() * 2);
+				for(int i = 0; i < a.length(); i++)
+					b.set(i, a.get(i));
+				threads = b;
+			}
+			return tids++;
+		}
+	}
+
+	private static void publish(ThreadRef r){
+		synchronized(free){
+			threads.set(r.tid, r);
+		}
+	}
+
+	/** tidCount is the number of tids handed out, reused ones once. */
+	static int tidCount(){
+		synchronized(free){
+			return tids;
+		}
+	}
+
+	/** threadOf returns the Thread of epoch e, or null if it's been collected. */
+	private static Thread threadOf(long e){
+		AtomicReferenceArray<ThreadRef> a = threads;
+		int tid = tidOf(e);
+		ThreadRef r = tid < a.length() ? a.get(tid) : null;
+		if(r == null || clockOf(e) < r.start)
+			return null; // A Thread whose tid has been reused
+		return r.get();
+	}
+
+	/** locals holds the clocks of the Threads that have been forked or have done anything. */
+	private static final WeakIdentityMap<Local> locals = new WeakIdentityMap<Local>();
+
+	private static final ThreadLocal<Local> local = new ThreadLocal<Local>(){
+		@Override protected Local initialValue(){
+			return localOf(Thread.currentThread());
+		}
+	};
+
+	private static Local localOf(Thread t){
+		Local l = locals.get(t);
+		if(l != null)
+			return l;
+		l = new Local(t);
+		Local old = locals.putIfAbsent(t, l);
+		return old == null ? l : old;
+	}
+
+	/**
+	Var is what FastTrack knows about the accesses to a field, or to a
+	whole array if field is null. An object's Vars are chained, in the
+	order their fields were first used.
+	*/
+	private static class Var{
+		final String field;
+		volatile Var next;
+		/** w is the epoch of the last write, or 0 if there hasn't been one. */
+		volatile long w = 0;
+		/** r is the epoch of the last read, 0, or SHARED if the reads are in reads. */
+		volatile long r = 0;
+		/** reads has the clock of each Thread's last read, by tid, while r is SHARED. */
+		long[] reads;
+
+		Var(String field){
+			this.field = field;
+		}
+	}
+
+	private static final WeakIdentityMap<Var> vars = new WeakIdentityMap<Var>();
+
+	/** varOf returns field's Var in o, adding it if there isn't one. */
+	private static Var varOf(Object o, String field){
+		Var first = vars.get(o);
+		if(first == null){
+			first = new Var(field);
+			Var old = vars.putIfAbsent(o, first);
+			if(old == null)
+				return first;
+			first = old;
+		}
+
+		Var v = find(first, field);
+		if(v != null)
+			return v;
+		synchronized(first){
+			Var last = first;
+			for(v = first; v != null; v = v.next){
+				if(isField(v, field))
+					return v;
+				last = v;
+			}
+			return last.next = new Var(field);
+		}
+	}
+
+	/** find returns field's Var in the chain from v, or null. */
+	private static Var find(Var v, String field){
+		for(; v != null; v = v.next)
+			if(isField(v, field))
+				return v;
+		return null;
+	}
+
+	/** isField is true if v is field's. Injected field names are constants, so they're usually the same String. */
+	private static boolean isField(Var v, String field){
+		return v.field == field || field != null && field.equals(v.field);
+	}
+
+	/** Sync holds the clock that releasing an object leaves for the next Thread to acquire it. */
+	private static class Sync{
+		long[] vc = new long[0];
+	}
+
+	private static final WeakIdentityMap<Sync> syncs = new WeakIdentityMap<Sync>();
+
+	/**
+	init replaces ownership checking with FastTrack, so Checker's methods
+	leave ownership alone. Injected code calls it instead of Checker.init.
+	*/
+	public static void init(){
+		Checker.useFastTrack();
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	read is read(o, null, site), for an element of the array o.
+	*/
+	public static void read(Object o, String site){
+		read(o, null, site);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	read records a read of o's field by the current Thread at site, and
+	reports a race if a write to it doesn't happen before. A null field
+	is the whole of o.
+	*/
+	public static void read(Object o, String field, String site){
+		if(o == null)
+			return;
+		Local l = local.get();
+		Var v = varOf(o, field);
+		if(v.r == l.epoch)
+			return;
+
+		synchronized(v){
+			if(!l.saw(v.w))
+				race(Violations.RACE_WRITE_READ, site, o, v.w);
+
+			long r = v.r;
+			if(r == SHARED){
+				v.reads = set(v.reads, l.tid, l.vc[l.tid]);
+			}else if(l.saw(r)){
+				v.r = l.epoch;
+			}else{
+				long[] reads = set(null, tidOf(r), clockOf(r));
+				v.reads = set(reads, l.tid, l.vc[l.tid]);
+				v.r = SHARED;
+			}
+		}
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	write is write(o, null, site), for an element of the array o.
+	*/
+	public static void write(Object o, String site){
+		write(o, null, site);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	write records a write to o's field by the current Thread at site, and
+	reports a race if any read of or write to it doesn't happen before.
+	*/
+	public static void write(Object o, String field, String site){
+		if(o == null)
+			return;
+		Local l = local.get();
+		Var v = varOf(o, field);
+		if(v.w == l.epoch)
+			return;
+
+		synchronized(v){
+			if(!l.saw(v.w))
+				race(Violations.RACE_WRITE_WRITE, site, o, v.w);
+
+			long r = v.r;
+			if(r == SHARED){
+				long[] reads = v.reads;
+				for(int t = 0; t < reads.length; t++){
+					if(reads[t] > clock(l.vc, t)){
+						race(Violations.RACE_READ_WRITE, site, o, epoch(reads[t], t));
+						break;
+					}
+				}
+				v.reads = null;
+				v.r = 0;
+			}else if(!l.saw(r)){
+				race(Violations.RACE_READ_WRITE, site, o, r);
+			}
+			v.w = l.epoch;
+		}
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	wouldPass is wouldPass(o, null, read), for the array o.
+	*/
+	public static boolean wouldPass(Object o, boolean read){
+		return wouldPass(o, null, read);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	wouldPass is true if reading o's field, or writing it if read is false,
+	would take the same-epoch path, so it would change nothing. Injected
+	code asks it before a loop, and skips the loop's accesses while it's
+	true.
+	*/
+	public static boolean wouldPass(Object o, String field, boolean read){
+		if(o == null)
+			return true;
+		Var v = find(vars.get(o), field);
+		if(v == null)
+			return false;
+		long e = local.get().epoch;
+		return v.w == e || read && v.r == e;
+	}
+
+	private static void race(int kind, String site, Object o, long other){
+		Checker.fail(kind, site, o, threadOf(other));
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	acquire is called after the current Thread acquires lock, so that
+	what was done before lock's last release happens before what it does
+	next.
+	*/
+	public static void acquire(Object lock){
+		if(lock == null)
+			return;
+		Sync s = syncs.get(lock);
+		if(s == null)
+			return; // Never released
+		Local l = local.get();
+		synchronized(s){
+			l.vc = join(l.vc, s.vc);
+		}
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	release is called before the current Thread releases lock, and starts
+	its next epoch.
+	*/
+	public static void release(Object lock){
+		if(lock == null)
+			return;
+		Local l = local.get();
+		Sync s = syncs.get(lock);
+		if(s == null){
+			s = new Sync();
+			Sync old = syncs.putIfAbsent(lock, s);
+			if(old != null)
+				s = old;
+		}
+		synchronized(s){
+			s.vc = join(s.vc, l.vc);
+		}
+		l.tick();
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	volatileRead is called after a read of one of o's volatile fields, or
+	a class's, and after each call on a java.util.concurrent object.
+	*/
+	public static void volatileRead(Object o){
+		acquire(o);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	volatileWrite is called before a write to one of o's volatile fields,
+	or a class's, and before each call on a java.util.concurrent object.
+	*/
+	public static void volatileWrite(Object o){
+		release(o);
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	fork is called before t, if it is a Thread, is started, so that what
+	the current Thread has done happens before all that t does.
+	*/
+	public static void fork(Object t){
+		if(!(t instanceof Thread))
+			return;
+		Local child = localOf((Thread)t);
+		Local l = local.get();
+		child.vc = join(child.vc, l.vc);
+		l.tick();
+	}
+
+	/** Aside from unit tests, don't call this manually.
+	join is called after a call to t's join returns, so that, if t has
+	finished, all it did happens before what the current Thread does next.
+	*/
+	public static void join(Object t){
+		if(!(t instanceof Thread) || ((Thread)t).isAlive())
+			return;
+		Local child = locals.get(t);
+		if(child == null)
+			return; // It never did anything
+		Local l = local.get();
+		l.vc = join(l.vc, child.vc);
+	}
+
+	private static long epoch(long clock, int tid){
+		return clock << TID_BITS | tid;
+	}
+
+	private static long clockOf(long e){
+		return e >>> TID_BITS;
+	}
+
+	private static int tidOf(long e){
+		return (int)(e & TID_MASK);
+	}
+
+	private static long clock(long[] vc, int tid){
+		return tid < vc.length ? vc[tid] : 0;
+	}
+
+	/** set returns vc, or a longer copy of it, with vc[tid] set to clock. A null vc is empty. */
+	private static long[] set(long[] vc, int tid, long clock){
+		if(vc == null)
+			vc = new long[tid + 1];
+		else if(tid >= vc.length)
+			vc = Arrays.copyOf(vc, tid + 1);
+		vc[tid] = clock;
+		return vc;
+	}
+
+	/** join returns a, or a longer copy of it, with each entry at least b's. */
+	private static long[] join(long[] a, long[] b){
+		if(b.length > a.length)
+			a = Arrays.copyOf(a, b.length);
+		for(int i = 0; i < b.length; i++)
+			if(b[i] > a[i])
+				a[i] = b[i];
+		return a;
+	}
+}
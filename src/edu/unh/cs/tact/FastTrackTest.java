@@ -0,0 +1,150 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static edu.unh.cs.tact.CheckerTest.ExceptionGrabber.inAnotherThread;
+
+public class FastTrackTest{
+	/** forkAndJoin runs r in a new Thread that FastTrack sees forked and joined. */
+	private static void forkAndJoin(Runnable r) throws InterruptedException{
+		Thread t = new Thread(r);
+		FastTrack.fork(t);
+		t.start();
+		t.join();
+		FastTrack.join(t);
+	}
+
+	private static Runnable write(final Object o){
+		return new Runnable(){
+			public void run(){
+				FastTrack.write(o, "test");
+			}
+		};
+	}
+
+	private static Runnable read(final Object o){
+		return new Runnable(){
+			public void run(){
+				FastTrack.read(o, "test");
+			}
+		};
+	}
+
+	@Test public void sameThread(){
+		Object o = new Object();
+		FastTrack.write(o, "test");
+		FastTrack.read(o, "test");
+		FastTrack.write(o, "test");
+		FastTrack.read(null, "test");
+	}
+
+	@Test public void writeWrite(){
+		Object o = new Object();
+		FastTrack.write(o, "test");
+		Throwable e = inAnotherThread(write(o));
+		assertTrue(e instanceof IllegalAccessError);
+		assertTrue(e.getMessage(), e.getMessage().contains("race [write-write]"));
+	}
+
+	@Test public void writeRead(){
+		Object o = new Object();
+		FastTrack.write(o, "test");
+		Throwable e = inAnotherThread(read(o));
+		assertTrue(e.getMessage(), e.getMessage().contains("race [write-read]"));
+	}
+
+	@Test public void readWrite(){
+		Object o = new Object();
+		FastTrack.read(o, "test");
+		Throwable e = inAnotherThread(write(o));
+		assertTrue(e.getMessage(), e.getMessage().contains("race [read-write]"));
+	}
+
+	@Test public void forkJoin() throws InterruptedException{
+		Object o = new Object();
+		FastTrack.write(o, "test");
+		forkAndJoin(write(o));
+		FastTrack.write(o, "test");
+	}
+
+	@Test public void sharedReads() throws InterruptedException{
+		Object o = new Object();
+		assertNull(inAnotherThread(read(o)));
+		assertNull(inAnotherThread(read(o)));
+		Throwable e = inAnotherThread(write(o));
+		assertTrue(e.getMessage(), e.getMessage().contains("race [read-write]"));
+
+		final Object p = new Object();
+		FastTrack.write(p, "test");
+		forkAndJoin(read(p));
+		forkAndJoin(read(p));
+		FastTrack.write(p, "test"); // Both reads were joined
+	}
+
+	@Test public void lock(){
+		final Object o = new Object(), lock = new Object();
+		assertNull(inAnotherThread(new Runnable(){
+			public void run(){
+				FastTrack.acquire(lock);
+				FastTrack.write(o, "test");
+				FastTrack.release(lock);
+			}
+		}));
+		FastTrack.acquire(lock);
+		FastTrack.write(o, "test");
+		FastTrack.release(lock);
+
+		final Object other = new Object();
+		Throwable e = inAnotherThread(new Runnable(){
+			public void run(){
+				FastTrack.acquire(other);
+				FastTrack.read(o, "test");
+				FastTrack.release(other);
+			}
+		});
+		assertTrue(e.getMessage(), e.getMessage().contains("race [write-read]"));
+	}
+
+	@Test public void volatileField(){
+		final Object o = new Object(), holder = new Object();
+		FastTrack.write(o, "test");
+		FastTrack.volatileWrite(holder);
+		assertNull(inAnotherThread(new Runnable(){
+			public void run(){
+				FastTrack.volatileRead(holder);
+				FastTrack.write(o, "test");
+			}
+		}));
+	}
+
+	@Test public void wouldPass(){
+		Object o = new Object();
+		assertFalse(FastTrack.wouldPass(o, true));
+		FastTrack.write(o, "test");
+		assertTrue(FastTrack.wouldPass(o, false));
+		assertTrue(FastTrack.wouldPass(o, true));
+		FastTrack.release(new Object());
+		assertFalse(FastTrack.wouldPass(o, true)); // A new epoch
+		assertTrue(FastTrack.wouldPass(null, false));
+	}
+
+	@Test public void tidsAreReused() throws InterruptedException{
+		final Object o = new Object();
+		FastTrack.write(o, "test");
+		int before = FastTrack.tidCount();
+		for(int i = 0; i < 100; i++){
+			forkAndJoin(read(o));
+			System.gc();
+		}
+		assertTrue(FastTrack.tidCount() - before < 100);
+		FastTrack.write(o, "test"); // Each reader was joined
+	}
+
+	@Test public void notAThread(){
+		FastTrack.fork(new Object());
+		FastTrack.join(new Object());
+		FastTrack.acquire(null);
+		FastTrack.release(null);
+	}
+}
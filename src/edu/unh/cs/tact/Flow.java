@@ -0,0 +1,103 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import org.apache.bcel.generic.*;
+
+/**
+Flow holds the pieces shared by the Injector's dataflow passes, which model
+the operand stack as an array of symbolic slots (one per word, top last).
+*/
+class Flow{
+	private Flow(){}
+
+	/** UNKNOWN marks a slot whose value the analysis doesn't track. */
+	static final int UNKNOWN = -1;
+
+	/**
+	shuffle returns the slots after the stack instruction i (other than
+	pop and pop2) moves them, or null on a stack underflow.
+	*/
+	static int[] shuffle(Instruction i, int[] s){
+		int n = s.length;
+		int[] top;
+		int keep;
+		if(i instanceof DUP){
+			keep = 1; top = new int[]{ s(s,1), s(s,1) };
+		}else if(i instanceof DUP_X1){
+			keep = 2; top = new int[]{ s(s,1), s(s,2), s(s,1) };
+		}else if(i instanceof DUP_X2){
+			keep = 3; top = new int[]{ s(s,1), s(s,3), s(s,2), s(s,1) };
+		}else if(i instanceof DUP2){
+			keep = 2; top = new int[]{ s(s,2), s(s,1), s(s,2), s(s,1) };
+		}else if(i instanceof DUP2_X1){
+			keep = 3; top = new int[]{ s(s,2), s(s,1), s(s,3), s(s,2), s(s,1) };
+		}else if(i instanceof DUP2_X2){
+			keep = 4; top = new int[]{ s(s,2), s(s,1), s(s,4), s(s,3), s(s,2), s(s,1) };
+		}else if(i instanceof SWAP){
+			keep = 2; top = new int[]{ s(s,1), s(s,2) };
+		}else{
+			throw new AssertionError("Unknown stack instruction: " + i);
+		}
+		if(keep > n)
+			return null;
+		int[] r = Arrays.copyOf(s, n - keep + top.length);
+		System.arraycopy(top, 0, r, n - keep, top.length);
+		return r;
+	}
+
+	/** isShuffle is true for the stack instructions that shuffle handles. */
+	static boolean isShuffle(Instruction i){
+		return i instanceof StackInstruction && !(i instanceof POP) && !(i instanceof POP2);
+	}
+
+	/** s returns the k-th slot from the top of the stack, or UNKNOWN past the bottom. */
+	private static int s(int[] stack, int k){
+		int i = stack.length - k;
+		return i < 0 ? UNKNOWN : stack[i];
+	}
+
+	/** successors returns the instructions that may run after h, not counting exception handlers. */
+	static List<InstructionHandle> successors(InstructionHandle h){
+		List<InstructionHandle> r = new ArrayList<InstructionHandle>(2);
+		Instruction i = h.getInstruction();
+		if(i instanceof BranchInstruction){
+			r.add(((BranchInstruction)i).getTarget());
+			if(i instanceof Select)
+				r.addAll(Arrays.asList(((Select)i).getTargets()));
+		}
+		if(i instanceof UnconditionalBranch || i instanceof Select
+				|| i instanceof ReturnInstruction || i instanceof ATHROW)
+			return r;
+		if(h.getNext() != null)
+			r.add(h.getNext());
+		return r;
+	}
+
+	/** hasSubroutines is true if list uses jsr/ret, which the passes don't model. */
+	static boolean hasSubroutines(InstructionList list){
+		for(InstructionHandle h = list.getStart(); h != null; h = h.getNext()){
+			Instruction i = h.getInstruction();
+			if(i instanceof JsrInstruction || i instanceof RET)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	subjectDepth returns how many stack slots lie above the object that
+	the field or array access i works on, or -1 if i isn't one.
+	*/
+	static int subjectDepth(Instruction i, ConstantPoolGen cp){
+		if(i instanceof GETFIELD || i instanceof ARRAYLENGTH)
+			return 0;
+		if(i instanceof PUTFIELD)
+			return ((PUTFIELD)i).getType(cp).getSize();
+		if(i instanceof ArrayInstruction){
+			if(i.consumeStack(cp) == 2)
+				return 1; // a load: array, index
+			return 1 + ((ArrayInstruction)i).getType(cp).getSize();
+		}
+		return -1;
+	}
+}
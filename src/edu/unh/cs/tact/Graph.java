@@ -0,0 +1,149 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+Graph walks the objects reachable from a root, for Checker's methods that
+transfer or guard a whole structure at once. It follows the instance
+fields of the program's classes, the elements of arrays, and the elements,
+keys and values of java.util collections and maps, including the
+program's own classes that extend them. Other JDK objects are
+visited but not looked into, and objects of java.lang classes (strings,
+boxes, classes, enums, threads) are shared too widely to visit at all.
+<p>
+A class's fields are found once and cached. Outer-instance references
+(this$0) aren't followed, since giving away an inner object rarely means
+giving away its outer one, and neither are tact's own injected fields.
+*/
+class Graph{
+	private Graph(){}
+
+	/** A Visitor is shown each object in a graph, and says whether to follow its references. */
+	interface Visitor{
+		boolean visit(Object o);
+	}
+
+	/** fields holds each class's fields, in the class itself, so a loader that's let go isn't kept. */
+	private static final ClassValue<Field[]> fields = new ClassValue<Field[]>(){
+		@Override protected Field[] computeValue(Class<?> c){
+			return findFields(c);
+		}
+	};
+
+	/**
+	walk shows v each object reachable from root by at most depth
+	references, once, but not root itself. If types isn't empty, objects
+	that aren't arrays or instances of one of them are neither shown nor
+	followed.
+	*/
+	static void walk(Object root, int depth, Class<?>[] types, Visitor v){
+		Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+		seen.put(root, true);
+		Deque<Object> objs = new ArrayDeque<Object>();
+		Deque<Integer> depths = new ArrayDeque<Integer>();
+		objs.push(root);
+		depths.push(0);
+		List<Object> refs = new ArrayList<Object>();
+		while(!objs.isEmpty()){
+			Object o = objs.pop();
+			int d = depths.pop();
+			if(d >= depth)
+				continue;
+
+			refs.clear();
+			referents(o, refs);
+			for(Object r : refs){
+				if(r == null || seen.containsKey(r) || !included(r, types))
+					continue;
+				seen.put(r, true);
+				if(v.visit(r)){
+					objs.push(r);
+					depths.push(d + 1);
+				}
+			}
+		}
+	}
+
+	/** isVisitable is false for the objects walk never shows a Visitor. */
+	static boolean isVisitable(Object o){
+		Class<?> c = o.getClass();
+		return c.isArray() || !c.getName().startsWith("java.lang.");
+	}
+
+	private static boolean included(Object o, Class<?>[] types){
+		Class<?> c = o.getClass();
+		if(!isVisitable(o))
+			return false;
+		if(types.length == 0 || c.isArray())
+			return true;
+		for(Class<?> t : types)
+			if(t.isInstance(o))
+				return true;
+		return false;
+	}
+
+	/** referents adds the objects that o refers to directly to refs. */
+	private static void referents(Object o, List<Object> refs){
+		Class<?> c = o.getClass();
+		if(c.isArray()){
+			if(!c.getComponentType().isPrimitive())
+				refs.addAll(Arrays.asList((Object[])o));
+			return;
+		}
+		boolean jdk = isJDK(c);
+		if(o instanceof Collection && (jdk || extendsUtil(c))){
+			refs.addAll((Collection<?>)o);
+		}else if(o instanceof Map && (jdk || extendsUtil(c))){
+			for(Map.Entry<?, ?> e : ((Map<?, ?>)o).entrySet()){
+				refs.add(e.getKey());
+				refs.add(e.getValue());
+			}
+		}
+		if(jdk)
+			return;
+
+		for(Field f : fieldsOf(c)){
+			try{
+				refs.add(f.get(o));
+			}catch(IllegalAccessException e){
+				throw new AssertionError(e); // They're all made accessible
+			}
+		}
+	}
+
+	private static boolean isJDK(Class<?> c){
+		String n = c.getName();
+		return n.startsWith("java.") || n.startsWith("javax.")
+			|| n.startsWith("sun.") || n.startsWith("jdk.");
+	}
+
+	/** extendsUtil is true if the nearest JDK superclass of c is in java.util, whose contents walk follows. */
+	private static boolean extendsUtil(Class<?> c){
+		Class<?> k = c;
+		while(k != null && !isJDK(k))
+			k = k.getSuperclass();
+		return k != null && k.getName().startsWith("java.util.");
+	}
+
+	/** fieldsOf returns the reference fields that objects of c have, in c and its superclasses. */
+	private static Field[] fieldsOf(Class<?> c){
+		return fields.get(c);
+	}
+
+	private static Field[] findFields(Class<?> c){
+		List<Field> l = new ArrayList<Field>();
+		for(Class<?> k = c; k != null && !isJDK(k); k = k.getSuperclass()){
+			for(Field f : k.getDeclaredFields()){
+				if(Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive())
+					continue;
+				if(f.getName().startsWith("this$") || f.getName().startsWith("tact$"))
+					continue;
+				f.setAccessible(true);
+				l.add(f);
+			}
+		}
+		return l.toArray(new Field[l.size()]);
+	}
+}
@@ -0,0 +1,151 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+HandoffExecutor wraps an ExecutorService so that its tasks move between
+threads the way Checker expects. Submitting a task hands it, and what it
+refers to, from the submitting Thread to the pool Thread that runs it;
+a submitted Callable's result is handed back the same way, to the Thread
+that gets it from the Future.
+<p>
+Between submitting and running, and between returning and getting, the
+objects belong to neither Thread, so a submitter that keeps using what
+it gave away is caught even when the task hasn't started yet. Each task
+has its own owner while in transit, and nothing is locked beyond what
+Checker's tables already do per object.
+<p>
+The objects handed over are found as in Checker.releaseGraph, so only
+those the giving Thread owns, or that have no owner, are moved. A task
+that captures a long-lived object, such as the service that submits it,
+would give that away too; limit the depth or list the types to move.
+Checker.init() must have been called, as for Checker's other methods.
+*/
+public class HandoffExecutor extends AbstractExecutorService{
+	private final ExecutorService pool;
+	private final int depth;
+	private final Class<?>[] types;
+
+	/** HandoffExecutor hands over everything reachable from each task and result. */
+	public HandoffExecutor(ExecutorService pool){
+		this(pool, Checker.ALL);
+	}
+
+	/**
+	HandoffExecutor hands over the objects reachable by at most depth
+	references from each task and result. If types are given, only arrays
+	and instances of types are handed over.
+	*/
+	public HandoffExecutor(ExecutorService pool, int depth, Class<?>... types){
+		this.pool = notNull(pool, "pool");
+		this.depth = depth;
+		this.types = types.clone();
+	}
+
+	@Override public void execute(Runnable task){
+		if(task instanceof Handoff){
+			pool.execute(task); // Already handed off by newTaskFor
+			return;
+		}
+		pool.execute(new Executed(notNull(task, "task")));
+	}
+
+	@Override protected <T> RunnableFuture<T> newTaskFor(Runnable task, T value){
+		return new Handoff<T>(task, value);
+	}
+
+	@Override protected <T> RunnableFuture<T> newTaskFor(Callable<T> task){
+		return new Handoff<T>(task);
+	}
+
+	/**
+	An Executed is a task given to execute, in transit. Nothing gets its
+	result, so it runs the task without catching what it throws, and the
+	pool Thread's uncaught-exception handler sees it, as without tact.
+	*/
+	private class Executed implements Runnable{
+		private final Runnable task;
+		private final WeakReference<Thread> in = Checker.newTransit();
+
+		Executed(Runnable task){
+			this.task = task;
+			Checker.handOff(task, depth, types, in);
+		}
+
+		@Override public void run(){
+			Checker.takeOver(task, depth, types, in);
+			task.run();
+		}
+	}
+
+	/**
+	A Handoff is a task in transit, from submit or invoke. It's made on the submitting Thread, and
+	run on the pool Thread; the Thread that gets its result takes that
+	over.
+	*/
+	private class Handoff<T> extends FutureTask<T>{
+		private final Object task;
+		private final WeakReference<Thread> in = Checker.newTransit();
+		private final WeakReference<Thread> out = Checker.newTransit();
+
+		Handoff(Callable<T> task){
+			super(task);
+			this.task = task;
+			Checker.handOff(task, depth, types, in);
+		}
+
+		Handoff(Runnable task, T value){
+			super(task, value);
+			this.task = task;
+			Checker.handOff(task, depth, types, in);
+		}
+
+		@Override public void run(){
+			Checker.takeOver(task, depth, types, in);
+			super.run();
+		}
+
+		@Override protected void set(T v){
+			Checker.handOff(v, depth, types, out);
+			super.set(v);
+		}
+
+		@Override public T get() throws InterruptedException, ExecutionException{
+			T v = super.get();
+			Checker.takeOver(v, depth, types, out);
+			return v;
+		}
+
+		@Override public T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException{
+			T v = super.get(timeout, unit);
+			Checker.takeOver(v, depth, types, out);
+			return v;
+		}
+	}
+
+	@Override public void shutdown(){
+		pool.shutdown();
+	}
+
+	@Override public List<Runnable> shutdownNow(){
+		return pool.shutdownNow();
+	}
+
+	@Override public boolean isShutdown(){
+		return pool.isShutdown();
+	}
+
+	@Override public boolean isTerminated(){
+		return pool.isTerminated();
+	}
+
+	@Override public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException{
+		return pool.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,162 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HandoffExecutorTest{
+	private ExecutorService pool;
+
+	@Before public void setUp(){
+		pool = new HandoffExecutor(Executors.newSingleThreadExecutor());
+	}
+
+	@After public void tearDown() throws InterruptedException{
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	private static class Box{
+		Object value;
+
+		Box(Object value){
+			this.value = value;
+		}
+	}
+
+	@Test public void submitHandsOverTask() throws Exception{
+		final int[] data = new int[1];
+		final Box b = new Box(data);
+		Checker.check(b);
+		Checker.check(data);
+
+		pool.submit(new Runnable(){
+			public void run(){
+				Checker.check(b);
+				Checker.check(data);
+			}
+		}).get();
+
+		assertCheckFails(b); // The pool thread owns it now
+		assertCheckFails(data);
+	}
+
+	@Test public void executeHandsOverTask() throws Exception{
+		final Box b = new Box(null);
+		Checker.check(b);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Throwable[] err = new Throwable[1];
+
+		pool.execute(new Runnable(){
+			public void run(){
+				try{
+					Checker.check(b);
+				}catch(Throwable t){
+					err[0] = t;
+				}
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertNull(err[0]);
+	}
+
+	@Test public void executeDoesNotHideErrors() throws Exception{
+		final CountDownLatch done = new CountDownLatch(1);
+		final Throwable[] err = new Throwable[1];
+		ExecutorService p = new HandoffExecutor(Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r);
+				t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler(){
+					public void uncaughtException(Thread t, Throwable e){
+						err[0] = e;
+						done.countDown();
+					}
+				});
+				return t;
+			}
+		}));
+		p.execute(new Runnable(){
+			public void run(){
+				throw new IllegalAccessError("from the task");
+			}
+		});
+		try{
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertTrue(err[0] instanceof IllegalAccessError);
+			assertEquals("from the task", err[0].getMessage());
+		}finally{
+			p.shutdown();
+		}
+	}
+
+	@Test public void getTakesResult() throws Exception{
+		Future<Box> f = pool.submit(new Callable<Box>(){
+			public Box call(){
+				Box b = new Box(new int[1]);
+				Checker.check(b);
+				Checker.check(b.value);
+				return b;
+			}
+		});
+		Box b = f.get();
+		Checker.check(b);
+		Checker.check(b.value);
+	}
+
+	@Test public void inTransit() throws Exception{
+		final CountDownLatch go = new CountDownLatch(1);
+		pool.submit(new Callable<Void>(){ // Keeps the pool's thread busy
+			public Void call() throws InterruptedException{
+				go.await();
+				return null;
+			}
+		});
+
+		final Box b = new Box(null);
+		Checker.check(b);
+		Future<?> f = pool.submit(new Runnable(){
+			public void run(){
+				Checker.check(b);
+			}
+		});
+		try{
+			Checker.check(b); // Given away, though not yet taken
+			fail("the submitter could check what it submitted");
+		}catch(IllegalAccessError e){
+			assertTrue(e.getMessage(), e.getMessage().contains("tact-transit"));
+		}
+		go.countDown();
+		f.get();
+	}
+
+	@Test public void invokeAll() throws Exception{
+		List<Callable<Box>> tasks = new ArrayList<Callable<Box>>();
+		for(int i = 0; i < 3; i++){
+			final Box in = new Box(null);
+			Checker.check(in);
+			tasks.add(new Callable<Box>(){
+				public Box call(){
+					Checker.check(in);
+					return new Box(in);
+				}
+			});
+		}
+		for(Future<Box> f : pool.invokeAll(tasks)){
+			Box b = f.get();
+			Checker.check(b);
+			Checker.check(b.value); // Back again, with the result
+		}
+	}
+
+	private static void assertCheckFails(Object o){
+		try{
+			Checker.check(o);
+		}catch(IllegalAccessError e){
+			return;
+		}
+		fail("this thread could still check " + o);
+	}
+}
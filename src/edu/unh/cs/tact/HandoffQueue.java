@@ -0,0 +1,142 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+HandoffQueue wraps a BlockingQueue so that its elements move from the
+Thread that puts them to the Thread that takes them, the way Checker
+expects. Putting an element gives it, and optionally what it refers to,
+to the queue; taking it gives it to the taker. While an element is in
+the queue, neither Thread may use it, so a producer that keeps writing
+a message it has sent is caught.
+<p>
+Handing an element over adds a lookup and a store, or a compare-and-set
+for injected objects, on each side, and no locks beyond the wrapped
+queue's own. Pick the queue for its locking; a HandoffQueue doesn't
+change it.
+<p>
+Elements are handed over as in Checker.releaseGraph, up to a depth that
+is 0 by default, for the element alone. Elements that the putting
+Thread doesn't own, like a shared end-of-stream marker, are passed
+through as they are. peek and iterating return elements that are still
+in the queue, which may be compared but not used, and elements removed
+other than by poll, take or drainTo stay the queue's.
+Checker.init() must have been called, as for Checker's other methods.
+*/
+public class HandoffQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>{
+	private final BlockingQueue<E> q;
+	private final int depth;
+	private final Class<?>[] types;
+
+	/** in owns the elements in the queue. */
+	private final WeakReference<Thread> in = Checker.newTransit();
+
+	/** HandoffQueue makes a queue of at most capacity elements, which hands over each element alone. */
+	public HandoffQueue(int capacity){
+		this(new ArrayBlockingQueue<E>(capacity), 0);
+	}
+
+	/**
+	HandoffQueue wraps q, and hands over the objects reachable from each
+	element by at most depth references. If types are given, only arrays
+	and instances of types are handed over.
+	*/
+	public HandoffQueue(BlockingQueue<E> q, int depth, Class<?>... types){
+		this.q = notNull(q, "q");
+		this.depth = depth;
+		this.types = types.clone();
+	}
+
+	/** give hands e to the queue, before it goes in, so a taker never sees it still owned. */
+	private void give(E e){
+		if(e == null)
+			throw new NullPointerException(); // As BlockingQueue requires
+		Checker.handOff(e, depth, types, in);
+	}
+
+	/** take hands e, if it isn't null, from the queue to the current Thread. */
+	private E take(E e){
+		if(e != null)
+			Checker.takeOver(e, depth, types, in);
+		return e;
+	}
+
+	@Override public boolean offer(E e){
+		give(e);
+		if(q.offer(e))
+			return true;
+		take(e);
+		return false;
+	}
+
+	@Override public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException{
+		give(e);
+		boolean ok = false;
+		try{
+			ok = q.offer(e, timeout, unit);
+		}finally{
+			if(!ok)
+				take(e);
+		}
+		return ok;
+	}
+
+	@Override public void put(E e) throws InterruptedException{
+		give(e);
+		boolean ok = false;
+		try{
+			q.put(e);
+			ok = true;
+		}finally{
+			if(!ok)
+				take(e);
+		}
+	}
+
+	@Override public E poll(){
+		return take(q.poll());
+	}
+
+	@Override public E poll(long timeout, TimeUnit unit) throws InterruptedException{
+		return take(q.poll(timeout, unit));
+	}
+
+	@Override public E take() throws InterruptedException{
+		return take(q.take());
+	}
+
+	@Override public int drainTo(Collection<? super E> c){
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override public int drainTo(Collection<? super E> c, int max){
+		if(c == this)
+			throw new IllegalArgumentException("draining to itself");
+		List<E> l = new ArrayList<E>();
+		int n = q.drainTo(l, max);
+		for(E e : l)
+			c.add(take(e));
+		return n;
+	}
+
+	@Override public E peek(){
+		return q.peek();
+	}
+
+	@Override public int size(){
+		return q.size();
+	}
+
+	@Override public int remainingCapacity(){
+		return q.remainingCapacity();
+	}
+
+	@Override public Iterator<E> iterator(){
+		return q.iterator();
+	}
+}
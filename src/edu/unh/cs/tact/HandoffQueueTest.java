@@ -0,0 +1,97 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class HandoffQueueTest{
+	private static class Message{
+		final int[] body = new int[1];
+	}
+
+	/** produce makes n messages in another thread, checking them there, and puts them in q. */
+	private static void produce(final BlockingQueue<Message> q, final int n) throws InterruptedException{
+		final Throwable[] err = new Throwable[1];
+		Thread t = new Thread(){
+			public void run(){
+				try{
+					for(int i = 0; i < n; i++){
+						Message m = new Message();
+						Checker.check(m);
+						Checker.check(m.body);
+						q.put(m);
+					}
+				}catch(Throwable e){
+					err[0] = e;
+				}
+			}
+		};
+		t.start();
+		t.join();
+		assertNull(err[0]);
+	}
+
+	@Test public void takeClaims() throws InterruptedException{
+		BlockingQueue<Message> q = new HandoffQueue<Message>(4);
+		produce(q, 3);
+		Message m = q.take();
+		Checker.check(m);
+		m = q.poll();
+		Checker.check(m);
+		List<Message> rest = new ArrayList<Message>();
+		assertEquals(1, q.drainTo(rest));
+		Checker.check(rest.get(0));
+		assertNull(q.poll());
+	}
+
+	@Test public void graph() throws InterruptedException{
+		BlockingQueue<Message> q = new HandoffQueue<Message>(new LinkedBlockingQueue<Message>(), 1);
+		produce(q, 1);
+		Message m = q.take();
+		Checker.check(m);
+		Checker.check(m.body);
+	}
+
+	@Test public void bodyStays() throws InterruptedException{
+		BlockingQueue<Message> q = new HandoffQueue<Message>(4);
+		produce(q, 1);
+		Message m = q.take();
+		Checker.check(m);
+		try{
+			Checker.check(m.body); // Depth 0 hands over the message alone
+			fail("took more than the message");
+		}catch(IllegalAccessError e){
+		}
+	}
+
+	@Test public void inQueue() throws InterruptedException{
+		BlockingQueue<Message> q = new HandoffQueue<Message>(4);
+		Message m = new Message();
+		Checker.check(m);
+		q.put(m);
+		try{
+			Checker.check(m);
+			fail("used a message after sending it");
+		}catch(IllegalAccessError e){
+			assertTrue(e.getMessage(), e.getMessage().contains("tact-transit"));
+		}
+		assertSame(m, q.peek());
+	}
+
+	@Test public void fullGivesBack(){
+		BlockingQueue<Message> q = new HandoffQueue<Message>(1);
+		Message a = new Message(), b = new Message();
+		Checker.check(a);
+		Checker.check(b);
+		assertTrue(q.offer(a));
+		assertFalse(q.offer(b));
+		Checker.check(b);
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void noNulls(){
+		new HandoffQueue<Message>(1).offer(null);
+	}
+}
@@ -0,0 +1,113 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.security.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+InjectCache keeps injected class files in a directory, named by a hash of
+the original class file and the configuration it was injected with, so
+a class that hasn't changed since the last run isn't injected again.
+<p>
+A class's checks also depend on the fields it uses from other classes:
+whether they're final or volatile, and their @GuardedBy annotations.
+Main folds those into the key, so a class is injected again when a
+field it uses changes, even if the class itself hasn't.
+*/
+class InjectCache{
+	/** VERSION is part of every key; bump it when injection changes. */
+	static final String VERSION = "8";
+
+	private final File dir;
+	private final String config;
+
+	public InjectCache(File dir, String config) throws IOException{
+		this.dir = notNull(dir, "dir");
+		this.config = VERSION + " " + notNull(config, "config");
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("I failed to create the cache \"" + dir + "\"");
+	}
+
+	/** key names the injected form of classfile. */
+	public String key(byte[] classfile){
+		return key(classfile, "");
+	}
+
+	/**
+	key names the injected form of classfile, given deps, which describes
+	what its injection depends on outside of it.
+	*/
+	public String key(byte[] classfile, String deps){
+		MessageDigest md;
+		try{
+			md = MessageDigest.getInstance("SHA-1");
+		}catch(NoSuchAlgorithmException e){
+			throw new AssertionError(e); // Every JVM has SHA-1
+		}
+		try{
+			md.update(config.getBytes("UTF-8"));
+		}catch(UnsupportedEncodingException e){
+			throw new AssertionError(e);
+		}
+		md.update((byte)0);
+		md.update(classfile);
+		if(!deps.isEmpty()){
+			md.update((byte)0);
+			try{
+				md.update(deps.getBytes("UTF-8"));
+			}catch(UnsupportedEncodingException e){
+				throw new AssertionError(e);
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for(byte b : md.digest())
+			sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+
+	/** get returns the class file stored under key, or null if there isn't one. */
+	public byte[] get(String key) throws IOException{
+		File f = fileFor(key);
+		if(!f.isFile())
+			return null;
+
+		InputStream in = null;
+		try{
+			in = new FileInputStream(f);
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int)f.length());
+			byte[] buf = new byte[8192];
+			int n;
+			while((n = in.read(buf)) != -1)
+				out.write(buf, 0, n);
+			return out.toByteArray();
+		}catch(FileNotFoundException e){
+			return null; // Removed since we looked
+		}finally{
+			if(in != null) in.close();
+		}
+	}
+
+	/**
+	put stores classfile under key. It is written to a temporary file and
+	renamed into place, so concurrent runs never see half of one.
+	*/
+	public void put(String key, byte[] classfile) throws IOException{
+		File tmp = File.createTempFile(key, ".tmp", dir);
+		OutputStream out = null;
+		try{
+			out = new FileOutputStream(tmp);
+			out.write(classfile);
+		}finally{
+			if(out != null) out.close();
+		}
+		if(!tmp.renameTo(fileFor(key)))
+			tmp.delete(); // Someone else stored it first
+	}
+
+	private File fileFor(String key){
+		return new File(dir, key + ".class");
+	}
+}
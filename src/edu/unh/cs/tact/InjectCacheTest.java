@@ -0,0 +1,137 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+import java.io.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+public class InjectCacheTest{
+	@Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+	@After public void tearDown(){
+		Main.cache = null;
+	}
+
+	/** dummy returns a class whose one method allocates an Object. */
+	private static JavaClass dummy(){
+		ClassGen cg = new ClassGen("Dummy", "java.lang.Object", "Dummy.java",
+			Constants.ACC_PUBLIC, new String[0]);
+		ConstantPoolGen cp = cg.getConstantPool();
+		InstructionFactory f = new InstructionFactory(cg, cp);
+		InstructionList il = new InstructionList();
+		il.append(f.createNew("java.lang.Object"));
+		il.append(new POP());
+		il.append(new RETURN());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.VOID,
+			Type.NO_ARGS, new String[0], "m", "Dummy", il, cp);
+		mg.setMaxStack();
+		mg.setMaxLocals();
+		cg.addMethod(mg.getMethod());
+		return cg.getJavaClass();
+	}
+
+	/** dep returns a class Dep with a static int x, declared with access and guarded by guard if it isn't null. */
+	private static JavaClass dep(int access, String guard){
+		ClassGen cg = new ClassGen("Dep", "java.lang.Object", "Dep.java",
+			Constants.ACC_PUBLIC, new String[0]);
+		ConstantPoolGen cp = cg.getConstantPool();
+		FieldGen fg = new FieldGen(access | Constants.ACC_STATIC, Type.INT, "x", cp);
+		if(guard != null){
+			AnnotationEntryGen a = new AnnotationEntryGen(new ObjectType("edu.unh.cs.tact.GuardedBy"),
+				new java.util.ArrayList<ElementValuePairGen>(), true, cp);
+			a.addElementNameValuePair(new ElementValuePairGen("value",
+				new SimpleElementValueGen(ElementValueGen.STRING, cp, guard), cp));
+			fg.addAnnotationEntry(a);
+		}
+		cg.addField(fg.getField());
+		return cg.getJavaClass();
+	}
+
+	/** user returns a class whose one method reads Dep.x. */
+	private static JavaClass user(){
+		ClassGen cg = new ClassGen("User", "java.lang.Object", "User.java",
+			Constants.ACC_PUBLIC, new String[0]);
+		ConstantPoolGen cp = cg.getConstantPool();
+		InstructionFactory f = new InstructionFactory(cg, cp);
+		InstructionList il = new InstructionList();
+		il.append(f.createGetStatic("Dep", "x", Type.INT));
+		il.append(new POP());
+		il.append(new RETURN());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.VOID,
+			Type.NO_ARGS, new String[0], "m", "User", il, cp);
+		mg.setMaxStack();
+		mg.setMaxLocals();
+		cg.addMethod(mg.getMethod());
+		return cg.getJavaClass();
+	}
+
+	@Test public void depsFollowFields(){
+		JavaClass u = user();
+		java.util.Set<String> seen = new java.util.HashSet<String>();
+		JavaClass[] deps = {
+			dep(0, null),
+			dep(Constants.ACC_FINAL, null),
+			dep(Constants.ACC_VOLATILE, null),
+			dep(0, "this"),
+			dep(0, "Dep.class"),
+		};
+		try{
+			for(JavaClass d : deps){
+				Repository.addClass(d);
+				assertTrue(seen.add(Injector.fieldDeps(u)));
+			}
+		}finally{
+			Repository.removeClass("Dep");
+		}
+	}
+
+	@Test public void roundTrip() throws Exception{
+		InjectCache c = new InjectCache(tmp.newFolder("cache"), "");
+		byte[] b = { 1, 2, 3 };
+		String k = c.key(b);
+		assertNull(c.get(k));
+		c.put(k, b);
+		assertArrayEquals(b, c.get(k));
+	}
+
+	@Test public void keyHasConfig() throws Exception{
+		File dir = tmp.newFolder("cache");
+		byte[] b = { 1, 2, 3 };
+		assertEquals(new InjectCache(dir, "").key(b), new InjectCache(dir, "").key(b));
+		assertFalse(new InjectCache(dir, "").key(b).equals(new InjectCache(dir, "inline").key(b)));
+		assertFalse(new InjectCache(dir, "").key(b).equals(new InjectCache(dir, "").key(new byte[]{ 1, 2 })));
+		assertEquals(new InjectCache(dir, "").key(b), new InjectCache(dir, "").key(b, ""));
+		assertFalse(new InjectCache(dir, "").key(b, "A.x=;").equals(new InjectCache(dir, "").key(b, "A.x=v;")));
+	}
+
+	@Test public void marked() throws Exception{
+		JavaClass jc = dummy();
+		assertFalse(Main.isInjected(jc));
+		JavaClass injected = Main.inject(jc);
+		assertTrue(Main.isInjected(injected));
+		assertSame(injected, Main.inject(injected));
+	}
+
+	@Test public void markSurvivesDump() throws Exception{
+		byte[] b = Main.inject(dummy().getBytes(), "Dummy.class", false);
+		assertArrayEquals(b, Main.inject(b, "Dummy.class", false));
+	}
+
+	@Test public void fromCache() throws Exception{
+		Main.cache = new InjectCache(tmp.newFolder("cache"), Main.config());
+		JavaClass jc = dummy();
+		byte[] orig = jc.getBytes();
+		String key = Main.cache.key(orig, Injector.fieldDeps(jc));
+		byte[] b = Main.inject(orig, "Dummy.class", false);
+		assertArrayEquals(b, Main.cache.get(key));
+
+		byte[] fake = { 0xC, 0xA, 0xF, 0xE };
+		Main.cache.put(key, fake);
+		assertArrayEquals(fake, Main.inject(orig, "Dummy.class", false));
+	}
+}
@@ -21,18 +21,69 @@ class Injector{
 		this.cp = notNull(cp, "cp");
 	}
 
+	/** removed is the number of redundant checks that inject left out. */
+	public int removed = 0;
+
+	/** unescaped is the number of checks left out because their objects never leave the method. */
+	public int unescaped = 0;
+
+	/** hoisted is the number of checks that are asked once before a loop, instead of on every trip. */
+	public int hoisted = 0;
+
+	/** sample is N when each site should make only 1 in N of its checks. */
+	public int sample = 1;
+
+	/**
+	sampleFields collects the names of the static int fields that hold each
+	sampled site's id. The class must declare them.
+	*/
+	public List<String> sampleFields = new ArrayList<String>();
+
+	/** OWNERSHIP is the engine that checks that each object is used only by its owner, or under its guard. */
+	static final String OWNERSHIP = "edu.unh.cs.tact.Checker";
+
+	/** FASTTRACK is the engine that reports accesses that no synchronization orders. */
+	static final String FASTTRACK = "edu.unh.cs.tact.FastTrack";
+
+	/** ERASER is the engine that infers each field's guard from the locks held when it's used. */
+	static final String ERASER = "edu.unh.cs.tact.Eraser";
+
+	/** ENGINES maps the names that -engine takes to the engines. */
+	static final Map<String, String> ENGINES = new LinkedHashMap<String, String>();
+	static{
+		ENGINES.put("ownership", OWNERSHIP);
+		ENGINES.put("fasttrack", FASTTRACK);
+		ENGINES.put("eraser", ERASER);
+	}
+
+	/**
+	engine is the class whose methods the injected code calls. Engines
+	other than OWNERSHIP take reads and writes instead of checks, ignore
+	@GuardedBy, and are also told of the method's synchronization.
+	*/
+	public String engine = OWNERSHIP;
+
 	public boolean inject(){
 		if(mg.getName().equals("finalize"))
 			return false;
 
-		boolean changed = false;
+		boolean synced = !engine.equals(OWNERSHIP) && synchronize();
+
+		EscapeAnalysis escape = new EscapeAnalysis(mg, cp).run();
+		Map<InstructionHandle, Site> sites = new LinkedHashMap<InstructionHandle, Site>();
+		int line = -1;
 		for(InstructionHandle h = list.getStart(); h != null; h = h.getNext()){
+			for(InstructionTargeter t : h.getTargeters())
+				if(t instanceof LineNumberGen)
+					line = ((LineNumberGen)t).getSourceLine();
+
 			if(isCallToCheckerInit(h)){
-				try{
-					list.delete(h);
-				}catch(TargetLostException e){
-					// Nobody cares
-				}
+				// Deleting would return the handle to BCEL's global,
+				// unsynchronized free list, which parallel injection can't share.
+				if(engine.equals(OWNERSHIP))
+					h.setInstruction(new NOP());
+				else
+					h.setInstruction(f.createInvoke(engine, "init", Type.VOID, Type.NO_ARGS, Constants.INVOKESTATIC));
 				continue;
 			}
 
@@ -44,7 +95,50 @@ class Injector{
 			if(chk == null)
 				continue;
 
-			ins.insert(chk);
+			if(isInitPutThis(h, chk))
+				continue;
+
+			if(chk instanceof Strict
+					&& (escape.isLocalAlloc(h) || escape.isLocalAccess(h))){
+				unescaped++;
+				continue;
+			}
+
+			sites.put(h, new Site(ins, chk, siteName(line)));
+		}
+
+		Map<InstructionHandle, String> kinds = new HashMap<InstructionHandle, String>();
+		Map<String, String> implies = new HashMap<String, String>();
+		for(Map.Entry<InstructionHandle, Site> e : sites.entrySet()){
+			Check chk = e.getValue().chk;
+			kinds.put(e.getKey(), chk.kind());
+			if(chk.implied() != null)
+				implies.put(chk.kind(), chk.implied());
+		}
+		RedundantChecks rc = new RedundantChecks(mg, cp);
+		Set<InstructionHandle> redundant = rc.find(kinds, implies);
+		sites.keySet().removeAll(redundant);
+		removed += redundant.size();
+
+		Map<InstructionHandle, Integer> flags = hoist(sites, rc);
+
+		boolean changed = synced || !flags.isEmpty();
+		for(Map.Entry<InstructionHandle, Site> e : sites.entrySet()){
+			InstructionHandle h = e.getKey();
+			InstructionHandle prev = h.getPrev(), next = h.getNext();
+			Site s = e.getValue();
+			s.ins.insert(s.chk, s.name);
+			InstructionHandle start = prev == null ? list.getStart() : prev.getNext();
+			if(sample > 1){
+				if(start != h)
+					start = sample(start, h);
+				else
+					sample(h.getNext(), next); // inserted after h
+			}
+			Integer flag = flags.get(h);
+			if(flag != null)
+				start = skipIf(flag, start, h);
+			retarget(h, start);
 			changed = true;
 		}
 
@@ -54,6 +148,416 @@ class Injector{
 		return changed;
 	}
 
+	/** siteName names a check at line of this method, for violation messages. */
+	private String siteName(int line){
+		String name = mg.getClassName() + "." + mg.getName();
+		return line < 0 ? name : name + ":" + line;
+	}
+
+	/**
+	synchronize tells the engine about the method's synchronization: just
+	after a monitor is entered or a volatile field is read, just before a
+	monitor is exited or a volatile field is written, and likewise around
+	a synchronized method, a wait, a Thread's start and join, and a call
+	on a java.util.concurrent object. It returns true if it changed
+	anything.
+	*/
+	private boolean synchronize(){
+		boolean changed = false;
+		InstructionHandle next;
+		for(InstructionHandle h = list.getStart(); h != null; h = next){
+			next = h.getNext(); // Skips what's inserted after h
+			Instruction i = h.getInstruction();
+			if(i instanceof MONITORENTER){
+				retarget(h, list.insert(h, new DUP()));
+				list.append(h, hook("acquire"));
+				changed = true;
+			}else if(i instanceof MONITOREXIT){
+				InstructionList il = new InstructionList(new DUP());
+				il.append(hook("release"));
+				retarget(h, list.insert(h, il));
+				changed = true;
+			}else if(i instanceof FieldInstruction){
+				changed |= synchronizeVolatile(h, (FieldInstruction)i);
+			}else if(i instanceof INVOKEVIRTUAL || i instanceof INVOKEINTERFACE){
+				changed |= synchronizeCall(h, (InvokeInstruction)i);
+			}
+		}
+
+		if(mg.isSynchronized() && list.getStart() != null){
+			synchronizeMethod();
+			changed = true;
+		}
+		return changed;
+	}
+
+	/** hook returns a call to the engine's method name, which takes an object. */
+	private Instruction hook(String name){
+		return f.createInvoke(engine, name, Type.VOID, new Type[]{ Type.OBJECT }, Constants.INVOKESTATIC);
+	}
+
+	/** newLocal returns a new local variable of type t. */
+	private int newLocal(Type t){
+		int n = mg.getMaxLocals();
+		mg.setMaxLocals(n + t.getSize());
+		return n;
+	}
+
+	/**
+	synchronizeMethod acquires a synchronized method's monitor when it's
+	entered, and releases it before each return and before an exception
+	is thrown out of it.
+	*/
+	private void synchronizeMethod(){
+		InstructionHandle start = list.getStart(), end = list.getEnd();
+		int lock = -1;
+		if(!mg.isStatic())
+			lock = newLocal(Type.OBJECT); // In case local 0 is reused
+
+		for(InstructionHandle h = start; h != null; h = h.getNext()){
+			if(!(h.getInstruction() instanceof ReturnInstruction))
+				continue;
+			InstructionList il = new InstructionList(monitor(lock));
+			il.append(hook("release"));
+			retarget(h, list.insert(h, il));
+		}
+
+		InstructionList il = new InstructionList();
+		if(lock >= 0){
+			il.append(new ALOAD(0));
+			il.append(new ASTORE(lock));
+		}
+		il.append(monitor(lock));
+		il.append(hook("acquire"));
+		list.insert(il);
+
+		InstructionHandle handler = list.append(monitor(lock));
+		list.append(hook("release"));
+		list.append(new ATHROW());
+		mg.addExceptionHandler(start, end, handler, null);
+	}
+
+	/** monitor pushes the method's monitor: this, kept in local lock, or the class if lock is negative. */
+	private Instruction monitor(int lock){
+		if(lock < 0)
+			return new LDC_W(cp.addClass(mg.getClassName()));
+		return new ALOAD(lock);
+	}
+
+	/**
+	synchronizeVolatile releases the object or class whose volatile field
+	h writes, before the write, and acquires the one whose volatile field
+	it reads, after the read. It returns false if the field isn't volatile.
+	*/
+	private boolean synchronizeVolatile(InstructionHandle h, FieldInstruction fi){
+		if(fi.getFieldName(cp).equals("this$0"))
+			return false;
+		JavaClass jc = classFor(fi);
+		Field field = jc == null ? null : fieldFor(jc, fi);
+		if(field == null || !field.isVolatile())
+			return false;
+
+		Check sync = new Check(){
+			public void insert(InstructionHandle h, String site){
+				list.insert(h, hook("volatileWrite"));
+			}
+
+			public String kind(){
+				return "volatileWrite";
+			}
+
+			public String implied(){
+				return null;
+			}
+
+			public InstructionList probe(){
+				return null;
+			}
+		};
+		InstructionHandle prev = h.getPrev();
+		if(fi instanceof PUTFIELD){
+			checkPutRef(fi, h).insert(sync, null);
+		}else if(fi instanceof PUTSTATIC){
+			checkStatic(fi, h).insert(sync, null);
+		}else if(fi instanceof GETFIELD){
+			list.insert(h, new DUP());
+			InstructionList il = new InstructionList();
+			if(fi.getType(cp).getSize() == 1){
+				il.append(new SWAP());
+			}else{
+				il.append(new DUP2_X1());
+				il.append(new POP2());
+			}
+			il.append(hook("volatileRead"));
+			list.append(h, il);
+		}else{
+			int c = ((ConstantFieldref)cp.getConstant(fi.getIndex())).getClassIndex();
+			InstructionList il = new InstructionList(new LDC_W(c));
+			il.append(hook("volatileRead"));
+			list.append(h, il);
+		}
+		retarget(h, prev == null ? list.getStart() : prev.getNext());
+		return true;
+	}
+
+	/**
+	synchronizeCall tells the engine about the call at h, if it's one that
+	synchronizes. Only calls on an object are hooked. Object.wait calls
+	release before it and acquire after it. Thread.start calls fork before
+	it, and Thread.join calls join after it. A java.util.concurrent.locks
+	lock or lockInterruptibly, or a tryLock that succeeds, calls acquire
+	after it, and unlock calls release before it. Any other call on a
+	class of java.util.concurrent or its packages, except those in
+	UNSYNCHRONIZED, calls volatileWrite before it and volatileRead after
+	it. Each hook is passed the call's object. It returns false if the
+	call isn't hooked.
+	*/
+	private boolean synchronizeCall(InstructionHandle h, InvokeInstruction call){
+		String name = call.getMethodName(cp), sig = call.getSignature(cp);
+		boolean waitSig = sig.equals("()V") || sig.equals("(J)V") || sig.equals("(JI)V");
+		if(name.equals("wait") && waitSig){
+			around(h, "release", "acquire", false);
+			return true;
+		}
+		if(name.equals("start") && sig.equals("()V")){
+			around(h, "fork", null, false); // FastTrack.fork checks that it's a Thread
+			return true;
+		}
+		if(name.equals("join") && waitSig){
+			around(h, null, "join", false);
+			return true;
+		}
+
+		ReferenceType rt = call.getReferenceType(cp);
+		if(!(rt instanceof ObjectType))
+			return false;
+		String cls = ((ObjectType)rt).getClassName();
+		if(!cls.startsWith("java.util.concurrent.") || UNSYNCHRONIZED.contains(cls))
+			return false;
+
+		if(cls.startsWith("java.util.concurrent.locks.")){
+			if((name.equals("lock") || name.equals("lockInterruptibly")) && sig.equals("()V")){
+				around(h, null, "acquire", false);
+				return true;
+			}
+			if(name.equals("tryLock") && sig.endsWith(")Z")){
+				around(h, null, "acquire", true);
+				return true;
+			}
+			if(name.equals("unlock") && sig.equals("()V")){
+				around(h, "release", null, false);
+				return true;
+			}
+		}
+		around(h, "volatileWrite", "volatileRead", false);
+		return true;
+	}
+
+	/** UNSYNCHRONIZED has the classes of java.util.concurrent whose calls don't synchronize. */
+	private static final Set<String> UNSYNCHRONIZED = new HashSet<String>(Arrays.asList(
+		"java.util.concurrent.TimeUnit",
+		"java.util.concurrent.ThreadLocalRandom"
+	));
+
+	/**
+	around calls the engine's before method, unless it's null, just before
+	the call at h, and its after method just after, each with the call's
+	object. If ifTrue is set, after is only called if the call returns
+	true. The object and the call's arguments are kept in new locals.
+	*/
+	private void around(InstructionHandle h, String before, String after, boolean ifTrue){
+		InvokeInstruction call = (InvokeInstruction)h.getInstruction();
+		Type[] args = call.getArgumentTypes(cp);
+		int[] locals = new int[args.length];
+		InstructionList il = new InstructionList();
+		for(int i = args.length - 1; i >= 0; i--){
+			locals[i] = newLocal(args[i]);
+			il.append(InstructionFactory.createStore(args[i], locals[i]));
+		}
+		int obj = newLocal(Type.OBJECT);
+		il.append(new DUP());
+		il.append(new ASTORE(obj));
+		if(before != null){
+			il.append(new ALOAD(obj));
+			il.append(hook(before));
+		}
+		for(int i = 0; i < args.length; i++)
+			il.append(InstructionFactory.createLoad(args[i], locals[i]));
+		retarget(h, list.insert(h, il));
+
+		if(after == null)
+			return;
+		il = new InstructionList();
+		BranchHandle skip = null;
+		if(ifTrue){
+			il.append(new DUP());
+			skip = il.append(new IFEQ(null));
+		}
+		il.append(new ALOAD(obj));
+		il.append(hook(after));
+		if(skip != null)
+			skip.setTarget(il.append(new NOP()));
+		list.append(h, il);
+	}
+
+	/**
+	sample makes the check inserted from start up to end run on only 1 in
+	sample visits by each thread. The site's id, from Checker.sampleSite,
+	is kept in a static field of its own, which is only written once, and
+	Checker.skipSite counts down the visits in the thread's own state. The
+	first visit checks. It returns the new start of the check.
+	*/
+	private InstructionHandle sample(InstructionHandle start, InstructionHandle end){
+		String field = "tact$sample$" + sampleFields.size();
+		sampleFields.add(field);
+		String cls = mg.getClassName();
+
+		InstructionHandle skip = list.insert(end, new NOP());
+		InstructionList il = new InstructionList();
+		il.append(f.createGetStatic(cls, field, Type.INT));
+		il.append(new DUP());
+		BranchHandle known = il.append(new IFNE(null));
+		il.append(new POP());
+		il.append(f.createInvoke("edu.unh.cs.tact.Checker", "sampleSite",
+			Type.INT, Type.NO_ARGS, Constants.INVOKESTATIC));
+		il.append(new DUP());
+		il.append(f.createPutStatic(cls, field, Type.INT));
+		known.setTarget(il.append(new PUSH(cp, sample)));
+		il.append(f.createInvoke("edu.unh.cs.tact.Checker", "skipSite",
+			Type.BOOLEAN, new Type[]{ Type.INT, Type.INT }, Constants.INVOKESTATIC));
+		il.append(new IFNE(skip));
+		return list.insert(start, il);
+	}
+
+	/**
+	hoist asks the checks at sites that LoopChecks finds in loops once,
+	before each loop, and keeps the answer in a new int local. It returns
+	those locals, by site: while one is nonzero, the check at its site
+	would pass, so it can be skipped. A check that wouldn't pass before the
+	loop is still made on every trip, so what's reported doesn't change.
+	*/
+	private Map<InstructionHandle, Integer> hoist(Map<InstructionHandle, Site> sites, RedundantChecks rc){
+		Map<InstructionHandle, Integer> flags = new HashMap<InstructionHandle, Integer>();
+		List<InstructionHandle> candidates = new ArrayList<InstructionHandle>();
+		for(Map.Entry<InstructionHandle, Site> e : sites.entrySet())
+			if(e.getValue().chk.probe() != null)
+				candidates.add(e.getKey());
+		if(candidates.isEmpty())
+			return flags;
+
+		Map<InstructionHandle, Integer> subjects = rc.subjects(candidates);
+		Map<InstructionHandle, LoopChecks.Loop> loops = new LoopChecks(mg, cp).find(candidates, subjects);
+		Map<LoopChecks.Loop, Map<String, Integer>> probes =
+			new HashMap<LoopChecks.Loop, Map<String, Integer>>();
+		Map<LoopChecks.Loop, InstructionList> preheaders =
+			new LinkedHashMap<LoopChecks.Loop, InstructionList>();
+		for(InstructionHandle h : candidates){
+			LoopChecks.Loop l = loops.get(h);
+			if(l == null)
+				continue;
+			if(!probes.containsKey(l)){
+				probes.put(l, new HashMap<String, Integer>());
+				preheaders.put(l, new InstructionList());
+			}
+
+			Instruction subject;
+			String key;
+			Instruction i = h.getInstruction();
+			if(i instanceof GETSTATIC || i instanceof PUTSTATIC){
+				int c = ((ConstantFieldref)cp.getConstant(((FieldInstruction)i).getIndex())).getClassIndex();
+				subject = new LDC_W(c);
+				key = "C" + c;
+			}else{
+				subject = new ALOAD(subjects.get(h));
+				key = "L" + subjects.get(h);
+			}
+			Check chk = sites.get(h).chk;
+			key += ":" + chk.kind();
+
+			Integer flag = probes.get(l).get(key);
+			if(flag == null){
+				flag = mg.getMaxLocals();
+				mg.setMaxLocals(flag + 1);
+				probes.get(l).put(key, flag);
+				InstructionList il = preheaders.get(l);
+				il.append(subject);
+				il.append(chk.probe());
+				il.append(new ISTORE(flag));
+			}
+			flags.put(h, flag);
+			hoisted++;
+		}
+
+		for(Map.Entry<LoopChecks.Loop, InstructionList> e : preheaders.entrySet())
+			preheader(e.getKey(), e.getValue());
+		return flags;
+	}
+
+	/**
+	preheader inserts il before l's header, on every way into l from
+	outside it and on none from inside it.
+	*/
+	private void preheader(LoopChecks.Loop l, InstructionList il){
+		InstructionHandle header = l.header, prev = header.getPrev();
+		InstructionHandle start = list.insert(header, il);
+		InstructionHandle back = null;
+		if(prev != null && l.body.contains(prev) && fallsThrough(prev.getInstruction()))
+			back = list.insert(start, new GOTO(header));
+
+		for(InstructionHandle h = list.getStart(); h != null; h = h.getNext()){
+			Instruction i = h.getInstruction();
+			if(i instanceof BranchInstruction && h != back && !l.body.contains(h)
+					&& ((BranchInstruction)i).containsTarget(header))
+				((BranchInstruction)i).updateTarget(header, start);
+		}
+		for(InstructionTargeter t : header.getTargeters()){
+			if(t instanceof LineNumberGen)
+				t.updateTarget(header, start);
+			else if(t instanceof CodeExceptionGen && ((CodeExceptionGen)t).getStartPC() == header)
+				((CodeExceptionGen)t).setStartPC(start);
+		}
+	}
+
+	private static boolean fallsThrough(Instruction i){
+		return !(i instanceof UnconditionalBranch || i instanceof Select
+			|| i instanceof ReturnInstruction || i instanceof ATHROW);
+	}
+
+	/**
+	skipIf makes the check inserted from start up to end run only while
+	the int local flag is zero. It returns the new start of the check.
+	*/
+	private InstructionHandle skipIf(int flag, InstructionHandle start, InstructionHandle end){
+		InstructionHandle skip = list.insert(end, new NOP());
+		InstructionList il = new InstructionList();
+		il.append(new ILOAD(flag));
+		il.append(new IFNE(skip));
+		return list.insert(start, il);
+	}
+
+	/**
+	retarget makes the jumps and exception handlers that lead to h lead to
+	start instead, so that the check inserted from start to h runs on every
+	path to h. Line numbers move too; the ranges that handlers cover don't.
+	*/
+	private void retarget(InstructionHandle h, InstructionHandle start){
+		if(start == h)
+			return;
+		for(InstructionTargeter t : h.getTargeters()){
+			if(t instanceof BranchInstruction || t instanceof LineNumberGen)
+				t.updateTarget(h, start);
+			else if(t instanceof CodeExceptionGen && ((CodeExceptionGen)t).getHandlerPC() == h)
+				((CodeExceptionGen)t).setHandlerPC(start);
+		}
+	}
+
+	/** isInitPutThis is true for stores to this-guarded fields in constructors, which aren't checked. */
+	private boolean isInitPutThis(InstructionHandle h, Check chk){
+		return h.getInstruction() instanceof PUTFIELD
+			&& mg.getName().equals("<init>")
+			&& chk instanceof ThisGuard;
+	}
+
 	private boolean isCallToCheckerInit(InstructionHandle h){
 		Instruction i = h.getInstruction();
 		if(!(i instanceof INVOKESTATIC))
@@ -76,12 +580,40 @@ class Injector{
 	bytecode around chk.insert().
 	*/
 	private interface CheckInserter{
-		void insert(Check chk);
+		void insert(Check chk, String site);
 	}
 
-	/** Each implementation of Check emits a call to one of Check's public methods. */
+	/**
+	Each implementation of Check emits a call to one of the engine's public
+	methods, naming the site it checks.
+	*/
 	private interface Check{
-		void insert(InstructionHandle h);
+		void insert(InstructionHandle h, String site);
+
+		/** kind is equal for checks that are interchangeable on the same object. */
+		String kind();
+
+		/** implied is the kind of the weaker check that this one also makes, or null. */
+		String implied();
+
+		/**
+		probe returns code that takes the checked object and pushes nonzero if
+		the check would pass, with no other effect, or null if the check
+		can't be asked ahead of time.
+		*/
+		InstructionList probe();
+	}
+
+	private static class Site{
+		final CheckInserter ins;
+		final Check chk;
+		final String name;
+
+		Site(CheckInserter ins, Check chk, String name){
+			this.ins = ins;
+			this.chk = chk;
+			this.name = name;
+		}
 	}
 
 	private CheckInserter getInserter(InstructionHandle h){
@@ -106,7 +638,10 @@ class Injector{
 			return checkArrayLoad(h);
 		}
 		if(code instanceof ARRAYLENGTH){
-			return checkGetRef(h);
+			return engine.equals(OWNERSHIP) ? checkGetRef(h) : null; // A length can't race
+		}
+		if(!engine.equals(OWNERSHIP)){
+			return null; // Allocating isn't an access
 		}
 		if(isForNew(code, h)){ // ignore super's ctors
 			return checkConstruct(h);
@@ -120,7 +655,7 @@ class Injector{
 	private Check getCheck(InstructionHandle h){
 		Instruction code = h.getInstruction();
 		if(!(code instanceof FieldInstruction))
-			return new Strict();
+			return new Strict(isRead(code), null);
 
 		FieldInstruction pf = (FieldInstruction)code;
 		JavaClass jc = classFor(pf);
@@ -131,11 +666,17 @@ class Injector{
 		if(f == null)
 			return null;
 
+		if(!engine.equals(OWNERSHIP)){
+			if(f.isFinal() || f.isVolatile())
+				return null; // synchronize handles volatile fields
+			return new Strict(isRead(code), pf.getFieldName(cp));
+		}
+
 		String guard = guardName(f, jc);
 		if(f.isFinal() && guard == null)
 			return null;
 		if(guard == null)
-			return new Strict();
+			return new Strict(isRead(code), null);
 		if(guard.equals("this"))
 			return new ThisGuard();
 		return staticGuard(guard);
@@ -168,6 +709,8 @@ class Injector{
 	private boolean isForNew(Instruction code, InstructionHandle h){
 		if(!(code instanceof INVOKESPECIAL))
 			return false;
+		if(!((INVOKESPECIAL)code).getMethodName(cp).equals("<init>"))
+			return false; // a private or super method
 
 		int stk = 0;
 		while(h != null){
@@ -204,6 +747,49 @@ class Injector{
 		}
 	}
 
+	/**
+	fieldDeps describes what each check on a field that jc refers to is
+	injected by: whether the field is final or volatile, and its guard, as
+	declared by the class that jc names it through.
+	*/
+	static String fieldDeps(JavaClass jc){
+		ConstantPool pool = jc.getConstantPool();
+		StringBuilder sb = new StringBuilder();
+		for(Constant c : pool.getConstantPool()){
+			if(!(c instanceof ConstantFieldref))
+				continue;
+			ConstantFieldref ref = (ConstantFieldref)c;
+			String cls = ref.getClass(pool);
+			ConstantNameAndType nt = (ConstantNameAndType)pool.getConstant(ref.getNameAndTypeIndex());
+			String name = nt.getName(pool);
+			sb.append(cls).append('.').append(name).append('=');
+			JavaClass owner;
+			try{
+				owner = cls.startsWith("[") ? null : Repository.lookupClass(cls);
+			}catch(ClassNotFoundException e){
+				owner = null;
+			}
+			if(owner == null){
+				sb.append("?;");
+				continue;
+			}
+			for(Field f : owner.getFields()){
+				if(!f.getName().equals(name))
+					continue;
+				if(f.isFinal())
+					sb.append('f');
+				if(f.isVolatile())
+					sb.append('v');
+				String guard = guardName(f, owner);
+				if(guard != null)
+					sb.append('@').append(guard);
+				break;
+			}
+			sb.append(';');
+		}
+		return sb.toString();
+	}
+
 	private Field fieldFor(JavaClass jc, FieldInstruction fi){
 		for(Field f : jc.getFields()){
 			if(f.getName().equals(fi.getFieldName(cp)))
@@ -217,9 +803,7 @@ class Injector{
 		if(fieldGuard != null)
 			return fieldGuard;
 
-		String classGuard = guardName(jc.getAnnotationEntries());
-		System.err.printf("class guard = %s\n", classGuard);
-		return classGuard;
+		return guardName(jc.getAnnotationEntries());
 	}
 
 	private static String guardName(AnnotationEntry[] entries){
@@ -236,37 +820,125 @@ class Injector{
 	}
 
 
-	private void insertCheck(String fname, InstructionHandle h, Type... args){
+	private void insertCheck(String fname, InstructionHandle h, String site, Type... args){
 		assert h != null;
+		list.insert(h, new PUSH(cp, site));
 		list.insert(
 			h,
 			f.createInvoke(
-				"edu.unh.cs.tact.Checker",
+				engine,
 				fname,
 				Type.VOID,
-				args,
+				append(args, Type.STRING),
 				Constants.INVOKESTATIC
 			)
 		);
 	}
 
+	private static Type[] append(Type[] ts, Type t){
+		Type[] r = Arrays.copyOf(ts, ts.length + 1);
+		r[ts.length] = t;
+		return r;
+	}
+
+	/** isRead is true for the accesses that don't change what they access. */
+	private boolean isRead(Instruction code){
+		return code instanceof GETFIELD
+			|| code instanceof GETSTATIC
+			|| code instanceof ARRAYLENGTH
+			|| isArrayLoad(code);
+	}
+
+	/**
+	Strict checks ownership; reads of frozen objects use checkRead, which
+	passes them. Other engines are told of a read or a write instead, of
+	field, or of the whole object if field is null.
+	*/
 	private class Strict implements Check{
-		public void insert(InstructionHandle h){
-			insertCheck("check", h, Type.OBJECT);
+		final boolean read;
+		final String method, field;
+
+		Strict(boolean read, String field){
+			this.read = read;
+			if(engine.equals(OWNERSHIP)){
+				method = read ? "checkRead" : "check";
+				this.field = null;
+			}else{
+				method = read ? "read" : "write";
+				this.field = field;
+			}
+		}
+
+		public void insert(InstructionHandle h, String site){
+			if(field == null){
+				insertCheck(method, h, site, Type.OBJECT);
+				return;
+			}
+			list.insert(h, new PUSH(cp, field));
+			insertCheck(method, h, site, Type.OBJECT, Type.STRING);
+		}
+
+		public String kind(){
+			return field == null ? method : method + " " + field;
+		}
+
+		public String implied(){
+			if(read)
+				return null;
+			if(engine.equals(OWNERSHIP))
+				return "checkRead";
+			return field == null ? "read" : "read " + field; // A read in a write's epoch changes nothing
+		}
+
+		public InstructionList probe(){
+			InstructionList il = new InstructionList();
+			Type[] args = new Type[]{ Type.OBJECT, Type.BOOLEAN };
+			if(field != null){
+				il.append(new PUSH(cp, field));
+				args = new Type[]{ Type.OBJECT, Type.STRING, Type.BOOLEAN };
+			}
+			il.append(new PUSH(cp, read));
+			il.append(f.createInvoke(engine, "wouldPass", Type.BOOLEAN, args, Constants.INVOKESTATIC));
+			return il;
 		}
 	}
 
 	private class ThisGuard implements Check{
-		public void insert(InstructionHandle h){
-			insertCheck("guardByThis", h, Type.OBJECT);
+		public void insert(InstructionHandle h, String site){
+			insertCheck("guardByThis", h, site, Type.OBJECT);
+		}
+
+		public String kind(){
+			return "guardByThis";
+		}
+
+		public String implied(){
+			return null;
+		}
+
+		public InstructionList probe(){
+			return new InstructionList(f.createInvoke("java.lang.Thread", "holdsLock",
+				Type.BOOLEAN, new Type[]{ Type.OBJECT }, Constants.INVOKESTATIC));
 		}
 	}
 
 	private Check staticGuard(final String guard){
 		return new Check(){
-			public void insert(InstructionHandle h){
+			public void insert(InstructionHandle h, String site){
 				list.insert(h, f.createConstant(guard));
-				insertCheck("guardByField", h, Type.OBJECT, Type.STRING);
+				insertCheck("guardByField", h, site, Type.OBJECT, Type.STRING);
+			}
+
+			public String kind(){
+				return "guardByField " + guard;
+			}
+
+			public String implied(){
+				return null;
+			}
+
+			public InstructionList probe(){
+				return null; // The loop may change the field
 			}
 		};
 	}
@@ -275,23 +947,19 @@ class Injector{
 	private CheckInserter checkPutRef(FieldInstruction pf, final InstructionHandle h){
 		int fieldSize = pf.getType(cp).getSize();
 		if(fieldSize == 1) return new CheckInserter(){
-			public void insert(Check chk){
-				if(mg.getName().equals("<init>") && chk instanceof ThisGuard)
-					return;
+			public void insert(Check chk, String site){
 				list.insert(h, new SWAP());
 				list.insert(h, new DUP());
-				chk.insert(h);
+				chk.insert(h, site);
 				list.insert(h, new SWAP());
 			}
 		};
 		if(fieldSize == 2) return new CheckInserter(){
-			public void insert(Check chk){
-				if(mg.getName().equals("<init>") && chk instanceof ThisGuard)
-					return;
+			public void insert(Check chk, String site){
 				list.insert(h, new DUP2_X1());
 				list.insert(h, new POP2());
 				list.insert(h, new DUP_X2());
-				chk.insert(h);
+				chk.insert(h, site);
 			}
 		};
 		assert false : "A different size of field???";
@@ -300,16 +968,16 @@ class Injector{
 
 	private CheckInserter checkGetRef(final InstructionHandle h){
 		return new CheckInserter(){
-			public void insert(Check chk){
+			public void insert(Check chk, String site){
 				list.insert(h, new DUP());
-				chk.insert(h);
+				chk.insert(h, site);
 			}
 		};
 	}
 
 	private CheckInserter checkStatic(final FieldInstruction code, final InstructionHandle h){
 		return new CheckInserter(){
-			public void insert(Check chk){
+			public void insert(Check chk, String site){
 				int i = code.getIndex();
 				Constant c = cp.getConstant(i);
 				if(!(c instanceof ConstantFieldref))
@@ -317,7 +985,7 @@ class Injector{
 
 				ConstantFieldref cfr = (ConstantFieldref)c;
 				list.insert(h, new LDC_W(cfr.getClassIndex()));
-				chk.insert(h);
+				chk.insert(h, site);
 			}
 		};
 	}
@@ -325,20 +993,20 @@ class Injector{
 	private CheckInserter checkArrayStore(ArrayInstruction pa, final InstructionHandle h){
 		int elemSize = pa.getType(cp).getSize();
 		if(elemSize == 1) return new CheckInserter(){
-			public void insert(Check chk){
+			public void insert(Check chk, String site){
 				list.insert(h, new DUP2_X1());
 				list.insert(h, new POP2());
 				list.insert(h, new DUP_X2());
-				chk.insert(h);
+				chk.insert(h, site);
 			}
 		};
 		if(elemSize == 2) return new CheckInserter(){
-			public void insert(Check chk){
+			public void insert(Check chk, String site){
 				list.insert(h, new DUP2_X2());
 				list.insert(h, new POP2());
 				list.insert(h, new DUP2());
 				list.insert(h, new POP());
-				chk.insert(h);
+				chk.insert(h, site);
 				list.insert(h, new DUP2_X2());
 				list.insert(h, new POP2());
 			}
@@ -349,10 +1017,10 @@ class Injector{
 
 	private CheckInserter checkArrayLoad(final InstructionHandle h){
 		return new CheckInserter(){
-			public void insert(Check chk){
+			public void insert(Check chk, String site){
 				list.insert(h, new DUP2());
 				list.insert(h, new POP());
-				chk.insert(h);
+				chk.insert(h, site);
 			}
 		};
 	}
@@ -360,9 +1028,9 @@ class Injector{
 	private CheckInserter checkConstruct(InstructionHandle h){
 		final InstructionHandle hh = h.getNext();
 		return new CheckInserter(){
-			public void insert(Check chk){
+			public void insert(Check chk, String site){
 				list.insert(hh, new DUP());
-				chk.insert(hh);
+				chk.insert(hh, site);
 			}
 		};
 	}
@@ -0,0 +1,206 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import org.apache.bcel.generic.*;
+
+import static edu.unh.cs.tact.Util.*;
+import static edu.unh.cs.tact.Flow.*;
+
+/**
+LoopChecks finds the checks whose answer can't change while a loop runs,
+so that they can be asked once before it instead of on every trip. Such
+a check is on an object that the loop doesn't reassign: a local that it
+never stores to, or a class, for static fields. The loop must not call
+methods or enter or leave monitors, so that neither the object's owner
+nor the locks the thread holds can change inside it. That doesn't hold
+for an object a Domain owns, which another member may share or freeze
+meanwhile, so Checker.wouldPass never lets a loop skip checks of one.
+<p>
+Loops are natural loops: a back edge to a header that dominates it, and
+everything that reaches the edge without passing the header. A loop that
+an exception handler covers only in part, or that contains a handler,
+is left alone. A check is hoisted out of the outermost loop it can be.
+Methods with subroutines are left alone.
+*/
+class LoopChecks{
+	public final MethodGen mg;
+	public final ConstantPoolGen cp;
+	public final InstructionList list;
+
+	public LoopChecks(MethodGen mg, ConstantPoolGen cp){
+		this.mg = notNull(mg, "mg");
+		this.cp = notNull(cp, "cp");
+		this.list = mg.getInstructionList();
+	}
+
+	/** A Loop is a header and the instructions of the loop's body, the header included. */
+	static class Loop{
+		final InstructionHandle header;
+		final Set<InstructionHandle> body = new HashSet<InstructionHandle>();
+
+		Loop(InstructionHandle header){
+			this.header = header;
+			body.add(header);
+		}
+	}
+
+	/**
+	find returns the loop that each of checks can be hoisted out of, for
+	those that can. subjects gives the local that each access's object was
+	loaded from, as RedundantChecks.subjects does.
+	*/
+	public Map<InstructionHandle, Loop> find(Collection<InstructionHandle> checks,
+			Map<InstructionHandle, Integer> subjects){
+		Map<InstructionHandle, Loop> r = new HashMap<InstructionHandle, Loop>();
+		if(list.getStart() == null || hasSubroutines(list))
+			return r;
+
+		List<Loop> loops = loops();
+		Collections.sort(loops, new Comparator<Loop>(){
+			public int compare(Loop a, Loop b){
+				return b.body.size() - a.body.size(); // outermost first
+			}
+		});
+
+		for(Loop l : loops){
+			if(!isSimple(l))
+				continue;
+			for(InstructionHandle h : checks){
+				if(r.containsKey(h) || !l.body.contains(h))
+					continue;
+				Instruction i = h.getInstruction();
+				if(i instanceof GETSTATIC || i instanceof PUTSTATIC){
+					r.put(h, l);
+					continue;
+				}
+				Integer local = subjects.get(h);
+				if(local != null && !stores(l, local))
+					r.put(h, l);
+			}
+		}
+		return r;
+	}
+
+	/** isSimple is true if nothing in l can change an object's owner or the locks held. */
+	private boolean isSimple(Loop l){
+		for(InstructionHandle h : l.body){
+			Instruction i = h.getInstruction();
+			if(i instanceof InvokeInstruction || i instanceof MONITORENTER || i instanceof MONITOREXIT)
+				return false;
+		}
+
+		list.setPositions();
+		for(CodeExceptionGen eh : mg.getExceptionHandlers()){
+			if(l.body.contains(eh.getHandlerPC()))
+				return false;
+			int start = eh.getStartPC().getPosition(), end = eh.getEndPC().getPosition();
+			int in = 0;
+			for(InstructionHandle h : l.body){
+				int pos = h.getPosition();
+				if(pos >= start && pos <= end)
+					in++;
+			}
+			if(in != 0 && in != l.body.size())
+				return false;
+		}
+		return true;
+	}
+
+	/** stores is true if l stores to local. */
+	private boolean stores(Loop l, int local){
+		for(InstructionHandle h : l.body){
+			Instruction i = h.getInstruction();
+			if(i instanceof StoreInstruction && ((StoreInstruction)i).getIndex() == local)
+				return true;
+		}
+		return false;
+	}
+
+	/** loops returns the method's natural loops, with those that share a header merged. */
+	private List<Loop> loops(){
+		List<InstructionHandle> nodes = new ArrayList<InstructionHandle>();
+		Map<InstructionHandle, Integer> index = new HashMap<InstructionHandle, Integer>();
+		for(InstructionHandle h = list.getStart(); h != null; h = h.getNext()){
+			index.put(h, nodes.size());
+			nodes.add(h);
+		}
+
+		List<List<Integer>> preds = new ArrayList<List<Integer>>();
+		for(int i = 0; i < nodes.size(); i++)
+			preds.add(new ArrayList<Integer>(2));
+		for(int i = 0; i < nodes.size(); i++)
+			for(InstructionHandle s : successors(nodes.get(i)))
+				preds.get(index.get(s)).add(i);
+
+		BitSet[] dom = dominators(nodes, index, preds);
+		Map<InstructionHandle, Loop> byHeader = new LinkedHashMap<InstructionHandle, Loop>();
+		for(int t = 0; t < nodes.size(); t++){
+			if(dom[t].cardinality() == nodes.size() && nodes.size() > 1)
+				continue; // unreachable
+			for(InstructionHandle s : successors(nodes.get(t))){
+				int h = index.get(s);
+				if(!dom[t].get(h))
+					continue;
+
+				Loop l = byHeader.get(s);
+				if(l == null){
+					l = new Loop(s);
+					byHeader.put(s, l);
+				}
+				Deque<Integer> work = new ArrayDeque<Integer>();
+				work.push(t);
+				while(!work.isEmpty()){
+					int n = work.pop();
+					if(!l.body.add(nodes.get(n)))
+						continue;
+					for(int p : preds.get(n))
+						work.push(p);
+				}
+			}
+		}
+		return new ArrayList<Loop>(byHeader.values());
+	}
+
+	/**
+	dominators returns the instructions that dominate each instruction, as
+	a set of indexes. The method's start and each exception handler are
+	entries.
+	*/
+	private BitSet[] dominators(List<InstructionHandle> nodes, Map<InstructionHandle, Integer> index,
+			List<List<Integer>> preds){
+		int n = nodes.size();
+		BitSet entries = new BitSet(n);
+		entries.set(0);
+		for(CodeExceptionGen eh : mg.getExceptionHandlers())
+			entries.set(index.get(eh.getHandlerPC()));
+
+		BitSet[] dom = new BitSet[n];
+		for(int i = 0; i < n; i++){
+			dom[i] = new BitSet(n);
+			if(entries.get(i))
+				dom[i].set(i);
+			else
+				dom[i].set(0, n);
+		}
+
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			for(int i = 0; i < n; i++){
+				if(entries.get(i))
+					continue;
+				BitSet d = new BitSet(n);
+				d.set(0, n);
+				for(int p : preds.get(i))
+					d.and(dom[p]);
+				d.set(i);
+				if(!d.equals(dom[i])){
+					dom[i] = d;
+					changed = true;
+				}
+			}
+		}
+		return dom;
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.generic.*;
+
+public class LoopChecksTest{
+	private ConstantPoolGen cp;
+	private InstructionFactory f;
+	private InstructionList il;
+	private List<InstructionHandle> checks;
+
+	@Before public void setUp(){
+		cp = new ConstantPoolGen();
+		f = new InstructionFactory(cp);
+		il = new InstructionList();
+		checks = new ArrayList<InstructionHandle>();
+	}
+
+	/** load appends a[0], for the array in local a, and returns the load. */
+	private InstructionHandle load(int a){
+		il.append(new ALOAD(a));
+		il.append(new ICONST(0));
+		InstructionHandle h = il.append(new IALOAD());
+		il.append(new POP());
+		checks.add(h);
+		return h;
+	}
+
+	/**
+	loop appends the start of "for(int i = 0; i < 10; i++)", counting in
+	local i, and returns the jump to its condition; end finishes it.
+	*/
+	private BranchHandle loop(int i){
+		il.append(new ICONST(0));
+		il.append(new ISTORE(i));
+		return il.append(new GOTO(null));
+	}
+
+	/** end appends the increment and condition of the loop that started with toCond, and returns the condition. */
+	private InstructionHandle end(BranchHandle toCond, int i){
+		InstructionHandle body = toCond.getNext();
+		il.append(new IINC(i, 1));
+		InstructionHandle cond = il.append(new ILOAD(i));
+		toCond.setTarget(cond);
+		il.append(new BIPUSH((byte)10));
+		il.append(new IF_ICMPLT(body));
+		return cond;
+	}
+
+	private Map<InstructionHandle, LoopChecks.Loop> find(){
+		il.append(new RETURN());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.VOID,
+			new Type[]{ Type.OBJECT, Type.OBJECT }, new String[]{ "a", "b" }, "m", "Dummy", il, cp);
+		mg.setMaxLocals();
+		Map<InstructionHandle, Integer> subjects = new RedundantChecks(mg, cp).subjects(checks);
+		return new LoopChecks(mg, cp).find(checks, subjects);
+	}
+
+	@Test public void invariant(){
+		BranchHandle l = loop(2);
+		InstructionHandle a = load(0);
+		InstructionHandle cond = end(l, 2);
+		InstructionHandle outside = load(1);
+		Map<InstructionHandle, LoopChecks.Loop> r = find();
+		assertSame(cond, r.get(a).header);
+		assertTrue(r.get(a).body.contains(a));
+		assertFalse(r.containsKey(outside));
+	}
+
+	@Test public void storeInLoop(){
+		BranchHandle l = loop(2);
+		InstructionHandle a = load(0);
+		il.append(new ALOAD(1));
+		il.append(new ASTORE(0));
+		end(l, 2);
+		assertFalse(find().containsKey(a));
+	}
+
+	@Test public void callInLoop(){
+		BranchHandle l = loop(2);
+		InstructionHandle a = load(0);
+		il.append(f.createInvoke("Dummy", "foo", Type.VOID, Type.NO_ARGS, Constants.INVOKESTATIC));
+		end(l, 2);
+		assertFalse(find().containsKey(a));
+	}
+
+	@Test public void monitorInLoop(){
+		BranchHandle l = loop(2);
+		il.append(new ALOAD(1));
+		il.append(new MONITORENTER());
+		InstructionHandle a = load(0);
+		il.append(new ALOAD(1));
+		il.append(new MONITOREXIT());
+		end(l, 2);
+		assertFalse(find().containsKey(a));
+	}
+
+	@Test public void outermost(){
+		BranchHandle outer = loop(2);
+		il.append(new ALOAD(0));
+		il.append(new ASTORE(1));
+		BranchHandle inner = loop(3);
+		InstructionHandle a = load(0); // Invariant in both
+		InstructionHandle b = load(1); // Stored to by the outer loop
+		end(inner, 3);
+		InstructionHandle outerCond = end(outer, 2);
+		Map<InstructionHandle, LoopChecks.Loop> r = find();
+		assertSame(outerCond, r.get(a).header);
+		assertNotSame(outerCond, r.get(b).header);
+		assertTrue(r.get(b).body.contains(b));
+	}
+
+	@Test public void partlyCovered(){
+		BranchHandle l = loop(2);
+		InstructionHandle a = load(0);
+		load(0);
+		end(l, 2);
+		il.append(new RETURN());
+		InstructionHandle handler = il.append(new ATHROW());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.VOID,
+			new Type[]{ Type.OBJECT, Type.OBJECT }, new String[]{ "a", "b" }, "m", "Dummy", il, cp);
+		mg.addExceptionHandler(a.getPrev().getPrev(), a.getNext(), handler, null);
+		mg.setMaxLocals();
+		Map<InstructionHandle, Integer> subjects = new RedundantChecks(mg, cp).subjects(checks);
+		assertEquals(2, subjects.size());
+		assertTrue(new LoopChecks(mg, cp).find(checks, subjects).isEmpty());
+	}
+}
@@ -3,7 +3,9 @@ package edu.unh.cs.tact;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.*;
+import java.util.zip.*;
 import org.apache.bcel.*;
 import org.apache.bcel.Repository;
 import org.apache.bcel.classfile.*;
@@ -13,69 +15,332 @@ import org.apache.bcel.util.*;
 
 class Main{
 	static boolean loud = false;
+	static boolean inline = false;
+	static int threads = Runtime.getRuntime().availableProcessors();
+	static InjectCache cache = null;
+	/** level is the Deflater level for rewritten jar entries; 0 stores them. */
+	static int level = Deflater.DEFAULT_COMPRESSION;
+	/** sample is N when each injected site should make only 1 in N of its checks. */
+	static int sample = 1;
+	/** engine is the class whose methods injected code calls, picked by name with -engine. */
+	static String engine = Injector.OWNERSHIP;
+
+	/** INJECTED names the attribute that marks a class as already injected. */
+	static final String INJECTED = "edu.unh.cs.tact.Injected";
 
 	public static void main(String[] args) throws Exception{
 		ArrayList<String> classes = new ArrayList<String>();
 		ArrayList<String> jars = new ArrayList<String>();
 		SyntheticRepository synthRepo = SyntheticRepository.getInstance();
+		String cacheDir = null;
 
 		for(String arg : args){
 			if(arg.equals("-loud")){
 				loud = true;
 				continue;
 			}
+			if(arg.equals("-inline")){
+				inline = true;
+				continue;
+			}
+			if(arg.matches("-j[1-9][0-9]{0,3}")){
+				threads = Integer.parseInt(arg.substring(2));
+				continue;
+			}
+			if(arg.matches("-z[0-9]")){
+				level = Integer.parseInt(arg.substring(2));
+				continue;
+			}
+			if(arg.matches("-sample=[1-9][0-9]{0,8}")){
+				sample = Integer.parseInt(arg.substring("-sample=".length()));
+				continue;
+			}
+			if(arg.startsWith("-engine=")){
+				String name = arg.substring("-engine=".length());
+				engine = Injector.ENGINES.get(name);
+				if(engine == null){
+					System.err.printf("I don't know the engine \"%s\". It should be one of %s.\n",
+						name, Injector.ENGINES.keySet());
+					System.exit(1);
+				}
+				continue;
+			}
+			if(arg.startsWith("-cache=")){
+				cacheDir = arg.substring("-cache=".length());
+				continue;
+			}
+			if(arg.startsWith("-")){
+				usage(arg);
+				System.exit(1);
+			}
 			if(arg.endsWith(".class")){
 				classes.add(arg);
 				preload(arg);
-			}else if(arg.endsWith(".jar")){
-				jars.add(arg);
+			}else if(arg.endsWith(".jar") || new File(arg).isDirectory()){
+				if(arg.endsWith(".jar"))
+					jars.add(arg);
+				else
+					findClasses(new File(arg), classes);
 				synthRepo = SyntheticRepository.getInstance(
 					new ClassPath(synthRepo.getClassPath(), arg));
 				Repository.setRepository(synthRepo);
 			}else{
-				System.err.printf("I don't know what \"%s\" is. It should be a class or jar file.\n", arg);
+				System.err.printf("I don't know what \"%s\" is. It should be a class file, jar file, or directory.\n", arg);
 				System.exit(1);
 			}
 		}
 
-		for(String j : jars){
-			JarFile jar = new JarFile(j);
-			inject(jar);
-			overwrite(j);
+		if(cacheDir != null)
+			cache = new InjectCache(new File(cacheDir), config());
+		Repository.setRepository(new SyncRepository(Repository.getRepository()));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try{
+			for(String j : jars){
+				inject(new File(j), pool);
+				overwrite(j);
+			}
+
+			inject(classes, pool);
+		}finally{
+			pool.shutdown();
 		}
+	}
 
-		for(String cf : classes){
-			inject(cf);
-			overwrite(cf);
+	/** usage explains the flags, after saying that arg isn't one. */
+	private static void usage(String arg){
+		System.err.printf("I don't know the flag \"%s\".\n", arg);
+		System.err.println("usage: tact [flags] file.jar|File.class|dir ...");
+		System.err.println("  -loud          say what is injected");
+		System.err.println("  -inline        keep owners in a slot in each injected class");
+		System.err.println("  -jN            inject on N threads, 1 or more");
+		System.err.println("  -zN            compress injected entries at level N, 0 to 9");
+		System.err.println("  -sample=N      check 1 in N accesses at each site, 1 or more");
+		System.err.println("  -engine=NAME   inject calls to one of " + Injector.ENGINES.keySet());
+		System.err.println("  -cache=DIR     keep injected classes in DIR");
+	}
+
+	/** findClasses adds the class files in the tree under dir to classes. */
+	private static void findClasses(File dir, List<String> classes){
+		File[] files = dir.listFiles();
+		if(files == null)
+			return;
+		Arrays.sort(files);
+		for(File f : files){
+			if(f.isDirectory())
+				findClasses(f, classes);
+			else if(f.getName().endsWith(".class"))
+				classes.add(f.getPath());
 		}
 	}
 
-	private static void inject(JarFile jar) throws Exception{
-		InputStream in = null;
-		JarOutputStream out = null;
+	/**
+	inject writes jar, with its classes injected, to jar.new. Entries that
+	aren't changed are copied as raw compressed bytes, unless RawJar can't
+	read the jar.
+	*/
+	private static void inject(File jar, ForkJoinPool pool) throws Exception{
+		RawJar raw;
+		try{
+			raw = new RawJar(jar);
+		}catch(ZipException e){
+			if(loud)
+				System.err.printf("Rewriting %s the slow way: %s\n", jar, e.getMessage());
+			JarFile jf = new JarFile(jar);
+			try{
+				inject(jf, pool);
+			}finally{
+				jf.close();
+			}
+			return;
+		}
+		try{
+			inject(raw, jar, pool);
+		}finally{
+			raw.close();
+		}
+	}
+
+	private static void inject(final RawJar jar, File f, ForkJoinPool pool) throws Exception{
+		final List<RawJar.Entry> entries = jar.entries;
+		List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+		for(final RawJar.Entry entry : entries){
+			if(!entry.getName().endsWith(".class")){
+				tasks.add(null);
+				continue;
+			}
+			tasks.add(new Callable<byte[]>(){
+				public byte[] call() throws Exception{
+					byte[] orig = jar.read(entry);
+					byte[] b = inject(orig, entry.getName(), false);
+					return b == orig ? null : b;
+				}
+			});
+		}
+
+		final RawJar.Writer out = new RawJar.Writer(new File(f.getPath()+".new"), jar.comment(), level);
+		try{
+			inject(tasks, pool, new Output(){
+				public void copy(int i) throws Exception{
+					out.copy(jar, entries.get(i));
+				}
+				public void write(int i, byte[] injected) throws Exception{
+					out.write(entries.get(i), injected);
+				}
+			});
+		}finally{
+			out.close();
+		}
+	}
+
+	/** inject is the slow way to inject a jar, for those that RawJar can't read. */
+	private static void inject(final JarFile jar, ForkJoinPool pool) throws Exception{
+		final List<JarEntry> entries = new ArrayList<JarEntry>();
+		for(JarEntry entry : Collections.list(jar.entries())){
+			String name = entry.getName();
+			if(entry.isDirectory() || name.startsWith("META-INF/MANIFEST"))
+				continue;
+			entries.add(entry);
+		}
+
+		List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+		for(final JarEntry entry : entries){
+			if(!entry.getName().endsWith(".class")){
+				tasks.add(null);
+				continue;
+			}
+			tasks.add(new Callable<byte[]>(){
+				public byte[] call() throws Exception{
+					return inject(jar, entry);
+				}
+			});
+		}
+
+		JarOutputStream jout = null;
 		try{
-			out = new JarOutputStream(
+			jout = new JarOutputStream(
 				new FileOutputStream(jar.getName()+".new"),
 				jar.getManifest());
-			for(JarEntry entry : Collections.list(jar.entries())){
-				String name = entry.getName();
-				if(entry.isDirectory() || name.startsWith("META-INF/MANIFEST"))
-					continue;
-
-				try{
-					in = jar.getInputStream(entry);
-					out.putNextEntry(new JarEntry(name));
-
-					if(name.endsWith(".class"))
-						inject(in, out, entry.getName());
-					else
-						copy(in, out);
-				}finally{
-					if(in != null) in.close();
+			if(level != 0)
+				jout.setLevel(level);
+			final JarOutputStream out = jout;
+			inject(tasks, pool, new Output(){
+				public void copy(int i) throws Exception{
+					JarEntry entry = entries.get(i);
+					out.putNextEntry(newEntry(entry, null));
+					InputStream in = null;
+					try{
+						in = jar.getInputStream(entry);
+						Main.copy(in, out);
+					}finally{
+						if(in != null) in.close();
+					}
 				}
-			}
+				public void write(int i, byte[] injected) throws Exception{
+					out.putNextEntry(newEntry(entries.get(i), injected));
+					out.write(injected);
+				}
+			});
 		}finally{
-			if(out != null) out.close();
+			if(jout != null) jout.close();
+		}
+	}
+
+	/**
+	newEntry returns an entry for orig in the new jar. When entries are
+	stored, their size and CRC must be known first: they are those of
+	contents, or of orig if contents is null.
+	*/
+	private static JarEntry newEntry(JarEntry orig, byte[] contents){
+		JarEntry e = new JarEntry(orig.getName());
+		e.setTime(orig.getTime());
+		if(level != 0)
+			return e;
+
+		e.setMethod(ZipEntry.STORED);
+		if(contents == null){
+			e.setSize(orig.getSize());
+			e.setCrc(orig.getCrc());
+		}else{
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			e.setSize(contents.length);
+			e.setCrc(crc.getValue());
+		}
+		e.setCompressedSize(e.getSize());
+		return e;
+	}
+
+	/** Output receives the entries of a rewritten jar, in order. */
+	private interface Output{
+		/** copy copies the i'th entry unchanged. */
+		void copy(int i) throws Exception;
+		/** write writes injected as the i'th entry. */
+		void write(int i, byte[] injected) throws Exception;
+	}
+
+	/**
+	inject runs the tasks on pool and hands their results to out in order,
+	while only a bounded window of them is in flight, so a large jar isn't
+	held in memory at once. Entries whose task is null, or returns null,
+	are copied.
+	*/
+	private static void inject(List<Callable<byte[]>> tasks, ForkJoinPool pool, Output out) throws Exception{
+		List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>(
+			Collections.<Future<byte[]>>nCopies(tasks.size(), null));
+		int window = 4 * pool.getParallelism();
+		int next = 0;
+
+		for(int i = 0; i < tasks.size(); i++){
+			for(; next < tasks.size() && next < i + window; next++)
+				if(tasks.get(next) != null)
+					pending.set(next, pool.submit(tasks.get(next)));
+
+			Future<byte[]> f = pending.set(i, null);
+			byte[] injected = f == null ? null : result(f);
+			if(injected == null)
+				out.copy(i);
+			else
+				out.write(i, injected);
+		}
+	}
+
+	private static byte[] inject(JarFile jar, JarEntry entry) throws Exception{
+		InputStream in = null;
+		try{
+			in = jar.getInputStream(entry);
+			return inject(readAll(in), entry.getName(), false);
+		}finally{
+			if(in != null) in.close();
+		}
+	}
+
+	/** inject injects and overwrites each of the class files on pool. */
+	private static void inject(List<String> classes, ForkJoinPool pool) throws Exception{
+		List<Future<Void>> done = new ArrayList<Future<Void>>();
+		for(final String cf : classes){
+			done.add(pool.submit(new Callable<Void>(){
+				public Void call() throws Exception{
+					inject(cf);
+					overwrite(cf);
+					return null;
+				}
+			}));
+		}
+		for(Future<Void> f : done)
+			result(f);
+	}
+
+	/** result waits for f, rethrowing whatever its task threw. */
+	private static <T> T result(Future<T> f) throws Exception{
+		try{
+			return f.get();
+		}catch(ExecutionException e){
+			Throwable t = e.getCause();
+			if(t instanceof Exception)
+				throw (Exception)t;
+			if(t instanceof Error)
+				throw (Error)t;
+			throw e;
 		}
 	}
 
@@ -87,23 +352,68 @@ class Main{
 		InputStream in = null;
 		OutputStream out = null;
 		try{
-			in = new BufferedInputStream(new FileInputStream(name));
-			out = new BufferedOutputStream(new FileOutputStream(name+".new"));
-			inject(in, out, name);
+			in = new FileInputStream(name);
+			byte[] injected = inject(readAll(in), name, false);
+			out = new FileOutputStream(name+".new");
+			out.write(injected);
 		}finally{
 			if(in != null) in.close();
 			if(out != null) out.close();
 		}
 	}
 
-	private static void inject(InputStream in, OutputStream out, String name) throws Exception{
-		JavaClass jc = load(in, name);
-		if(jc.isInterface())
-			return;
+	/**
+	inject returns classfile with checks injected, taking it from the cache
+	when there is one. If register is set, the class is added to BCEL's
+	repository before it is injected, for classes that aren't on its class path.
+	*/
+	static byte[] inject(byte[] classfile, String name, boolean register) throws Exception{
+		JavaClass jc = load(new ByteArrayInputStream(classfile), name);
+		if(register)
+			Repository.addClass(jc);
+
+		String key = null;
+		if(cache != null){
+			key = cache.key(classfile, Injector.fieldDeps(jc));
+			byte[] cached = cache.get(key);
+			if(cached != null){
+				if(loud)
+					System.err.printf("Found %s in the cache\n", name);
+				return cached;
+			}
+		}
+
+		JavaClass injected = inject(jc);
+		byte[] b = injected == jc ? classfile : injected.getBytes();
 
-		Method[] methods = jc.getMethods();
-		ConstantPoolGen cp = new ConstantPoolGen(jc.getConstantPool());
-		InstructionFactory insf = new InstructionFactory(cp);
+		if(cache != null)
+			cache.put(key, b);
+		return b;
+	}
+
+	/** config describes the flags that change how classes are injected. */
+	static String config(){
+		String c = inline ? "inline" : "";
+		if(sample > 1)
+			c += " sample=" + sample;
+		if(!engine.equals(Injector.OWNERSHIP))
+			c += " engine=" + engine;
+		return c;
+	}
+
+	/**
+	inject returns jc with checks injected. Interfaces and classes that
+	have already been injected are returned as they are.
+	*/
+	static JavaClass inject(JavaClass jc) throws Exception{
+		if(jc.isInterface() || isInjected(jc))
+			return jc;
+
+		ClassGen cg = new ClassGen(jc);
+		Method[] methods = cg.getMethods();
+		ConstantPoolGen cp = cg.getConstantPool();
+		InstructionFactory insf = new InstructionFactory(cg, cp);
+		List<String> sampleFields = new ArrayList<String>();
 
 		for(int i = 0; i < methods.length; i++){
 			if(methods[i].isNative() || methods[i].isAbstract())
@@ -113,8 +423,23 @@ class Main{
 				System.err.printf("Injecting %s.%s\n", jc.getClassName(), methods[i]);
 
 			MethodGen mg = new MethodGen(methods[i], jc.getClassName(), cp);
-			boolean changed = new Injector(cp, insf, mg).inject();
+			Injector inj = new Injector(cp, insf, mg);
+			inj.sample = sample;
+			inj.sampleFields = sampleFields;
+			inj.engine = engine;
+			boolean changed = inj.inject();
 			methods[i] = mg.getMethod();
+			cg.setMethodAt(methods[i], i);
+
+			if(loud && inj.removed > 0)
+				System.err.printf("Removed %d redundant checks from %s.%s\n",
+					inj.removed, jc.getClassName(), methods[i].getName());
+			if(loud && inj.unescaped > 0)
+				System.err.printf("Skipped %d checks of unescaped objects in %s.%s\n",
+					inj.unescaped, jc.getClassName(), methods[i].getName());
+			if(loud && inj.hoisted > 0)
+				System.err.printf("Hoisted %d checks out of loops in %s.%s\n",
+					inj.hoisted, jc.getClassName(), methods[i].getName());
 
 			if(loud && changed){
 				System.out.println(methods[i]);
@@ -122,8 +447,52 @@ class Main{
 			}
 		}
 
-		jc.setConstantPool(cp.getFinalConstantPool());
-		jc.dump(out);
+		for(String name : sampleFields)
+			cg.addField(new FieldGen(Constants.ACC_PRIVATE | Constants.ACC_STATIC | Constants.ACC_SYNTHETIC,
+				Type.INT, name, cp).getField());
+
+		if(inline && new SlotInjector(cg, insf).inject() && loud)
+			System.err.printf("Added owner slot to %s\n", jc.getClassName());
+
+		if(cg.getMajor() >= Constants.MAJOR_1_6)
+			addStackMaps(jc, cg);
+
+		cg.addAttribute(new Unknown(cp.addUtf8(INJECTED), 0, new byte[0], cp.getConstantPool()));
+		return cg.getJavaClass();
+	}
+
+	/**
+	addStackMaps recomputes the StackMapTable of each method of cg whose
+	code differs from the same method in orig.
+	*/
+	private static void addStackMaps(JavaClass orig, ClassGen cg){
+		Map<String, byte[]> before = new HashMap<String, byte[]>();
+		for(Method m : orig.getMethods())
+			if(m.getCode() != null)
+				before.put(m.getName() + m.getSignature(), m.getCode().getCode());
+
+		ConstantPoolGen cp = cg.getConstantPool();
+		Method[] methods = cg.getMethods();
+		for(int i = 0; i < methods.length; i++){
+			Method m = methods[i];
+			if(m.getCode() == null
+					|| Arrays.equals(m.getCode().getCode(), before.get(m.getName() + m.getSignature())))
+				continue;
+
+			MethodGen mg = new MethodGen(m, cg.getClassName(), cp);
+			if(!new StackMaps(mg, cp).run())
+				System.err.printf("I failed to compute the stack map frames of %s.%s; it must run with -noverify.\n",
+					cg.getClassName(), m.getName());
+			cg.setMethodAt(mg.getMethod(), i);
+		}
+	}
+
+	/** isInjected is true if jc carries the attribute that inject adds. */
+	static boolean isInjected(JavaClass jc){
+		for(Attribute a : jc.getAttributes())
+			if(a instanceof Unknown && ((Unknown)a).getName().equals(INJECTED))
+				return true;
+		return false;
 	}
 
 	private static JavaClass load(InputStream in, String name) throws Exception{
@@ -145,8 +514,14 @@ class Main{
 		throw new AssertionError("Shouldn't get here");
 	}
 
+	private static byte[] readAll(InputStream in) throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copy(in, out);
+		return out.toByteArray();
+	}
+
 	private static void copy(InputStream in, OutputStream out) throws Exception{
-		byte[] buf = new byte[1024];
+		byte[] buf = new byte[8192];
 		while(true){
 			int n = in.read(buf);
 			if(n == -1)
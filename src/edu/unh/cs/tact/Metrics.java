@@ -0,0 +1,280 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import javax.management.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+Metrics counts what Checker does, per injected site and per class of the
+checked object: checks, claims of unowned objects, checks decided by a
+guard lock, and violations. Each name's counters are striped by thread,
+so threads counting the same site rarely write the same cache line.
+<p>
+Checks made by classes injected before sites were named, and calls from
+the program itself, count under the site "(unknown)".
+*/
+class Metrics implements MetricsMBean{
+	static final int CHECK = 0;
+	static final int CLAIM = 1;
+	static final int GUARD = 2;
+	static final int VIOLATION = 3;
+
+	private static final String UNKNOWN = "(unknown)";
+
+	private final ConcurrentMap<String, Counts> sites = new ConcurrentHashMap<String, Counts>();
+	private volatile ByClass classes = new ByClass();
+	private final WeakIdentityMap<?> owners;
+	private final WeakIdentityMap<?> guarded;
+
+	public Metrics(WeakIdentityMap<?> owners, WeakIdentityMap<?> guarded){
+		this.owners = notNull(owners, "owners");
+		this.guarded = notNull(guarded, "guarded");
+	}
+
+	/**
+	start makes the Metrics that Checker counts with, and registers it
+	with the platform MBean server. If file isn't null, a daemon rewrites
+	it with dump() every interval seconds, and once more at exit.
+	*/
+	static Metrics start(WeakIdentityMap<?> owners, WeakIdentityMap<?> guarded,
+			final String file, final long interval){
+		final Metrics m = new Metrics(owners, guarded);
+		try{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new StandardMBean(m, MetricsMBean.class),
+				new ObjectName("edu.unh.cs.tact:type=Checker"));
+		}catch(JMException e){
+			System.err.printf("tact: I failed to register the metrics MBean: %s\n", e);
+		}
+		if(file == null)
+			return m;
+
+		Thread t = new Thread("tact-metrics"){
+			@Override public void run(){
+				while(true){
+					LockSupport.parkNanos(interval * 1000000000L);
+					m.write(file);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("tact-metrics-exit"){
+			@Override public void run(){
+				m.write(file);
+			}
+		});
+		return m;
+	}
+
+	/** count adds one of kind to site and to o's class. */
+	public void count(int kind, String site, Object o){
+		site(site).add(kind);
+		if(o != null)
+			type(o.getClass()).add(kind);
+	}
+
+	private Counts site(String site){
+		if(site == null)
+			site = UNKNOWN;
+		Counts c = sites.get(site);
+		if(c == null){
+			c = new Counts(site);
+			Counts old = sites.putIfAbsent(site, c);
+			if(old != null)
+				c = old;
+		}
+		return c;
+	}
+
+	private Counts type(Class<?> k){
+		ByClass by = classes;
+		Counts c = by.get(k);
+		if(!c.listed)
+			by.list(c);
+		return c;
+	}
+
+	/**
+	ByClass keeps each class's Counts in the class itself, so a loader
+	that's let go isn't kept. Counts only hold the class's name. all lists
+	the Counts that have been counted in, to report; a Counts made by a
+	thread that lost the race to make it isn't.
+	*/
+	private static class ByClass extends ClassValue<Counts>{
+		final Queue<Counts> all = new ConcurrentLinkedQueue<Counts>();
+
+		@Override protected Counts computeValue(Class<?> k){
+			return new Counts(k.getName());
+		}
+
+		synchronized void list(Counts c){
+			if(c.listed)
+				return;
+			all.add(c);
+			c.listed = true;
+		}
+	}
+
+	private long total(int kind){
+		long n = 0;
+		for(Counts c : sites.values())
+			n += c.get(kind);
+		return n;
+	}
+
+	public long getChecks(){
+		return total(CHECK);
+	}
+
+	public long getClaims(){
+		return total(CLAIM);
+	}
+
+	public long getGuardChecks(){
+		return total(GUARD);
+	}
+
+	public long getViolations(){
+		return total(VIOLATION);
+	}
+
+	public long getOwnedObjects(){
+		return owners.size();
+	}
+
+	public long getOwnerBuckets(){
+		return owners.shape(new WeakIdentityMap.Shape()).buckets;
+	}
+
+	public int getLongestOwnerChain(){
+		return owners.shape(new WeakIdentityMap.Shape()).longest;
+	}
+
+	public double getMeanOwnerChain(){
+		return owners.shape(new WeakIdentityMap.Shape()).mean();
+	}
+
+	public long getGuardedObjects(){
+		return guarded.size();
+	}
+
+	public String[] hotSites(int n){
+		return hottest(sites.values(), n);
+	}
+
+	public String[] hotClasses(int n){
+		return hottest(classes.all, n);
+	}
+
+	private static String[] hottest(Collection<Counts> cs, int n){
+		List<Counts> l = sorted(cs);
+		String[] hot = new String[Math.min(n, l.size())];
+		for(int i = 0; i < hot.length; i++)
+			hot[i] = l.get(i).toString();
+		return hot;
+	}
+
+	/** sorted returns cs by the number of checks, most first. */
+	private static List<Counts> sorted(Collection<Counts> cs){
+		List<Counts> l = new ArrayList<Counts>(cs);
+		final Map<Counts, Long> checks = new HashMap<Counts, Long>();
+		for(Counts c : l)
+			checks.put(c, c.get(CHECK));
+		Collections.sort(l, new Comparator<Counts>(){
+			public int compare(Counts a, Counts b){
+				return checks.get(b).compareTo(checks.get(a));
+			}
+		});
+		return l;
+	}
+
+	public String dump(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("# owners: ").append(owners.shape(new WeakIdentityMap.Shape())).append('\n');
+		sb.append("# guarded: ").append(guarded.shape(new WeakIdentityMap.Shape())).append('\n');
+		sb.append("scope,name,checks,claims,guards,violations\n");
+		for(Counts c : sorted(sites.values()))
+			sb.append("site,").append(c.csv()).append('\n');
+		for(Counts c : sorted(classes.all))
+			sb.append("class,").append(c.csv()).append('\n');
+		return sb.toString();
+	}
+
+	/** write replaces file with dump(), through a temporary file so readers never see half of one. */
+	void write(String file){
+		File f = new File(file);
+		File tmp = new File(file + ".tmp");
+		try{
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			try{
+				w.write(dump());
+			}finally{
+				w.close();
+			}
+			if(!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+				throw new IOException("I couldn't rename " + tmp + " to " + f);
+		}catch(IOException e){
+			System.err.printf("tact: I failed to write the metrics: %s\n", e);
+		}
+	}
+
+	public void reset(){
+		sites.clear();
+		classes = new ByClass();
+	}
+
+	/** Counts holds the counters of one site or class. */
+	private static class Counts{
+		private static final int KINDS = 4;
+		/** PAD spaces stripes a cache line apart. */
+		private static final int PAD = 8;
+		private static final int STRIPES = stripes();
+
+		final String name;
+		/** listed is set once the Counts is in its ByClass's all. */
+		volatile boolean listed;
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+		Counts(String name){
+			this.name = name;
+		}
+
+		private static int stripes(){
+			int n = 1;
+			while(n < Runtime.getRuntime().availableProcessors() && n < 16)
+				n <<= 1;
+			return n;
+		}
+
+		void add(int kind){
+			long id = Thread.currentThread().getId();
+			int stripe = (int)((id * 0x9e3779b97f4a7c15L) >>> 40) & (STRIPES - 1);
+			cells.getAndIncrement(stripe * PAD + kind);
+		}
+
+		long get(int kind){
+			long n = 0;
+			for(int i = 0; i < STRIPES; i++)
+				n += cells.get(i * PAD + kind);
+			return n;
+		}
+
+		String csv(){
+			String n = name.indexOf(',') < 0 ? name : "\"" + name + "\"";
+			return n + "," + get(CHECK) + "," + get(CLAIM) + "," + get(GUARD) + "," + get(VIOLATION);
+		}
+
+		@Override public String toString(){
+			return String.format("%s: %d checks, %d claims, %d guard checks, %d violations",
+				name, get(CHECK), get(CLAIM), get(GUARD), get(VIOLATION));
+		}
+	}
+}
@@ -0,0 +1,31 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+/**
+MetricsMBean is what JMX shows of Checker's counters, as
+edu.unh.cs.tact:type=Checker, when the tact.metrics system property is true.
+*/
+public interface MetricsMBean{
+	long getChecks();
+	long getClaims();
+	long getGuardChecks();
+	long getViolations();
+
+	/** getOwnedObjects is the number of entries in the ownership table. */
+	long getOwnedObjects();
+	long getOwnerBuckets();
+	int getLongestOwnerChain();
+	double getMeanOwnerChain();
+	long getGuardedObjects();
+
+	/** hotSites describes the n sites that have made the most checks. */
+	String[] hotSites(int n);
+
+	/** hotClasses describes the n classes whose objects have been checked most. */
+	String[] hotClasses(int n);
+
+	/** dump returns all of the counters as CSV. */
+	String dump();
+
+	void reset();
+}
@@ -0,0 +1,55 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class MetricsTest{
+	private Metrics m = new Metrics(new ThreadMap(), new WeakIdentityMap<Object>());
+
+	@Test public void counts() throws InterruptedException{
+		final String o = "checked";
+		Thread[] ts = new Thread[4];
+		for(int i = 0; i < ts.length; i++){
+			ts[i] = new Thread(){
+				public void run(){
+					for(int j = 0; j < 1000; j++)
+						m.count(Metrics.CHECK, "A.a:1", o);
+				}
+			};
+			ts[i].start();
+		}
+		for(Thread t : ts)
+			t.join();
+		m.count(Metrics.VIOLATION, "A.a:1", o);
+
+		assertEquals(4000, m.getChecks());
+		assertEquals(1, m.getViolations());
+		assertEquals(0, m.getClaims());
+		m.reset();
+		assertEquals(0, m.getChecks());
+	}
+
+	@Test public void hottest(){
+		for(int i = 0; i < 3; i++)
+			m.count(Metrics.CHECK, "A.b:2", 1);
+		m.count(Metrics.CHECK, "A.a:1", "x");
+		m.count(Metrics.CHECK, null, "x");
+
+		String[] hot = m.hotSites(2);
+		assertEquals(2, hot.length);
+		assertTrue(hot[0], hot[0].startsWith("A.b:2: 3 checks"));
+		hot = m.hotClasses(5);
+		assertEquals(2, hot.length);
+		assertTrue(hot[0], hot[0].startsWith("java.lang.Integer: 3 checks"));
+	}
+
+	@Test public void dump(){
+		m.count(Metrics.CHECK, null, "x");
+		m.count(Metrics.CLAIM, null, "x");
+		String d = m.dump();
+		assertTrue(d, d.contains("scope,name,checks,claims,guards,violations\n"));
+		assertTrue(d, d.contains("site,(unknown),1,1,0,0\n"));
+		assertTrue(d, d.contains("class,java.lang.String,1,1,0,0\n"));
+	}
+}
@@ -0,0 +1,223 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+OverheadBench measures what injection costs whole programs. It injects a
+copy of progs.jar with tact.jar, runs each of its programs from both jars
+in fresh JVMs, and prints one CSV line per program:
+
+<pre>
+prog,plain_ms,injected_ms,slowdown,plain_mb_s,injected_mb_s
+</pre>
+
+The times are medians, taken inside the JVM, so they leave out its
+startup. The allocation rates are the megabytes allocated per second of
+that run, from the young generation's usage at each collection; they're
+approximate, and miss objects allocated straight into the old generation.
+<p>
+Run it from the directory with tact.jar and progs.jar, after ant jar.
+The arguments are optional: -runs=N runs each program N times (3 by
+default), -out=FILE writes the CSV there too, any other flag is passed to
+tact, and any other argument names a program to run instead of all of
+them. SendFile in files.jar isn't run; it spends its time asleep.
+*/
+public class OverheadBench{
+	private static final String[] PROGS = {
+		"pi-parallel", "pi-parallel-jit", "test2",
+		"producer-consumer", "shared-cache", "array-kernel",
+	};
+
+	/** RESULT starts the line a child prints its measurements on. */
+	private static final String RESULT = "tact-overhead:";
+
+	public static void main(String[] args) throws Exception{
+		if(args.length > 0 && args[0].equals("-child")){
+			child(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
+		int runs = 3;
+		String outFile = null;
+		List<String> flags = new ArrayList<String>();
+		List<String> progs = new ArrayList<String>();
+		for(String arg : args){
+			if(arg.startsWith("-runs="))
+				runs = Integer.parseInt(arg.substring("-runs=".length()));
+			else if(arg.startsWith("-out="))
+				outFile = arg.substring("-out=".length());
+			else if(arg.startsWith("-"))
+				flags.add(arg);
+			else
+				progs.add(arg);
+		}
+		if(progs.isEmpty())
+			progs = Arrays.asList(PROGS);
+
+		File dir = new File("build", "overhead");
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("I failed to create \"" + dir + "\"");
+		File injected = new File(dir, "progs.jar");
+		copy(new File("progs.jar"), injected);
+
+		List<String> tact = new ArrayList<String>(Arrays.asList(java(), "-jar", "tact.jar"));
+		tact.addAll(flags);
+		tact.add(injected.getPath());
+		if(exec(tact, new ArrayList<String>()) != 0)
+			throw new IOException("tact failed to inject " + injected);
+
+		PrintStream csv = outFile == null ? null : new PrintStream(new FileOutputStream(outFile));
+		String head = "prog,plain_ms,injected_ms,slowdown,plain_mb_s,injected_mb_s";
+		System.out.println(head);
+		if(csv != null)
+			csv.println(head);
+		for(String prog : progs){
+			double[] plain = measure("progs.jar", prog, runs);
+			double[] inj = measure(injected.getPath(), prog, runs);
+			String line = String.format("%s,%.0f,%.0f,%.2f,%.1f,%.1f", prog,
+				plain[0], inj[0], inj[0] / plain[0], plain[1], inj[1]);
+			System.out.println(line);
+			if(csv != null)
+				csv.println(line);
+		}
+		if(csv != null)
+			csv.close();
+	}
+
+	/**
+	measure runs prog from jar runs times, and returns its median time in
+	milliseconds and the megabytes per second that run allocated.
+	*/
+	private static double[] measure(String jar, String prog, int runs) throws Exception{
+		String cp = jar + File.pathSeparator + "tact.jar" + File.pathSeparator + "build";
+		double[][] results = new double[runs][];
+		for(int i = 0; i < runs; i++){
+			List<String> out = new ArrayList<String>();
+			int status = exec(Arrays.asList(java(), "-cp", cp,
+				OverheadBench.class.getName(), "-child", prog), out);
+			results[i] = parse(out);
+			if(status != 0 || results[i] == null)
+				throw new IOException(prog + " from " + jar + " failed: " + out);
+		}
+
+		Arrays.sort(results, new Comparator<double[]>(){
+			public int compare(double[] a, double[] b){
+				return Double.compare(a[0], b[0]);
+			}
+		});
+		double[] median = results[runs / 2];
+		return new double[]{ median[0], median[1] / (1 << 20) / (median[0] / 1000) };
+	}
+
+	private static double[] parse(List<String> out){
+		for(String line : out){
+			if(!line.startsWith(RESULT))
+				continue;
+			String[] f = line.substring(RESULT.length()).trim().split(" ");
+			return new double[]{ Double.parseDouble(f[0]), Double.parseDouble(f[1]) };
+		}
+		return null;
+	}
+
+	private static String java(){
+		return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+	}
+
+	/** exec runs cmd, collecting its output, and returns its exit status. */
+	private static int exec(List<String> cmd, List<String> out) throws Exception{
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		try{
+			String line;
+			while((line = in.readLine()) != null)
+				out.add(line);
+		}finally{
+			in.close();
+		}
+		return p.waitFor();
+	}
+
+	private static void copy(File from, File to) throws IOException{
+		InputStream in = new FileInputStream(from);
+		try{
+			OutputStream out = new FileOutputStream(to);
+			try{
+				byte[] buf = new byte[8192];
+				int n;
+				while((n = in.read(buf)) != -1)
+					out.write(buf, 0, n);
+			}finally{
+				out.close();
+			}
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	child runs the tact_progs program args[0] in this JVM, and prints its
+	time in milliseconds and the bytes it allocated.
+	*/
+	private static void child(String[] args) throws Exception{
+		final AtomicLong young = new AtomicLong();
+		final AtomicLong seen = new AtomicLong();
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			((NotificationEmitter)gc).addNotificationListener(new NotificationListener(){
+				public void handleNotification(Notification n, Object handback){
+					if(!(n.getUserData() instanceof CompositeData))
+						return;
+					CompositeData gcInfo = (CompositeData)((CompositeData)n.getUserData()).get("gcInfo");
+					young.addAndGet(edenUsed((TabularData)gcInfo.get("memoryUsageBeforeGc"))
+						- edenUsed((TabularData)gcInfo.get("memoryUsageAfterGc")));
+					seen.incrementAndGet();
+				}
+			}, null, null);
+		}
+		long before = edenNow();
+
+		long start = System.nanoTime();
+		Class.forName("edu.unh.cs.tact_progs.Main")
+			.getMethod("main", String[].class)
+			.invoke(null, (Object)args);
+		long elapsed = System.nanoTime() - start;
+
+		// Wait for the last collections' notifications.
+		for(int i = 0; i < 100 && seen.get() < collections(); i++)
+			Thread.sleep(10);
+		long bytes = young.get() + edenNow() - before;
+		System.out.println(RESULT + " " + elapsed / 1e6 + " " + bytes);
+	}
+
+	private static long collections(){
+		long n = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			n += Math.max(0, gc.getCollectionCount());
+		return n;
+	}
+
+	private static long edenNow(){
+		long used = 0;
+		for(MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans())
+			if(p.getName().contains("Eden"))
+				used += p.getUsage().getUsed();
+		return used;
+	}
+
+	/** edenUsed sums the used bytes of the eden pools in a GcInfo's usage table. */
+	private static long edenUsed(TabularData usage){
+		long used = 0;
+		for(Object row : usage.values()){
+			CompositeData cd = (CompositeData)row;
+			if(!((String)cd.get("key")).contains("Eden"))
+				continue;
+			used += MemoryUsage.from((CompositeData)cd.get("value")).getUsed();
+		}
+		return used;
+	}
+}
@@ -0,0 +1,17 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+/**
+Owned is implemented by the classes that tact injects with the -inline flag.
+Each such object carries a slot with its ownership state, which Checker reads
+directly instead of looking the object up in a table.
+<p>
+Don't implement this manually.
+*/
+public interface Owned{
+	/** tact$owner returns the current contents of the slot. */
+	Object tact$owner();
+
+	/** tact$claim atomically sets the slot to update if it is currently expect. */
+	boolean tact$claim(Object expect, Object update);
+}
@@ -0,0 +1,353 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+RawJar reads a jar by mapping it into memory and parsing its central
+directory itself, so that the entries tact doesn't change can be copied
+to the new jar as their raw, still compressed bytes. Only the classes
+that are injected get inflated and deflated again.
+<p>
+It handles what jar tools write: stored and deflated entries, with or
+without data descriptors. Zip64 and encrypted archives, and jars of 2 GB
+or more, which can't be mapped as one buffer, throw a ZipException;
+java.util.jar can still read those.
+*/
+class RawJar implements Closeable{
+	private static final int LOC = 0x04034b50, CEN = 0x02014b50, END = 0x06054b50;
+	private static final int LOCHDR = 30, CENHDR = 46, ENDHDR = 22;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile file;
+	private final FileChannel ch;
+	private final ByteBuffer map;
+	private final byte[] comment;
+	public final List<Entry> entries = new ArrayList<Entry>();
+
+	public RawJar(File f) throws IOException{
+		file = new RandomAccessFile(f, "r");
+		ch = file.getChannel();
+		try{
+			if(ch.size() > Integer.MAX_VALUE)
+				throw new ZipException(f + " is too big to map");
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size())
+				.order(ByteOrder.LITTLE_ENDIAN);
+			comment = readDirectory(f);
+		}catch(IOException e){
+			close();
+			throw e;
+		}
+	}
+
+	public void close() throws IOException{
+		file.close();
+	}
+
+	/** Entry is one file in the jar, as its central directory describes it. */
+	static class Entry{
+		int made, needed, flags, method, time, crc, internal, external;
+		long csize, size;
+		byte[] name, extra, localExtra, comment;
+		/** data is the offset of the entry's compressed bytes in the jar. */
+		long data;
+
+		public String getName(){
+			return new String(name, UTF8);
+		}
+
+		public boolean isDirectory(){
+			return name.length > 0 && name[name.length-1] == '/';
+		}
+	}
+
+	private byte[] readDirectory(File f) throws IOException{
+		int end = -1;
+		int limit = Math.max(0, map.limit() - ENDHDR - 0xFFFF);
+		for(int p = map.limit() - ENDHDR; p >= limit; p--){
+			if(map.getInt(p) == END){
+				end = p;
+				break;
+			}
+		}
+		if(end < 0)
+			throw new ZipException(f + " isn't a zip file");
+
+		int total = u16(end + 10);
+		long cen = u32(end + 16);
+		if(total == 0xFFFF || cen == 0xFFFFFFFFL)
+			throw new ZipException(f + " needs zip64");
+
+		int p = (int)cen;
+		for(int i = 0; i < total; i++){
+			if(map.getInt(p) != CEN)
+				throw new ZipException(f + " has a bad central directory");
+			Entry e = new Entry();
+			e.made = u16(p + 4);
+			e.needed = u16(p + 6);
+			e.flags = u16(p + 8);
+			e.method = u16(p + 10);
+			e.time = map.getInt(p + 12);
+			e.crc = map.getInt(p + 16);
+			e.csize = u32(p + 20);
+			e.size = u32(p + 24);
+			int nlen = u16(p + 28), xlen = u16(p + 30), clen = u16(p + 32);
+			e.internal = u16(p + 36);
+			e.external = map.getInt(p + 38);
+			long loc = u32(p + 42);
+			e.name = bytes(p + CENHDR, nlen);
+			e.extra = bytes(p + CENHDR + nlen, xlen);
+			e.comment = bytes(p + CENHDR + nlen + xlen, clen);
+			p += CENHDR + nlen + xlen + clen;
+
+			if(e.csize == 0xFFFFFFFFL || e.size == 0xFFFFFFFFL || loc == 0xFFFFFFFFL)
+				throw new ZipException(e.getName() + " needs zip64");
+			if((e.flags & 1) != 0)
+				throw new ZipException(e.getName() + " is encrypted");
+			if(e.method != ZipEntry.STORED && e.method != ZipEntry.DEFLATED)
+				throw new ZipException(e.getName() + " uses compression method " + e.method);
+			if(map.getInt((int)loc) != LOC)
+				throw new ZipException(e.getName() + " has a bad local header");
+
+			int lnlen = u16((int)loc + 26), lxlen = u16((int)loc + 28);
+			e.localExtra = bytes((int)loc + LOCHDR + lnlen, lxlen);
+			e.data = loc + LOCHDR + lnlen + lxlen;
+			entries.add(e);
+		}
+		return bytes(end + ENDHDR, u16(end + 20));
+	}
+
+	/** read returns e's uncompressed contents. It is safe to call from many threads. */
+	public byte[] read(Entry e) throws IOException{
+		ByteBuffer b = map.duplicate();
+		b.position((int)e.data);
+		if(e.method == ZipEntry.STORED){
+			byte[] out = new byte[(int)e.size];
+			b.get(out);
+			return out;
+		}
+
+		// Inflating without the zlib wrapper needs an extra dummy byte.
+		byte[] in = new byte[(int)e.csize + 1];
+		b.get(in, 0, (int)e.csize);
+		byte[] out = new byte[(int)e.size];
+		Inflater inf = new Inflater(true);
+		try{
+			inf.setInput(in);
+			int n = 0;
+			while(n < out.length && !inf.finished()){
+				int k = inf.inflate(out, n, out.length - n);
+				if(k == 0 && (inf.needsInput() || inf.needsDictionary()))
+					break;
+				n += k;
+			}
+			if(n != out.length)
+				throw new ZipException(e.getName() + " is truncated");
+		}catch(DataFormatException x){
+			throw new ZipException(e.getName() + ": " + x.getMessage());
+		}finally{
+			inf.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(out);
+		if((int)crc.getValue() != e.crc)
+			throw new ZipException(e.getName() + " has a bad CRC");
+		return out;
+	}
+
+	private int u16(int p){
+		return map.getShort(p) & 0xFFFF;
+	}
+
+	private long u32(int p){
+		return map.getInt(p) & 0xFFFFFFFFL;
+	}
+
+	private byte[] bytes(int p, int n){
+		byte[] b = new byte[n];
+		ByteBuffer d = map.duplicate();
+		d.position(p);
+		d.get(b);
+		return b;
+	}
+
+	/**
+	Writer writes a new jar, entry by entry. Entries are either copied
+	from a RawJar as they are, or written from new contents.
+	*/
+	static class Writer implements Closeable{
+		private final FileOutputStream file;
+		private final FileChannel ch;
+		private final ByteArrayOutputStream cen = new ByteArrayOutputStream();
+		private final byte[] comment;
+		private final int level;
+		private int count = 0;
+
+		/**
+		Writer creates f. Written entries are compressed at level, from
+		java.util.zip.Deflater; level 0 stores them.
+		*/
+		public Writer(File f, byte[] comment, int level) throws IOException{
+			this.file = new FileOutputStream(f);
+			this.ch = file.getChannel();
+			this.comment = comment;
+			this.level = level;
+		}
+
+		/** copy copies e's raw bytes from jar, which are transferred without passing through the heap. */
+		public void copy(RawJar jar, Entry e) throws IOException{
+			long off = begin(e);
+			for(long n = 0; n < e.csize; )
+				n += jar.ch.transferTo(e.data + n, e.csize - n, ch);
+			end(e, off);
+		}
+
+		/** write writes contents as the new contents of e. */
+		public void write(Entry e, byte[] contents) throws IOException{
+			Entry n = new Entry();
+			n.made = e.made;
+			n.flags = e.flags;
+			n.time = e.time;
+			n.internal = e.internal;
+			n.external = e.external;
+			n.name = e.name;
+			n.extra = e.extra;
+			n.localExtra = e.localExtra;
+			n.comment = e.comment;
+
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			n.crc = (int)crc.getValue();
+			n.size = contents.length;
+
+			byte[] data = contents;
+			n.method = ZipEntry.STORED;
+			n.needed = 10;
+			if(level != 0){
+				data = deflate(contents);
+				n.method = ZipEntry.DEFLATED;
+				n.needed = 20;
+			}
+			n.csize = data.length;
+
+			long off = begin(n);
+			put(ByteBuffer.wrap(data));
+			end(n, off);
+		}
+
+		private byte[] deflate(byte[] b){
+			Deflater def = new Deflater(level, true);
+			try{
+				def.setInput(b);
+				def.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(b.length/2 + 64);
+				byte[] buf = new byte[8192];
+				while(!def.finished()){
+					int n = def.deflate(buf);
+					out.write(buf, 0, n);
+				}
+				return out.toByteArray();
+			}finally{
+				def.end();
+			}
+		}
+
+		/**
+		begin writes e's local header, returning its offset. The sizes are
+		always known up front, so no data descriptor follows the data.
+		*/
+		private long begin(Entry e) throws IOException{
+			if(count == 0xFFFF)
+				throw new ZipException("too many entries without zip64");
+			long off = ch.position();
+			if(off > 0xFFFFFFFFL)
+				throw new ZipException("jar is too big without zip64");
+
+			ByteBuffer b = header(LOCHDR + e.name.length + e.localExtra.length);
+			b.putInt(LOC);
+			b.putShort((short)e.needed);
+			b.putShort((short)(e.flags & ~8));
+			b.putShort((short)e.method);
+			b.putInt(e.time);
+			b.putInt(e.crc);
+			b.putInt((int)e.csize);
+			b.putInt((int)e.size);
+			b.putShort((short)e.name.length);
+			b.putShort((short)e.localExtra.length);
+			b.put(e.name);
+			b.put(e.localExtra);
+			b.flip();
+			put(b);
+			return off;
+		}
+
+		private void end(Entry e, long off) throws IOException{
+			ByteBuffer b = header(CENHDR + e.name.length + e.extra.length + e.comment.length);
+			b.putInt(CEN);
+			b.putShort((short)e.made);
+			b.putShort((short)e.needed);
+			b.putShort((short)(e.flags & ~8));
+			b.putShort((short)e.method);
+			b.putInt(e.time);
+			b.putInt(e.crc);
+			b.putInt((int)e.csize);
+			b.putInt((int)e.size);
+			b.putShort((short)e.name.length);
+			b.putShort((short)e.extra.length);
+			b.putShort((short)e.comment.length);
+			b.putShort((short)0); // disk
+			b.putShort((short)e.internal);
+			b.putInt(e.external);
+			b.putInt((int)off);
+			b.put(e.name);
+			b.put(e.extra);
+			b.put(e.comment);
+			cen.write(b.array(), 0, b.position());
+			count++;
+		}
+
+		public void close() throws IOException{
+			try{
+				long off = ch.position();
+				if(off > 0xFFFFFFFFL)
+					throw new ZipException("jar is too big without zip64");
+				put(ByteBuffer.wrap(cen.toByteArray()));
+
+				ByteBuffer b = header(ENDHDR + comment.length);
+				b.putInt(END);
+				b.putShort((short)0); // this disk
+				b.putShort((short)0); // the central directory's disk
+				b.putShort((short)count);
+				b.putShort((short)count);
+				b.putInt(cen.size());
+				b.putInt((int)off);
+				b.putShort((short)comment.length);
+				b.put(comment);
+				b.flip();
+				put(b);
+			}finally{
+				file.close();
+			}
+		}
+
+		private static ByteBuffer header(int n){
+			return ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		private void put(ByteBuffer b) throws IOException{
+			while(b.hasRemaining())
+				ch.write(b);
+		}
+	}
+
+	/** comment returns the jar's comment. */
+	public byte[] comment(){
+		return comment;
+	}
+}
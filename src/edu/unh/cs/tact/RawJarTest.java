@@ -0,0 +1,107 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+import java.util.zip.*;
+
+public class RawJarTest{
+	@Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static final byte[] hello = "hello, hello, hello, hello".getBytes();
+	private static final byte[] bye = "bye".getBytes();
+
+	/** jar writes a jar with a deflated and a stored entry. */
+	private File jar() throws IOException{
+		File f = tmp.newFile("in.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(f));
+		try{
+			out.putNextEntry(new JarEntry("a/Hello.txt"));
+			out.write(hello);
+
+			JarEntry e = new JarEntry("Bye.txt");
+			CRC32 crc = new CRC32();
+			crc.update(bye);
+			e.setMethod(ZipEntry.STORED);
+			e.setSize(bye.length);
+			e.setCrc(crc.getValue());
+			out.putNextEntry(e);
+			out.write(bye);
+		}finally{
+			out.close();
+		}
+		return f;
+	}
+
+	private static byte[] read(JarFile jar, String name) throws IOException{
+		InputStream in = jar.getInputStream(jar.getEntry(name));
+		try{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int b;
+			while((b = in.read()) != -1)
+				out.write(b);
+			return out.toByteArray();
+		}finally{
+			in.close();
+		}
+	}
+
+	@Test public void read() throws IOException{
+		RawJar jar = new RawJar(jar());
+		try{
+			assertEquals(2, jar.entries.size());
+			assertEquals("a/Hello.txt", jar.entries.get(0).getName());
+			assertEquals(ZipEntry.DEFLATED, jar.entries.get(0).method);
+			assertArrayEquals(hello, jar.read(jar.entries.get(0)));
+			assertEquals(ZipEntry.STORED, jar.entries.get(1).method);
+			assertArrayEquals(bye, jar.read(jar.entries.get(1)));
+		}finally{
+			jar.close();
+		}
+	}
+
+	@Test public void rewrite() throws IOException{
+		rewrite(-1);
+		rewrite(0);
+	}
+
+	private void rewrite(int level) throws IOException{
+		File f = new File(tmp.getRoot(), "out" + level + ".jar");
+		RawJar in = new RawJar(jar());
+		try{
+			RawJar.Writer out = new RawJar.Writer(f, in.comment(), level);
+			try{
+				out.copy(in, in.entries.get(0));
+				out.write(in.entries.get(1), hello);
+			}finally{
+				out.close();
+			}
+		}finally{
+			in.close();
+			new File(tmp.getRoot(), "in.jar").delete();
+		}
+
+		JarFile jar = new JarFile(f);
+		try{
+			assertArrayEquals(hello, read(jar, "a/Hello.txt"));
+			assertArrayEquals(hello, read(jar, "Bye.txt"));
+			assertEquals(level == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED,
+				jar.getEntry("Bye.txt").getMethod());
+		}finally{
+			jar.close();
+		}
+	}
+
+	@Test(expected=ZipException.class)
+	public void notAZip() throws IOException{
+		File f = tmp.newFile("junk.jar");
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(hello);
+		out.close();
+		new RawJar(f);
+	}
+}
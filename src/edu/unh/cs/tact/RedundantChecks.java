@@ -0,0 +1,247 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+import static edu.unh.cs.tact.Util.*;
+import static edu.unh.cs.tact.Flow.*;
+
+/**
+RedundantChecks finds the accesses whose check would repeat one that
+has already been made on every path to them: the same kind of check on
+the same local variable (or the same class, for static fields), with no
+store to that local, method call, or monitor enter/exit in between.
+<p>
+It is a forward must-analysis over the uninstrumented instructions.
+Each state tracks which locals the operand stack slots were loaded from,
+so the subject of an access can be named, and the set of checks that are
+available. Methods with subroutines (jsr/ret) are left alone.
+*/
+class RedundantChecks{
+	public final MethodGen mg;
+	public final ConstantPoolGen cp;
+	public final InstructionList list;
+
+	public RedundantChecks(MethodGen mg, ConstantPoolGen cp){
+		this.mg = notNull(mg, "mg");
+		this.cp = notNull(cp, "cp");
+		this.list = mg.getInstructionList();
+	}
+
+	private Map<String, String> implies = Collections.emptyMap();
+
+	/**
+	find returns the subset of the keys of checks that are redundant.
+	checks maps each access to be checked to the kind of check it gets;
+	two checks are equivalent when their kinds are equal.
+	*/
+	public Set<InstructionHandle> find(Map<InstructionHandle, String> checks){
+		return find(checks, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	find is find for kinds of check that subsume others: a check of kind k
+	also makes the check of kind implies.get(k), if there is one.
+	*/
+	public Set<InstructionHandle> find(Map<InstructionHandle, String> checks, Map<String, String> implies){
+		this.implies = notNull(implies, "implies");
+		Set<InstructionHandle> redundant = new HashSet<InstructionHandle>();
+		Map<InstructionHandle, State> in = analyze(checks);
+		if(in == null)
+			return redundant;
+
+		for(Map.Entry<InstructionHandle, String> c : checks.entrySet()){
+			State s = in.get(c.getKey());
+			if(s == null)
+				continue;
+			String fact = fact(c.getKey(), c.getValue(), s);
+			if(fact != null && s.facts.contains(fact))
+				redundant.add(c.getKey());
+		}
+		return redundant;
+	}
+
+	/**
+	subjects returns the local variable that the object each of accesses
+	works on was loaded from, for those where it's the same on every path.
+	Accesses to static fields are left out.
+	*/
+	public Map<InstructionHandle, Integer> subjects(Collection<InstructionHandle> accesses){
+		Map<InstructionHandle, Integer> r = new HashMap<InstructionHandle, Integer>();
+		Map<InstructionHandle, State> in = analyze(Collections.<InstructionHandle, String>emptyMap());
+		if(in == null)
+			return r;
+
+		for(InstructionHandle h : accesses){
+			State s = in.get(h);
+			if(s == null)
+				continue;
+			int depth = subjectDepth(h.getInstruction(), cp);
+			if(depth < 0 || depth >= s.stack.length)
+				continue;
+			int local = s.stack[s.stack.length - 1 - depth];
+			if(local != UNKNOWN)
+				r.put(h, local);
+		}
+		return r;
+	}
+
+	private Map<InstructionHandle, State> analyze(Map<InstructionHandle, String> checks){
+		Map<InstructionHandle, State> in = new HashMap<InstructionHandle, State>();
+		Deque<InstructionHandle> work = new ArrayDeque<InstructionHandle>();
+
+		if(list.getStart() == null || hasSubroutines(list))
+			return null;
+		in.put(list.getStart(), new State(new int[0], new HashSet<String>()));
+		work.add(list.getStart());
+
+		for(CodeExceptionGen eh : mg.getExceptionHandlers()){
+			InstructionHandle h = eh.getHandlerPC();
+			in.put(h, new State(new int[]{ UNKNOWN }, new HashSet<String>()));
+			work.add(h);
+		}
+
+		while(!work.isEmpty()){
+			InstructionHandle h = work.poll();
+			State out = transfer(h, in.get(h), checks.get(h));
+			if(out == null)
+				return null;
+
+			for(InstructionHandle succ : successors(h)){
+				State old = in.get(succ);
+				if(old == null){
+					in.put(succ, out.copy());
+					work.add(succ);
+					continue;
+				}
+				int change = old.merge(out);
+				if(change < 0)
+					return null;
+				if(change > 0)
+					work.add(succ);
+			}
+		}
+		return in;
+	}
+
+	/** fact names the check of kind made at h, or null if its subject isn't known. */
+	private String fact(InstructionHandle h, String kind, State s){
+		Instruction i = h.getInstruction();
+		if(i instanceof GETSTATIC || i instanceof PUTSTATIC){
+			Constant c = cp.getConstant(((FieldInstruction)i).getIndex());
+			return "C" + ((ConstantFieldref)c).getClassIndex() + ":" + kind;
+		}
+
+		int depth = subjectDepth(i, cp);
+		if(depth < 0 || depth >= s.stack.length)
+			return null;
+		int local = s.stack[s.stack.length - 1 - depth];
+		if(local == UNKNOWN)
+			return null;
+		return "L" + local + ":" + kind;
+	}
+
+	private State transfer(InstructionHandle h, State s, String kind){
+		Instruction i = h.getInstruction();
+		State out = s.copy();
+
+		if(kind != null){
+			String fact = fact(h, kind, s);
+			if(fact != null)
+				out.facts.add(fact);
+			String weaker = implies.get(kind);
+			if(fact != null && weaker != null)
+				out.facts.add(fact(h, weaker, s));
+		}
+
+		if(i instanceof InvokeInstruction || i instanceof MONITORENTER || i instanceof MONITOREXIT)
+			out.facts.clear();
+
+		int[] stk = simulate(i, s.stack);
+		if(stk == null)
+			return null;
+		out.stack = stk;
+
+		if(i instanceof StoreInstruction || i instanceof IINC){
+			LocalVariableInstruction lv = (LocalVariableInstruction)i;
+			out.kill(lv.getIndex());
+			if(lv.getType(cp).getSize() == 2)
+				out.kill(lv.getIndex() + 1);
+		}
+		return out;
+	}
+
+	/**
+	simulate returns the stack of local sources after i executes.
+	Loads of reference locals push their index, stack shuffles move
+	slots exactly, checkcast keeps its operand, and everything else
+	pushes UNKNOWN. It returns null on a stack underflow.
+	*/
+	private int[] simulate(Instruction i, int[] stack){
+		int n = stack.length;
+		if(i instanceof ALOAD){
+			int[] r = Arrays.copyOf(stack, n + 1);
+			r[n] = ((ALOAD)i).getIndex();
+			return r;
+		}
+		if(i instanceof CHECKCAST)
+			return n < 1 ? null : stack.clone();
+		if(isShuffle(i))
+			return shuffle(i, stack);
+
+		int consumed = i.consumeStack(cp);
+		int produced = i.produceStack(cp);
+		if(consumed > n)
+			return null;
+		int[] r = Arrays.copyOf(stack, n - consumed + produced);
+		Arrays.fill(r, n - consumed, r.length, UNKNOWN);
+		return r;
+	}
+
+	private static class State{
+		int[] stack;
+		final Set<String> facts;
+
+		State(int[] stack, Set<String> facts){
+			this.stack = stack;
+			this.facts = facts;
+		}
+
+		State copy(){
+			return new State(stack.clone(), new HashSet<String>(facts));
+		}
+
+		/** kill forgets local's checks and which stack slots were loaded from it. */
+		void kill(int local){
+			for(int i = 0; i < stack.length; i++)
+				if(stack[i] == local)
+					stack[i] = UNKNOWN;
+
+			String p = "L" + local + ":";
+			for(Iterator<String> it = facts.iterator(); it.hasNext(); )
+				if(it.next().startsWith(p))
+					it.remove();
+		}
+
+		/**
+		merge folds o into this state, returning 1 if this changed,
+		0 if it didn't, and -1 if the stacks can't be merged.
+		*/
+		int merge(State o){
+			if(o.stack.length != stack.length)
+				return -1;
+			boolean changed = false;
+			for(int i = 0; i < stack.length; i++){
+				if(stack[i] != o.stack[i] && stack[i] != UNKNOWN){
+					stack[i] = UNKNOWN;
+					changed = true;
+				}
+			}
+			if(facts.retainAll(o.facts))
+				changed = true;
+			return changed ? 1 : 0;
+		}
+	}
+}
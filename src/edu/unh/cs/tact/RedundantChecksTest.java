@@ -0,0 +1,131 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.util.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.generic.*;
+
+public class RedundantChecksTest{
+	private ConstantPoolGen cp;
+	private InstructionFactory f;
+	private InstructionList il;
+	private Map<InstructionHandle, String> checks;
+
+	@Before public void setUp(){
+		cp = new ConstantPoolGen();
+		f = new InstructionFactory(cp);
+		il = new InstructionList();
+		checks = new HashMap<InstructionHandle, String>();
+	}
+
+	private InstructionHandle get(int local, String field){
+		il.append(new ALOAD(local));
+		InstructionHandle h = il.append(f.createFieldAccess("Dummy", field, Type.INT, Constants.GETFIELD));
+		il.append(new POP());
+		checks.put(h, "check");
+		return h;
+	}
+
+	private Set<InstructionHandle> find(){
+		il.append(new RETURN());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID,
+			new Type[]{ Type.OBJECT }, new String[]{ "o" }, "m", "Dummy", il, cp);
+		return new RedundantChecks(mg, cp).find(checks);
+	}
+
+	@Test public void sameLocal(){
+		InstructionHandle a = get(0, "a");
+		InstructionHandle b = get(0, "b");
+		InstructionHandle c = get(1, "c");
+		Set<InstructionHandle> r = find();
+		assertFalse(r.contains(a));
+		assertTrue(r.contains(b));
+		assertFalse(r.contains(c));
+	}
+
+	@Test public void differentKind(){
+		get(0, "a");
+		InstructionHandle b = get(0, "b");
+		checks.put(b, "guardByThis");
+		assertTrue(find().isEmpty());
+	}
+
+	@Test public void impliedKind(){
+		InstructionHandle a = get(0, "a");
+		InstructionHandle b = get(0, "b");
+		InstructionHandle c = get(0, "c");
+		checks.put(a, "checkRead");
+		checks.put(c, "checkRead");
+		il.append(new RETURN());
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID,
+			new Type[]{ Type.OBJECT }, new String[]{ "o" }, "m", "Dummy", il, cp);
+		Set<InstructionHandle> r = new RedundantChecks(mg, cp)
+			.find(checks, Collections.singletonMap("check", "checkRead"));
+		assertFalse(r.contains(b)); // A read doesn't make a write's check
+		assertTrue(r.contains(c));
+	}
+
+	@Test public void callKills(){
+		get(0, "a");
+		il.append(f.createInvoke("Dummy", "foo", Type.VOID, Type.NO_ARGS, Constants.INVOKESTATIC));
+		InstructionHandle b = get(0, "b");
+		assertFalse(find().contains(b));
+	}
+
+	@Test public void monitorKills(){
+		get(0, "a");
+		il.append(new ALOAD(1));
+		il.append(new MONITORENTER());
+		InstructionHandle b = get(0, "b");
+		assertFalse(find().contains(b));
+	}
+
+	@Test public void storeKills(){
+		get(1, "a");
+		il.append(new ALOAD(0));
+		il.append(new ASTORE(1));
+		InstructionHandle b = get(1, "b");
+		assertFalse(find().contains(b));
+	}
+
+	@Test public void dupKeepsSubject(){
+		// o.n++
+		il.append(new ALOAD(0));
+		il.append(new DUP());
+		InstructionHandle g = il.append(f.createFieldAccess("Dummy", "n", Type.INT, Constants.GETFIELD));
+		il.append(new ICONST(1));
+		il.append(new IADD());
+		InstructionHandle p = il.append(f.createFieldAccess("Dummy", "n", Type.INT, Constants.PUTFIELD));
+		checks.put(g, "check");
+		checks.put(p, "check");
+		Set<InstructionHandle> r = find();
+		assertFalse(r.contains(g));
+		assertTrue(r.contains(p));
+	}
+
+	@Test public void onlyOneBranch(){
+		il.append(new ILOAD(2));
+		BranchHandle br = il.append(new IFEQ(null));
+		get(0, "a");
+		InstructionHandle join = il.append(new NOP());
+		br.setTarget(join);
+		InstructionHandle b = get(0, "b");
+		assertFalse(find().contains(b));
+	}
+
+	@Test public void bothBranches(){
+		il.append(new ILOAD(2));
+		BranchHandle br = il.append(new IFEQ(null));
+		get(0, "a");
+		BranchHandle skip = il.append(new GOTO(null));
+		br.setTarget(il.append(new NOP()));
+		get(0, "b");
+		InstructionHandle join = il.append(new NOP());
+		skip.setTarget(join);
+		InstructionHandle c = get(0, "c");
+		assertTrue(find().contains(c));
+	}
+}
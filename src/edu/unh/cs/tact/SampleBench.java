@@ -0,0 +1,150 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import org.apache.bcel.classfile.*;
+
+/**
+SampleBench measures what sampling saves. It injects Work, a loop that
+reads a field and an array element per iteration, at each sampling rate,
+and reports the time per iteration next to the uninjected loop's.
+"sites" samples with -sample=N, at injection time; "accesses" and
+"objects" sample at run time, like the tact.sample and tact.sampleObjects
+properties.
+<p>
+Its argument is the number of threads that each run their own Work at
+once (0, the default, for the number of processors), so that what the
+threads share shows up in the times.
+*/
+public class SampleBench{
+	private static final int[] RATES = { 1, 10, 100, 1000 };
+	private static final long MILLIS = 500;
+
+	private static int threads = Runtime.getRuntime().availableProcessors();
+
+	public static class Work implements Runnable{
+		public final int[] data = new int[1024];
+		public int sum;
+
+		public void run(){
+			for(int i = 0; i < data.length; i++)
+				sum += data[i];
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		if(args.length > 0 && Integer.parseInt(args[0]) > 0)
+			threads = Integer.parseInt(args[0]);
+		byte[] orig = classFile();
+		double base = time(load(orig));
+		System.out.printf("%d threads\n", threads);
+		System.out.printf("%-10s %6s %12s %10s\n", "mode", "rate", "ns/iter", "overhead");
+		System.out.printf("%-10s %6s %12.2f %10s\n", "none", "-", base, "-");
+
+		for(int rate : RATES){
+			Main.sample = rate;
+			double t = time(load(inject(orig)));
+			report("sites", rate, t, base);
+		}
+		Main.sample = 1;
+
+		Class<?> full = load(inject(orig));
+		for(int rate : RATES){
+			Checker.sample(rate, 1);
+			report("accesses", rate, time(full), base);
+		}
+		for(int rate : RATES){
+			Checker.sample(1, rate);
+			report("objects", rate, time(full), base);
+		}
+		Checker.sample(1, 1);
+	}
+
+	private static void report(String mode, int rate, double t, double base){
+		System.out.printf("%-10s %6d %12.2f %9.1fx\n", mode, rate, t, t / base);
+	}
+
+	private static byte[] classFile() throws IOException{
+		InputStream in = SampleBench.class.getResourceAsStream("SampleBench$Work.class");
+		try{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while((n = in.read(buf)) != -1)
+				out.write(buf, 0, n);
+			return out.toByteArray();
+		}finally{
+			in.close();
+		}
+	}
+
+	private static byte[] inject(byte[] orig) throws Exception{
+		JavaClass jc = new ClassParser(new ByteArrayInputStream(orig), "Work.class").parse();
+		return Main.inject(jc).getBytes();
+	}
+
+	/** load defines a fresh Work from b, so each rate gets its own sites. */
+	private static Class<?> load(final byte[] b) throws Exception{
+		ClassLoader l = new ClassLoader(SampleBench.class.getClassLoader()){
+			@Override protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException{
+				if(!name.equals(Work.class.getName()))
+					return super.loadClass(name, resolve);
+				synchronized(this){
+					Class<?> c = findLoadedClass(name);
+					if(c == null)
+						c = defineClass(name, b, 0, b.length);
+					return c;
+				}
+			}
+		};
+		return l.loadClass(Work.class.getName());
+	}
+
+	/**
+	time returns the nanoseconds per loop iteration of a Work of class c,
+	after warming it up, averaged over the threads. Each thread makes its
+	own Work, so it owns it.
+	*/
+	private static double time(final Class<?> c) throws Exception{
+		final int len = new Work().data.length;
+		final double[] ns = new double[threads];
+		final Throwable[] err = new Throwable[1];
+		Thread[] ts = new Thread[threads];
+		for(int i = 0; i < threads; i++){
+			final int id = i;
+			ts[i] = new Thread(){
+				public void run(){
+					try{
+						Runnable w = (Runnable)c.getConstructor().newInstance();
+						loop(w, MILLIS / 2);
+						long start = System.nanoTime();
+						long iters = loop(w, MILLIS) * len;
+						ns[id] = (System.nanoTime() - start) / (double)iters;
+					}catch(Throwable e){
+						err[0] = e;
+					}
+				}
+			};
+			ts[i].start();
+		}
+		double sum = 0;
+		for(int i = 0; i < threads; i++){
+			ts[i].join();
+			sum += ns[i];
+		}
+		if(err[0] != null)
+			throw new RuntimeException(err[0]);
+		return sum / threads;
+	}
+
+	private static long loop(Runnable w, long millis){
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long n = 0;
+		do{
+			for(int i = 0; i < 100; i++)
+				w.run();
+			n += 100;
+		}while(System.nanoTime() < deadline);
+		return n;
+	}
+}
@@ -0,0 +1,237 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+SlotInjector makes a class implement Owned by adding a volatile slot field,
+an AtomicReferenceFieldUpdater for it, and the two Owned methods. A subclass
+that is also injected gets its own slot, which shadows its superclass's; all
+access goes through the Owned methods, so each object still has one slot.
+<p>
+The new members would change the serialVersionUID that Java computes for
+a Serializable class that doesn't declare one, and objects serialized by
+the uninjected class couldn't be read by the injected one, or the other
+way around. So such a class is given the serialVersionUID it had.
+*/
+class SlotInjector{
+	static final String SLOT = "tact$owner";
+	static final String UPDATER = "tact$owners";
+
+	private static final String OWNED = "edu.unh.cs.tact.Owned";
+	private static final String ARFU = "java.util.concurrent.atomic.AtomicReferenceFieldUpdater";
+	private static final ObjectType ARFU_TYPE = new ObjectType(ARFU);
+
+	public final ClassGen cg;
+	public final ConstantPoolGen cp;
+	public final InstructionFactory f;
+
+	public SlotInjector(ClassGen cg, InstructionFactory f){
+		this.cg = notNull(cg, "cg");
+		this.cp = cg.getConstantPool();
+		this.f = notNull(f, "f");
+	}
+
+	public boolean inject(){
+		if(cg.isInterface() || cg.containsField(SLOT) != null)
+			return false;
+
+		if(cg.containsField("serialVersionUID") == null && !cg.isEnum() && isSerializable())
+			cg.addField(serialVersionUID());
+		cg.addInterface(OWNED);
+		cg.addField(new FieldGen(
+			Constants.ACC_PRIVATE | Constants.ACC_VOLATILE
+				| Constants.ACC_TRANSIENT | Constants.ACC_SYNTHETIC,
+			Type.OBJECT, SLOT, cp).getField());
+		cg.addField(new FieldGen(
+			Constants.ACC_PRIVATE | Constants.ACC_STATIC
+				| Constants.ACC_FINAL | Constants.ACC_SYNTHETIC,
+			ARFU_TYPE, UPDATER, cp).getField());
+
+		addOwner();
+		addClaim();
+		initUpdater();
+		return true;
+	}
+
+	private void addOwner(){
+		InstructionList il = new InstructionList();
+		il.append(InstructionFactory.createThis());
+		il.append(f.createFieldAccess(cg.getClassName(), SLOT, Type.OBJECT, Constants.GETFIELD));
+		il.append(InstructionFactory.createReturn(Type.OBJECT));
+		addMethod(il, Type.OBJECT, Type.NO_ARGS, new String[0], "tact$owner");
+	}
+
+	private void addClaim(){
+		InstructionList il = new InstructionList();
+		il.append(f.createFieldAccess(cg.getClassName(), UPDATER, ARFU_TYPE, Constants.GETSTATIC));
+		il.append(InstructionFactory.createThis());
+		il.append(InstructionFactory.createLoad(Type.OBJECT, 1));
+		il.append(InstructionFactory.createLoad(Type.OBJECT, 2));
+		il.append(f.createInvoke(ARFU, "compareAndSet", Type.BOOLEAN,
+			new Type[]{ Type.OBJECT, Type.OBJECT, Type.OBJECT }, Constants.INVOKEVIRTUAL));
+		il.append(InstructionFactory.createReturn(Type.BOOLEAN));
+		addMethod(il, Type.BOOLEAN, new Type[]{ Type.OBJECT, Type.OBJECT },
+			new String[]{ "expect", "update" }, "tact$claim");
+	}
+
+	private void addMethod(InstructionList il, Type ret, Type[] args, String[] names, String name){
+		MethodGen mg = new MethodGen(
+			Constants.ACC_PUBLIC | Constants.ACC_SYNTHETIC,
+			ret, args, names, name, cg.getClassName(), il, cp);
+		mg.setMaxStack();
+		mg.setMaxLocals();
+		cg.addMethod(mg.getMethod());
+	}
+
+	/** initUpdater creates the updater at the start of the class's static initializer. */
+	private void initUpdater(){
+		InstructionList il = new InstructionList();
+		il.append(new LDC_W(cp.addClass(cg.getClassName())));
+		il.append(new LDC_W(cp.addClass("java.lang.Object")));
+		il.append(new PUSH(cp, SLOT));
+		il.append(f.createInvoke(ARFU, "newUpdater", ARFU_TYPE,
+			new Type[]{ new ObjectType("java.lang.Class"), new ObjectType("java.lang.Class"), Type.STRING },
+			Constants.INVOKESTATIC));
+		il.append(f.createFieldAccess(cg.getClassName(), UPDATER, ARFU_TYPE, Constants.PUTSTATIC));
+
+		Method clinit = cg.containsMethod("<clinit>", "()V");
+		if(clinit == null){
+			il.append(InstructionFactory.createReturn(Type.VOID));
+			MethodGen mg = new MethodGen(Constants.ACC_STATIC, Type.VOID, Type.NO_ARGS,
+				new String[0], "<clinit>", cg.getClassName(), il, cp);
+			mg.setMaxStack();
+			mg.setMaxLocals();
+			cg.addMethod(mg.getMethod());
+			return;
+		}
+
+		MethodGen mg = new MethodGen(clinit, cg.getClassName(), cp);
+		mg.getInstructionList().insert(il);
+		mg.setMaxStack();
+		cg.replaceMethod(clinit, mg.getMethod());
+	}
+
+	/** isSerializable is true if the class may implement Serializable; if its supertypes can't be found, it may. */
+	private boolean isSerializable(){
+		try{
+			return Repository.implementationOf(cg.getJavaClass(), "java.io.Serializable");
+		}catch(ClassNotFoundException e){
+			return true;
+		}
+	}
+
+	/**
+	serialVersionUID returns a field that declares the serialVersionUID
+	that Java computes for the class as it is, before anything is added,
+	as in the Java Object Serialization Specification, section 4.6.
+	*/
+	private Field serialVersionUID(){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try{
+			out.writeUTF(cg.getClassName());
+			out.writeInt(classModifiers() & (Constants.ACC_PUBLIC | Constants.ACC_FINAL
+				| Constants.ACC_INTERFACE | Constants.ACC_ABSTRACT));
+
+			String[] ifaces = cg.getInterfaceNames().clone();
+			Arrays.sort(ifaces);
+			for(String i : ifaces)
+				out.writeUTF(i);
+
+			Field[] fields = cg.getFields().clone();
+			Arrays.sort(fields, new Comparator<Field>(){
+				public int compare(Field a, Field b){
+					return a.getName().compareTo(b.getName());
+				}
+			});
+			for(Field fd : fields){
+				int mods = fd.getAccessFlags() & (Constants.ACC_PUBLIC | Constants.ACC_PRIVATE
+					| Constants.ACC_PROTECTED | Constants.ACC_STATIC | Constants.ACC_FINAL
+					| Constants.ACC_VOLATILE | Constants.ACC_TRANSIENT);
+				if((mods & Constants.ACC_PRIVATE) != 0
+						&& (mods & (Constants.ACC_STATIC | Constants.ACC_TRANSIENT)) != 0)
+					continue;
+				out.writeUTF(fd.getName());
+				out.writeInt(mods);
+				out.writeUTF(fd.getSignature());
+			}
+
+			if(cg.containsMethod("<clinit>", "()V") != null){
+				out.writeUTF("<clinit>");
+				out.writeInt(Constants.ACC_STATIC);
+				out.writeUTF("()V");
+			}
+
+			List<Method> ctors = new ArrayList<Method>();
+			List<Method> methods = new ArrayList<Method>();
+			for(Method m : cg.getMethods()){
+				if(m.isPrivate() || m.getName().equals("<clinit>"))
+					continue;
+				(m.getName().equals("<init>") ? ctors : methods).add(m);
+			}
+			Comparator<Method> byName = new Comparator<Method>(){
+				public int compare(Method a, Method b){
+					int c = a.getName().compareTo(b.getName());
+					return c != 0 ? c : a.getSignature().compareTo(b.getSignature());
+				}
+			};
+			Collections.sort(ctors, byName);
+			Collections.sort(methods, byName);
+			for(List<Method> ms : Arrays.asList(ctors, methods)){
+				for(Method m : ms){
+					out.writeUTF(m.getName());
+					out.writeInt(m.getAccessFlags() & (Constants.ACC_PUBLIC | Constants.ACC_PRIVATE
+						| Constants.ACC_PROTECTED | Constants.ACC_STATIC | Constants.ACC_FINAL
+						| Constants.ACC_SYNCHRONIZED | Constants.ACC_NATIVE
+						| Constants.ACC_ABSTRACT | Constants.ACC_STRICT));
+					out.writeUTF(m.getSignature().replace('/', '.'));
+				}
+			}
+			out.flush();
+		}catch(IOException e){
+			throw new AssertionError(e); // It's in memory
+		}
+
+		byte[] hash;
+		try{
+			hash = MessageDigest.getInstance("SHA").digest(bytes.toByteArray());
+		}catch(NoSuchAlgorithmException e){
+			throw new AssertionError(e); // Every JVM has SHA-1
+		}
+		long uid = 0;
+		for(int i = Math.min(hash.length, 8) - 1; i >= 0; i--)
+			uid = (uid << 8) | (hash[i] & 0xFF);
+
+		FieldGen fg = new FieldGen(
+			Constants.ACC_PRIVATE | Constants.ACC_STATIC | Constants.ACC_FINAL,
+			Type.LONG, "serialVersionUID", cp);
+		fg.setInitValue(uid);
+		return fg.getField();
+	}
+
+	/**
+	classModifiers returns the class's modifiers as Class.getModifiers
+	would: a nested class's are those of its InnerClasses entry.
+	*/
+	private int classModifiers(){
+		for(Attribute a : cg.getAttributes()){
+			if(!(a instanceof InnerClasses))
+				continue;
+			for(InnerClass ic : ((InnerClasses)a).getInnerClasses()){
+				String name = cp.getConstantPool().getConstantString(ic.getInnerClassIndex(), Constants.CONSTANT_Class);
+				if(name.replace('/', '.').equals(cg.getClassName()))
+					return ic.getInnerAccessFlags();
+			}
+		}
+		return cg.getAccessFlags();
+	}
+}
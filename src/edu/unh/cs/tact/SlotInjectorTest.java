@@ -0,0 +1,81 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.util.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+public class SlotInjectorTest{
+	public static class Point implements Serializable{
+		public int x, y;
+		private transient Object cache;
+		protected List<String> names = new ArrayList<String>();
+
+		public Point(int x, int y){
+			this.x = x;
+			this.y = y;
+		}
+
+		public int sum(){
+			return x + y;
+		}
+
+		private void hidden(){}
+	}
+
+	protected static final class Counted implements Serializable, Comparable<Counted>{
+		private static int made = 0;
+		static final Object LOCK = new Object();
+		long n;
+
+		Counted(){
+			made++;
+		}
+
+		public int compareTo(Counted c){
+			return Long.compare(n, c.n);
+		}
+	}
+
+	static class Declared implements Serializable{
+		private static final long serialVersionUID = 42L;
+	}
+
+	static class Plain{
+		int x;
+	}
+
+	/** inject returns c with a slot injected. */
+	private static JavaClass inject(Class<?> c) throws ClassNotFoundException{
+		ClassGen cg = new ClassGen(Repository.lookupClass(c));
+		assertTrue(new SlotInjector(cg, new InstructionFactory(cg)).inject());
+		return cg.getJavaClass();
+	}
+
+	/** uid returns the serialVersionUID that jc declares, or null. */
+	private static Long uid(JavaClass jc){
+		for(Field f : jc.getFields())
+			if(f.getName().equals("serialVersionUID"))
+				return ((ConstantLong)jc.getConstantPool().getConstant(
+					f.getConstantValue().getConstantValueIndex())).getBytes();
+		return null;
+	}
+
+	@Test public void keepsSerialVersionUID() throws Exception{
+		for(Class<?> c : new Class<?>[]{ Point.class, Counted.class }){
+			Long uid = uid(inject(c));
+			assertNotNull(c.getName(), uid);
+			assertEquals(c.getName(), ObjectStreamClass.lookup(c).getSerialVersionUID(), (long)uid);
+		}
+	}
+
+	@Test public void leavesOthersAlone() throws Exception{
+		assertEquals(Long.valueOf(42), uid(inject(Declared.class)));
+		assertNull(uid(inject(Plain.class)));
+	}
+}
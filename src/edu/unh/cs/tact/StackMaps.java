@@ -0,0 +1,471 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import org.apache.bcel.Constants;
+import org.apache.bcel.Repository;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+import static edu.unh.cs.tact.Util.*;
+import static edu.unh.cs.tact.Flow.*;
+
+/**
+StackMaps recomputes a method's StackMapTable, which Java 7 and later
+check bytecode against instead of inferring the types themselves. The
+old table stops matching as soon as any instruction is inserted.
+<p>
+It infers the type of every local and stack slot the way the verifier
+would, merging the types from each path at the instructions that start
+a basic block, and writes a full frame for each of those. References are
+merged to their nearest common superclass, looked up in BCEL's repository;
+as in the verifier, interfaces merge to Object. Methods with subroutines
+(which can't appear in class files new enough to need frames) or with
+unreachable code are left without a table.
+*/
+class StackMaps{
+	public final MethodGen mg;
+	public final ConstantPoolGen cp;
+	public final InstructionList list;
+
+	/** TOP is an unusable slot, and the second word of a long or double. */
+	private static final Object TOP = new Object();
+	/** UNINIT_THIS is this in a constructor, before its super or this call. */
+	private static final Object UNINIT_THIS = new Object();
+
+	/** Uninit is the result of a NEW whose constructor hasn't been called. */
+	private static class Uninit{
+		final InstructionHandle site;
+
+		Uninit(InstructionHandle site){
+			this.site = site;
+		}
+
+		@Override public boolean equals(Object o){
+			return o instanceof Uninit && ((Uninit)o).site == site;
+		}
+
+		@Override public int hashCode(){
+			return site.hashCode();
+		}
+	}
+
+	public StackMaps(MethodGen mg, ConstantPoolGen cp){
+		this.mg = notNull(mg, "mg");
+		this.cp = notNull(cp, "cp");
+		this.list = mg.getInstructionList();
+	}
+
+	/**
+	run replaces mg's StackMapTable with one for its current code.
+	It returns false, leaving mg without a table, if it can't.
+	*/
+	public boolean run(){
+		for(Attribute a : mg.getCodeAttributes())
+			if("StackMapTable".equals(a.getName()))
+				mg.removeCodeAttribute(a);
+
+		if(list == null || list.getStart() == null || hasSubroutines(list))
+			return false;
+		list.setPositions();
+
+		Map<InstructionHandle, State> in = analyze();
+		if(in == null)
+			return false;
+
+		List<StackMapTableEntry> frames = new ArrayList<StackMapTableEntry>();
+		int length = 2, last = -1;
+		for(InstructionHandle h : framePoints()){
+			State s = in.get(h);
+			if(s == null)
+				return false; // unreachable code
+
+			StackMapType[] locals = types(s.locals, true);
+			StackMapType[] stack = types(s.stack, false);
+			int pos = h.getPosition();
+			frames.add(new StackMapTableEntry(Constants.FULL_FRAME,
+				last < 0 ? pos : pos - last - 1,
+				locals.length, locals, stack.length, stack,
+				cp.getConstantPool()));
+			last = pos;
+			length += 7 + size(locals) + size(stack);
+		}
+		if(frames.isEmpty())
+			return true;
+
+		mg.addCodeAttribute(new StackMapTable(cp.addUtf8("StackMapTable"), length,
+			frames.toArray(new StackMapTableEntry[frames.size()]),
+			cp.getConstantPool()));
+		return true;
+	}
+
+	/**
+	framePoints returns, in order, the instructions that need a frame: the
+	targets of jumps, the exception handlers, and the instructions after
+	unconditional jumps, returns and throws.
+	*/
+	private SortedSet<InstructionHandle> framePoints(){
+		SortedSet<InstructionHandle> r = new TreeSet<InstructionHandle>(new Comparator<InstructionHandle>(){
+			public int compare(InstructionHandle a, InstructionHandle b){
+				return a.getPosition() - b.getPosition();
+			}
+		});
+		for(InstructionHandle h = list.getStart(); h != null; h = h.getNext()){
+			Instruction i = h.getInstruction();
+			if(i instanceof BranchInstruction){
+				r.add(((BranchInstruction)i).getTarget());
+				if(i instanceof Select)
+					r.addAll(Arrays.asList(((Select)i).getTargets()));
+			}
+			if(h.getNext() != null && !successors(h).contains(h.getNext()))
+				r.add(h.getNext());
+		}
+		for(CodeExceptionGen eh : mg.getExceptionHandlers())
+			r.add(eh.getHandlerPC());
+		return r;
+	}
+
+	private Map<InstructionHandle, State> analyze(){
+		Map<InstructionHandle, State> in = new HashMap<InstructionHandle, State>();
+		Deque<InstructionHandle> work = new ArrayDeque<InstructionHandle>();
+		in.put(list.getStart(), initial());
+		work.add(list.getStart());
+		CodeExceptionGen[] handlers = mg.getExceptionHandlers();
+
+		while(!work.isEmpty()){
+			InstructionHandle h = work.poll();
+			State s = in.get(h);
+
+			for(CodeExceptionGen eh : handlers){
+				int pos = h.getPosition();
+				if(pos < eh.getStartPC().getPosition() || pos > eh.getEndPC().getPosition())
+					continue;
+				ObjectType caught = eh.getCatchType();
+				State hs = new State(s.locals.clone(),
+					new Object[]{ caught == null ? Type.THROWABLE : caught });
+				if(!flow(in, eh.getHandlerPC(), hs, work))
+					return null;
+			}
+
+			State out = transfer(h, s);
+			if(out == null)
+				return null;
+			for(InstructionHandle succ : successors(h))
+				if(!flow(in, succ, out, work))
+					return null;
+		}
+		return in;
+	}
+
+	private boolean flow(Map<InstructionHandle, State> in, InstructionHandle h, State s, Deque<InstructionHandle> work){
+		State old = in.get(h);
+		if(old == null){
+			in.put(h, s.copy());
+			work.add(h);
+			return true;
+		}
+		int change = merge(old, s);
+		if(change > 0)
+			work.add(h);
+		return change >= 0;
+	}
+
+	/** initial returns the state on entry: this and the arguments, then nothing. */
+	private State initial(){
+		Object[] locals = new Object[mg.getMaxLocals()];
+		Arrays.fill(locals, TOP);
+		int n = 0;
+		if(!mg.isStatic()){
+			boolean ctor = mg.getName().equals("<init>")
+				&& !mg.getClassName().equals("java.lang.Object");
+			locals[n++] = ctor ? UNINIT_THIS : new ObjectType(mg.getClassName());
+		}
+		for(Type t : mg.getArgumentTypes()){
+			locals[n++] = word(t);
+			if(t.getSize() == 2)
+				locals[n++] = TOP;
+		}
+		return new State(locals, new Object[0]);
+	}
+
+	private State transfer(InstructionHandle h, State s){
+		Instruction i = h.getInstruction();
+		Object[] stk = s.stack;
+		int n = stk.length;
+		State out = new State(s.locals.clone(), stk);
+
+		if(i instanceof LoadInstruction){
+			int idx = ((LoadInstruction)i).getIndex();
+			out.stack = Arrays.copyOf(stk, n + i.produceStack(cp));
+			out.stack[n] = s.locals[idx];
+			if(out.stack.length > n + 1)
+				out.stack[n + 1] = TOP;
+			return out;
+		}
+		if(i instanceof StoreInstruction){
+			int idx = ((StoreInstruction)i).getIndex();
+			int size = i.consumeStack(cp);
+			if(size > n)
+				return null;
+			store(out.locals, idx, stk[n - size], size);
+			out.stack = Arrays.copyOf(stk, n - size);
+			return out;
+		}
+		if(isShuffle(i)){
+			int[] idx = new int[n];
+			for(int k = 0; k < n; k++)
+				idx[k] = k;
+			idx = shuffle(i, idx);
+			if(idx == null)
+				return null;
+			out.stack = new Object[idx.length];
+			for(int k = 0; k < idx.length; k++)
+				out.stack[k] = stk[idx[k]];
+			return out;
+		}
+
+		if(i instanceof ATHROW)
+			return n < 1 ? null : out; // nothing follows a throw
+
+		int consumed = i.consumeStack(cp);
+		int produced = i.produceStack(cp);
+		if(consumed > n)
+			return null;
+		Object[] args = Arrays.copyOfRange(stk, n - consumed, n);
+		out.stack = Arrays.copyOf(stk, n - consumed + produced);
+		if(isConstructorCall(i))
+			initialize(out, args[0]);
+		if(produced == 0)
+			return out;
+
+		Object t;
+		if(i instanceof NEW){
+			t = new Uninit(h);
+		}else if(i instanceof InvokeInstruction){
+			t = word(((InvokeInstruction)i).getReturnType(cp));
+		}else if(i instanceof AALOAD){
+			t = component(args[0]);
+		}else if(i instanceof ACONST_NULL){
+			t = Type.NULL;
+		}else if(i instanceof ANEWARRAY){
+			t = new ArrayType(((ANEWARRAY)i).getType(cp), 1);
+		}else if(i instanceof NEWARRAY){
+			t = ((NEWARRAY)i).getType();
+		}else if(i instanceof ARRAYLENGTH || i instanceof INSTANCEOF
+				|| i instanceof LCMP || i instanceof FCMPL || i instanceof FCMPG
+				|| i instanceof DCMPL || i instanceof DCMPG){
+			t = Type.INT;
+		}else if(i instanceof FieldInstruction){
+			t = word(((FieldInstruction)i).getFieldType(cp));
+		}else if(i instanceof TypedInstruction){
+			t = word(((TypedInstruction)i).getType(cp));
+		}else{
+			return null;
+		}
+		out.stack[n - consumed] = t;
+		if(produced == 2)
+			out.stack[n - consumed + 1] = TOP;
+		return out;
+	}
+
+	private boolean isConstructorCall(Instruction i){
+		return i instanceof INVOKESPECIAL
+			&& ((INVOKESPECIAL)i).getMethodName(cp).equals("<init>");
+	}
+
+	/** initialize replaces each copy of the object a constructor was called on with its class. */
+	private void initialize(State s, Object obj){
+		Object t;
+		if(obj == UNINIT_THIS)
+			t = new ObjectType(mg.getClassName());
+		else if(obj instanceof Uninit)
+			t = ((NEW)((Uninit)obj).site.getInstruction()).getLoadClassType(cp);
+		else
+			return;
+		for(int k = 0; k < s.locals.length; k++)
+			if(s.locals[k].equals(obj))
+				s.locals[k] = t;
+		for(int k = 0; k < s.stack.length; k++)
+			if(s.stack[k].equals(obj))
+				s.stack[k] = t;
+	}
+
+	/**
+	store puts v in locals[idx], clearing the slots it overlaps. Wide values
+	take two slots, and a wide value broken by the store is no longer usable.
+	*/
+	private static void store(Object[] locals, int idx, Object v, int size){
+		if(idx > 0 && isWide(locals[idx-1]))
+			locals[idx-1] = TOP;
+		locals[idx] = v;
+		if(size == 2)
+			locals[idx+1] = TOP;
+	}
+
+	/** word returns the type the verifier uses for a value of type t. */
+	private static Object word(Type t){
+		switch(t.getType()){
+		case Constants.T_BOOLEAN:
+		case Constants.T_BYTE:
+		case Constants.T_CHAR:
+		case Constants.T_SHORT:
+		case Constants.T_INT:
+			return Type.INT;
+		}
+		return t;
+	}
+
+	/** component returns the type of an element of an array of type a. */
+	private static Object component(Object a){
+		if(!(a instanceof ArrayType))
+			return Type.NULL; // aaload from null
+		ArrayType at = (ArrayType)a;
+		if(at.getDimensions() == 1)
+			return word(at.getBasicType());
+		return new ArrayType(at.getBasicType(), at.getDimensions() - 1);
+	}
+
+	/**
+	merge folds o into s, returning 1 if s changed, 0 if it didn't,
+	and -1 if the stacks can't be merged.
+	*/
+	private int merge(State s, State o){
+		if(s.stack.length != o.stack.length)
+			return -1;
+		boolean changed = merge(s.locals, o.locals);
+		if(merge(s.stack, o.stack))
+			changed = true;
+		return changed ? 1 : 0;
+	}
+
+	private boolean merge(Object[] mine, Object[] theirs){
+		boolean changed = false;
+		for(int k = 0; k < mine.length; k++){
+			Object m = merge(mine[k], theirs[k]);
+			if(!m.equals(mine[k])){
+				mine[k] = m;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private Object merge(Object a, Object b){
+		if(a.equals(b))
+			return a;
+		if(!(a instanceof ReferenceType) || !(b instanceof ReferenceType))
+			return TOP;
+		if(a == Type.NULL)
+			return b;
+		if(b == Type.NULL)
+			return a;
+		return commonSuper((ReferenceType)a, (ReferenceType)b);
+	}
+
+	private ReferenceType commonSuper(ReferenceType a, ReferenceType b){
+		if(a instanceof ArrayType && b instanceof ArrayType){
+			Object ca = component(a), cb = component(b);
+			if(ca instanceof ReferenceType && cb instanceof ReferenceType)
+				return new ArrayType(commonSuper((ReferenceType)ca, (ReferenceType)cb), 1);
+			return Type.OBJECT;
+		}
+		if(!(a instanceof ObjectType) || !(b instanceof ObjectType))
+			return Type.OBJECT;
+
+		try{
+			List<String> supers = new ArrayList<String>();
+			for(JavaClass c = lookup(((ObjectType)a).getClassName()); c != null; c = superOf(c)){
+				if(c.isInterface())
+					return Type.OBJECT;
+				supers.add(c.getClassName());
+			}
+			for(JavaClass c = lookup(((ObjectType)b).getClassName()); c != null; c = superOf(c)){
+				if(c.isInterface())
+					return Type.OBJECT;
+				if(supers.contains(c.getClassName()))
+					return new ObjectType(c.getClassName());
+			}
+		}catch(ClassNotFoundException e){
+			// Without the hierarchy, Object is the best guess.
+		}catch(ClassFormatException e){
+			// Nor can we read classes newer than BCEL.
+		}
+		return Type.OBJECT;
+	}
+
+	private static JavaClass lookup(String name) throws ClassNotFoundException{
+		return Repository.lookupClass(name);
+	}
+
+	private static JavaClass superOf(JavaClass c) throws ClassNotFoundException{
+		if(c.getClassName().equals("java.lang.Object"))
+			return null;
+		return lookup(c.getSuperclassName());
+	}
+
+	/** types returns the frame entries for slots; a wide value is one entry. */
+	private StackMapType[] types(Object[] slots, boolean trim){
+		int end = slots.length;
+		if(trim)
+			while(end > 0 && slots[end-1] == TOP)
+				end--;
+
+		List<StackMapType> r = new ArrayList<StackMapType>();
+		for(int k = 0; k < end; k++){
+			Object t = slots[k];
+			r.add(type(t));
+			if(isWide(t))
+				k++;
+		}
+		return r.toArray(new StackMapType[r.size()]);
+	}
+
+	private static boolean isWide(Object t){
+		return Type.LONG.equals(t) || Type.DOUBLE.equals(t);
+	}
+
+	private StackMapType type(Object t){
+		ConstantPool pool = cp.getConstantPool();
+		if(Type.INT.equals(t))
+			return new StackMapType(Constants.ITEM_Integer, -1, pool);
+		if(Type.FLOAT.equals(t))
+			return new StackMapType(Constants.ITEM_Float, -1, pool);
+		if(Type.LONG.equals(t))
+			return new StackMapType(Constants.ITEM_Long, -1, pool);
+		if(Type.DOUBLE.equals(t))
+			return new StackMapType(Constants.ITEM_Double, -1, pool);
+		if(Type.NULL.equals(t))
+			return new StackMapType(Constants.ITEM_Null, -1, pool);
+		if(t == UNINIT_THIS)
+			return new StackMapType(Constants.ITEM_InitObject, -1, pool);
+		if(t instanceof Uninit)
+			return new StackMapType(Constants.ITEM_NewObject, ((Uninit)t).site.getPosition(), pool);
+		if(t instanceof ArrayType)
+			return new StackMapType(Constants.ITEM_Object, cp.addArrayClass((ArrayType)t), pool);
+		if(t instanceof ObjectType)
+			return new StackMapType(Constants.ITEM_Object, cp.addClass((ObjectType)t), pool);
+		return new StackMapType(Constants.ITEM_Bogus, -1, pool);
+	}
+
+	/** size returns the bytes that types take in the class file. */
+	private static int size(StackMapType[] types){
+		int n = 0;
+		for(StackMapType t : types)
+			n += t.hasIndex() ? 3 : 1;
+		return n;
+	}
+
+	private static class State{
+		final Object[] locals;
+		Object[] stack;
+
+		State(Object[] locals, Object[] stack){
+			this.locals = locals;
+			this.stack = stack;
+		}
+
+		State copy(){
+			return new State(locals.clone(), stack.clone());
+		}
+	}
+}
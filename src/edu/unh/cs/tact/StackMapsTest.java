@@ -0,0 +1,129 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import org.apache.bcel.*;
+import org.apache.bcel.generic.*;
+
+/**
+The classes these tests build are version 51, so the JVM must verify them
+against their stack map frames; a missing or wrong frame is a VerifyError.
+*/
+public class StackMapsTest{
+	private ClassGen cg;
+	private ConstantPoolGen cp;
+	private InstructionFactory f;
+	private InstructionList il;
+
+	@Before public void setUp(){
+		cg = new ClassGen("Gen", "java.lang.Object", "Gen.java",
+			Constants.ACC_PUBLIC | Constants.ACC_SUPER, new String[0]);
+		cg.setMajor(51);
+		cg.setMinor(0);
+		cp = cg.getConstantPool();
+		f = new InstructionFactory(cg, cp);
+		il = new InstructionList();
+	}
+
+	/** load adds the method m, with frames, to Gen and returns the result of calling it with arg. */
+	private Object load(Type ret, Type arg, Object val) throws Exception{
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, ret,
+			new Type[]{ arg }, new String[]{ "x" }, "m", "Gen", il, cp);
+		mg.setMaxStack();
+		mg.setMaxLocals();
+		assertTrue(new StackMaps(mg, cp).run());
+		cg.addMethod(mg.getMethod());
+
+		final byte[] b = cg.getJavaClass().getBytes();
+		ClassLoader l = new ClassLoader(StackMapsTest.class.getClassLoader()){
+			@Override protected Class<?> findClass(String name) throws ClassNotFoundException{
+				if(!name.equals("Gen"))
+					throw new ClassNotFoundException(name);
+				return defineClass(name, b, 0, b.length);
+			}
+		};
+		Class<?> c = Class.forName("Gen", true, l);
+		return c.getMethod("m", val.getClass() == Integer.class ? int.class : val.getClass()).invoke(null, val);
+	}
+
+	@Test public void branches() throws Exception{
+		// return x > 0 ? "pos" : new StringBuilder("neg")
+		il.append(new ILOAD(0));
+		BranchHandle br = il.append(new IFLE(null));
+		il.append(new PUSH(cp, "pos"));
+		BranchHandle skip = il.append(new GOTO(null));
+		br.setTarget(il.append(f.createNew("java.lang.StringBuilder")));
+		il.append(new DUP());
+		il.append(new PUSH(cp, "neg"));
+		il.append(f.createInvoke("java.lang.StringBuilder", "<init>", Type.VOID,
+			new Type[]{ Type.STRING }, Constants.INVOKESPECIAL));
+		skip.setTarget(il.append(new ARETURN()));
+
+		assertEquals("pos", load(Type.OBJECT, Type.INT, 1).toString());
+	}
+
+	@Test public void loopWithWideLocals() throws Exception{
+		// long s = 0; for(int i = 0; i < x; i++) s += i; return s
+		il.append(new LCONST(0));
+		il.append(new LSTORE(1));
+		il.append(new ICONST(0));
+		il.append(new ISTORE(3));
+		BranchHandle enter = il.append(new GOTO(null));
+		InstructionHandle body = il.append(new LLOAD(1));
+		il.append(new ILOAD(3));
+		il.append(new I2L());
+		il.append(new LADD());
+		il.append(new LSTORE(1));
+		il.append(new IINC(3, 1));
+		InstructionHandle test = il.append(new ILOAD(3));
+		enter.setTarget(test);
+		il.append(new ILOAD(0));
+		il.append(new IF_ICMPLT(body));
+		il.append(new LLOAD(1));
+		il.append(new LRETURN());
+
+		assertEquals(10L, load(Type.LONG, Type.INT, 5));
+	}
+
+	@Test public void handler() throws Exception{
+		// try{ return x.toString(); }catch(NullPointerException e){ return "null"; }
+		InstructionHandle start = il.append(new ALOAD(0));
+		InstructionHandle end = il.append(f.createInvoke("java.lang.Object", "toString", Type.STRING,
+			Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+		il.append(new ARETURN());
+		InstructionHandle h = il.append(new POP());
+		il.append(new PUSH(cp, "null"));
+		il.append(new ARETURN());
+
+		MethodGen mg = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.STRING,
+			new Type[]{ Type.OBJECT }, new String[]{ "x" }, "m", "Gen", il, cp);
+		mg.addExceptionHandler(start, end, h, new ObjectType("java.lang.NullPointerException"));
+		mg.setMaxStack();
+		mg.setMaxLocals();
+		assertTrue(new StackMaps(mg, cp).run());
+		cg.addMethod(mg.getMethod());
+		il = new InstructionList();
+		il.append(new ACONST_NULL());
+		il.append(f.createInvoke("Gen", "m", Type.STRING, new Type[]{ Type.OBJECT },
+			Constants.INVOKESTATIC));
+		il.append(new ARETURN());
+
+		// Call it through a second method, so both are verified.
+		MethodGen call = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.STRING,
+			new Type[]{ Type.INT }, new String[]{ "x" }, "call", "Gen", il, cp);
+		call.setMaxStack();
+		call.setMaxLocals();
+		cg.addMethod(call.getMethod());
+
+		final byte[] b = cg.getJavaClass().getBytes();
+		ClassLoader l = new ClassLoader(StackMapsTest.class.getClassLoader()){
+			@Override protected Class<?> findClass(String name) throws ClassNotFoundException{
+				return defineClass(name, b, 0, b.length);
+			}
+		};
+		Class<?> c = Class.forName("Gen", true, l);
+		assertEquals("null", c.getMethod("call", int.class).invoke(null, 0));
+	}
+}
@@ -0,0 +1,49 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.util.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+SyncRepository serializes access to another BCEL Repository, whose caches
+aren't safe for the concurrent lookups of parallel injection.
+*/
+class SyncRepository implements Repository{
+	private static final long serialVersionUID = 1L;
+
+	private final Repository r;
+
+	public SyncRepository(Repository r){
+		this.r = notNull(r, "r");
+	}
+
+	public synchronized void storeClass(JavaClass c){
+		r.storeClass(c);
+	}
+
+	public synchronized void removeClass(JavaClass c){
+		r.removeClass(c);
+	}
+
+	public synchronized JavaClass findClass(String name){
+		return r.findClass(name);
+	}
+
+	public synchronized JavaClass loadClass(String name) throws ClassNotFoundException{
+		return r.loadClass(name);
+	}
+
+	public synchronized JavaClass loadClass(Class<?> c) throws ClassNotFoundException{
+		return r.loadClass(c);
+	}
+
+	public synchronized void clear(){
+		r.clear();
+	}
+
+	public ClassPath getClassPath(){
+		return r.getClassPath();
+	}
+}
@@ -0,0 +1,177 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import java.lang.ref.*;
+
+/**
+ThreadMapBench measures ownership lookups under contention, from 1 thread
+up to the number of processors (or the first argument). Each thread
+repeatedly checks its own set of objects, claiming them on first sight,
+the way Checker.check does. "striped" is ThreadMap on its own; "before"
+is Baseline, a copy of the ThreadMap that Checker used before it, behind
+Collections.synchronizedMap as Checker used it.
+*/
+public class ThreadMapBench{
+	private static final int OBJECTS = 1 << 14;
+	private static final long MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception{
+		int max = Runtime.getRuntime().availableProcessors();
+		if(args.length > 0)
+			max = Integer.parseInt(args[0]);
+
+		System.out.printf("%8s %16s %16s\n", "threads", "striped ops/s", "before ops/s");
+		for(int n = 1; n <= max; n = next(n, max)){
+			double striped = run(new ThreadMap(), n);
+			Map<Object, WeakReference<Thread>> m = new Baseline();
+			double before = run(Collections.synchronizedMap(m), n);
+			System.out.printf("%8d %16.0f %16.0f\n", n, striped, before);
+		}
+	}
+
+	private static int next(int n, int max){
+		if(n == max)
+			return max + 1;
+		return Math.min(n * 2, max);
+	}
+
+	private static double run(final Map<Object, WeakReference<Thread>> m, int nthreads) throws Exception{
+		final long[] ops = new long[nthreads];
+		final long[] deadline = new long[1];
+		Thread[] ts = new Thread[nthreads];
+		for(int i = 0; i < nthreads; i++){
+			final int id = i;
+			ts[i] = new Thread(){
+				public void run(){
+					ops[id] = loop(m, deadline);
+				}
+			};
+		}
+
+		deadline[0] = System.nanoTime() + MILLIS * 1000000L;
+		for(Thread t : ts)
+			t.start();
+		for(Thread t : ts)
+			t.join();
+
+		long total = 0;
+		for(long n : ops)
+			total += n;
+		return total / (MILLIS / 1000.0);
+	}
+
+	private static long loop(Map<Object, WeakReference<Thread>> m, long[] deadline){
+		Object[] objs = new Object[OBJECTS];
+		for(int i = 0; i < objs.length; i++)
+			objs[i] = new Object();
+		WeakReference<Thread> me = new WeakReference<Thread>(Thread.currentThread());
+
+		long n = 0;
+		while(true){
+			for(Object o : objs){
+				if(m.get(o) == null)
+					m.putIfAbsent(o, me);
+			}
+			n += objs.length;
+			if(System.nanoTime() > deadline[0])
+				return n;
+		}
+	}
+
+	/**
+	Baseline is the ThreadMap that Checker used before the striped one,
+	copied as it was: a fixed table of 4096 buckets, each a list of weak
+	entries that's searched, and purged of dead ones, on every lookup.
+	*/
+	private static class Baseline extends AbstractMap<Object, WeakReference<Thread>>{
+		private final Bucket[] table = new Bucket[4096];
+
+		@Override public WeakReference<Thread> put(Object key, WeakReference<Thread> value){
+			Bucket b = lookup(key);
+			if(b == null){
+				b = new Bucket();
+				attach(key, b);
+			}
+			return b.add(key, value);
+		}
+
+		@Override public WeakReference<Thread> get(Object key){
+			Bucket b = lookup(key);
+			if(b == null)
+				return null;
+			return b.get(key);
+		}
+
+		@Override public WeakReference<Thread> remove(Object key){
+			Bucket b = lookup(key);
+			if(b == null)
+				return null;
+			return b.remove(key);
+		}
+
+		@Override public Set<Map.Entry<Object, WeakReference<Thread>>> entrySet(){
+			throw new UnsupportedOperationException();
+		}
+
+		private void attach(Object key, Bucket b){
+			table[System.identityHashCode(key) % table.length] = b;
+		}
+
+		private Bucket lookup(Object key){
+			return table[System.identityHashCode(key) % table.length];
+		}
+
+		private static class Bucket{
+			List<Entry> entries = new ArrayList<Entry>();
+
+			WeakReference<Thread> add(Object key, WeakReference<Thread> value){
+				Entry e = find(key);
+				if(e != null)
+					return e.value;
+				entries.add(new Entry(key, value));
+				return null;
+			}
+
+			WeakReference<Thread> get(Object key){
+				Entry e = find(key);
+				if(e != null)
+					return e.value;
+				return null;
+			}
+
+			WeakReference<Thread> remove(Object key){
+				Entry e = find(key);
+				if(e == null)
+					return null;
+				entries.remove(e);
+				return e.value;
+			}
+
+			private Entry find(Object key){
+				purgeDead();
+				for(Entry e : entries)
+					if(e.key.get() == key) return e;
+				return null;
+			}
+
+			private void purgeDead(){
+				List<Entry> dead = new ArrayList<Entry>();
+				for(Entry e : entries)
+					if(e.key.get() == null)
+						dead.add(e);
+				entries.removeAll(dead);
+			}
+		}
+
+		private static class Entry{
+			final WeakReference<Object> key;
+			final WeakReference<Thread> value;
+
+			Entry(Object key, WeakReference<Thread> value){
+				this.key = new WeakReference<Object>(key);
+				this.value = value;
+			}
+		}
+	}
+}
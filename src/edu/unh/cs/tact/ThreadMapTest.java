@@ -29,4 +29,86 @@ public class ThreadMapTest{
 		assertNotNull(m.get(o));
 		assertNotNull(m.get(o).get());
 	}
+
+	@Test public void putIfAbsent(){
+		ThreadMap m = new ThreadMap();
+		Object o = new Object();
+		WeakReference<Thread> first = new WeakReference<Thread>(Thread.currentThread());
+		assertNull(m.putIfAbsent(o, first));
+		assertSame(first, m.putIfAbsent(o, new WeakReference<Thread>(null)));
+		assertSame(first, m.get(o));
+	}
+
+	@Test public void remove(){
+		ThreadMap m = new ThreadMap();
+		Object o = new Object();
+		WeakReference<Thread> r = new WeakReference<Thread>(Thread.currentThread());
+		m.put(o, r);
+		assertFalse(m.remove(o, new WeakReference<Thread>(null)));
+		assertTrue(m.remove(o, r));
+		assertNull(m.get(o));
+	}
+
+	@Test public void identity(){
+		ThreadMap m = new ThreadMap();
+		String a = new String("same");
+		String b = new String("same");
+		m.put(a, new WeakReference<Thread>(Thread.currentThread()));
+		assertNull(m.get(b));
+	}
+
+	@Test public void concurrentClaims() throws Exception{
+		final ThreadMap m = new ThreadMap();
+		final Object[] objs = new Object[10000];
+		for(int i = 0; i < objs.length; i++)
+			objs[i] = new Object();
+
+		Thread[] ts = new Thread[4];
+		for(int i = 0; i < ts.length; i++){
+			ts[i] = new Thread(){
+				public void run(){
+					WeakReference<Thread> me = new WeakReference<Thread>(this);
+					for(Object o : objs)
+						m.putIfAbsent(o, me);
+				}
+			};
+			ts[i].start();
+		}
+		for(Thread t : ts)
+			t.join();
+
+		assertEquals(objs.length, m.size());
+		for(Object o : objs)
+			assertNotNull(m.get(o));
+	}
+
+	@Test public void grow(){
+		ThreadMap m = new ThreadMap();
+		WeakReference<Thread> r = new WeakReference<Thread>(Thread.currentThread());
+		Object[] objs = new Object[100000];
+		for(int i = 0; i < objs.length; i++){
+			objs[i] = new Object();
+			m.put(objs[i], r);
+		}
+		assertEquals(objs.length, m.size());
+		for(int i = 0; i < objs.length; i += 2)
+			assertSame(r, m.remove(objs[i]));
+		for(int i = 0; i < objs.length; i++)
+			assertEquals(i % 2 == 1, m.get(objs[i]) != null);
+		assertEquals(objs.length / 2, m.size());
+	}
+
+	@Test public void shape(){
+		WeakIdentityMap<WeakReference<Thread>> m = new WeakIdentityMap<WeakReference<Thread>>(1);
+		WeakReference<Thread> r = new WeakReference<Thread>(Thread.currentThread());
+		Object[] objs = new Object[1000];
+		for(int i = 0; i < objs.length; i++){
+			objs[i] = new Object();
+			m.put(objs[i], r);
+		}
+		WeakIdentityMap.Shape s = m.shape(new WeakIdentityMap.Shape());
+		assertEquals(objs.length, s.entries);
+		assertTrue(s.used > 0 && s.used <= s.buckets);
+		assertTrue(s.longest >= 1 && s.mean() >= 1 && s.mean() <= s.longest);
+	}
 }
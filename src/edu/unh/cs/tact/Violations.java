@@ -0,0 +1,216 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import static edu.unh.cs.tact.Util.*;
+
+/**
+Violations holds the violations that Checker finds when it reports them
+instead of throwing, in a ring of slots allocated up front. Recording one
+takes a compare-and-set and a few plain stores, and allocates nothing.
+A daemon thread drains the ring, and prints each distinct violation the
+first time it's seen and a count of its repeats after that.
+<p>
+The ring keeps the object's class and identity hash, not the object, so
+reports never keep garbage alive or call an object's toString on the
+wrong thread. When the ring fills faster than it drains, new violations
+are dropped and counted.
+*/
+class Violations{
+	static final int ACCESS = 0;
+	static final int RETHREAD = 1;
+	static final int UNGUARDED = 2;
+	static final int UNGUARDED_THIS = 3;
+	static final int UNGUARDED_FIELD = 4;
+	static final int RELEASE_UNOWNED = 5;
+	static final int RELEASE = 6;
+	static final int NEW_GUARD = 7;
+	static final int WRITE_FROZEN = 8;
+	static final int RACE_WRITE_WRITE = 9;
+	static final int RACE_WRITE_READ = 10;
+	static final int RACE_READ_WRITE = 11;
+	static final int LOCKSET = 12;
+
+	private static final String[] names = {
+		"access",
+		"re-thread",
+		"unguarded-access [general]",
+		"unguarded-access [this]",
+		"unguarded-access [static]",
+		"release-unowned",
+		"release",
+		"new-guard",
+		"write-frozen",
+		"race [write-write]",
+		"race [write-read]",
+		"race [read-write]",
+		"race [lockset]",
+	};
+
+	private final int mask;
+	private final int[] kinds;
+	private final String[] sites;
+	private final Class<?>[] classes;
+	private final int[] ids;
+	private final Object[] others;
+	private final Thread[] threads;
+
+	/** ready holds seq+1 for each slot once the record numbered seq is in it. */
+	private final AtomicLongArray ready;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final PrintStream out;
+	private final Map<String, long[]> seen = new HashMap<String, long[]>();
+	private long reportedDrops = 0;
+
+	/** Violations makes a ring of at least size slots, which prints to out. */
+	public Violations(int size, PrintStream out){
+		if(size < 1 || size > (1 << 30))
+			throw new IllegalArgumentException("bad ring size " + size);
+		int n = Integer.highestOneBit(size);
+		if(n < size)
+			n <<= 1;
+		mask = n - 1;
+		kinds = new int[n];
+		sites = new String[n];
+		classes = new Class<?>[n];
+		ids = new int[n];
+		others = new Object[n];
+		threads = new Thread[n];
+		ready = new AtomicLongArray(n);
+		this.out = notNull(out, "out");
+	}
+
+	/**
+	start makes a Violations sized by the tact.reportSize system property,
+	and starts the daemon that drains it to System.err every interval
+	milliseconds. It drains once more when the JVM exits.
+	*/
+	static Violations start(final long interval){
+		final Violations v = new Violations(Integer.getInteger("tact.reportSize", 4096), System.err);
+		Thread t = new Thread("tact-violations"){
+			@Override public void run(){
+				while(true){
+					v.drain();
+					LockSupport.parkNanos(interval * 1000000L);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("tact-violations-exit"){
+			@Override public void run(){
+				v.drain();
+			}
+		});
+		return v;
+	}
+
+	/**
+	record adds a violation of kind at site, by t on o. other is o's owner
+	or guard, or the Thread that t raced with, if it matters. It returns false if the ring was full.
+	*/
+	public boolean record(int kind, String site, Object o, Object other, Thread t){
+		long seq;
+		do{
+			seq = tail.get();
+			if(seq - head > mask){
+				dropped.incrementAndGet();
+				return false;
+			}
+		}while(!tail.compareAndSet(seq, seq + 1));
+
+		int i = (int)seq & mask;
+		kinds[i] = kind;
+		sites[i] = site;
+		classes[i] = o == null ? null : o.getClass();
+		ids[i] = System.identityHashCode(o);
+		others[i] = other;
+		threads[i] = t;
+		ready.lazySet(i, seq + 1);
+		return true;
+	}
+
+	/** dropped is the number of violations that found the ring full. */
+	public long dropped(){
+		return dropped.get();
+	}
+
+	/**
+	drain prints the violations recorded since the last drain, and
+	returns how many there were. Repeats of a violation, by kind, site
+	and class, are counted, and printed as one line per drain.
+	*/
+	public synchronized int drain(){
+		long h = head;
+		Map<String, String> repeated = new LinkedHashMap<String, String>();
+		int n = 0;
+		for(;; h++, n++){
+			int i = (int)h & mask;
+			if(ready.get(i) != h + 1)
+				break;
+
+			String obj = classes[i] == null ? "null"
+				: classes[i].getName() + "@" + Integer.toHexString(ids[i]);
+			String msg = format(kinds[i], sites[i], obj, describe(others[i]), threads[i]);
+			String key = kinds[i] + " " + sites[i] + " " + classes[i];
+			sites[i] = null;
+			classes[i] = null;
+			others[i] = null;
+			threads[i] = null;
+			head = h + 1; // The slot is free once it's read.
+
+			long[] count = seen.get(key);
+			if(count == null){
+				seen.put(key, new long[]{ 1, 1 });
+				out.println(msg);
+				continue;
+			}
+			if(!repeated.containsKey(key))
+				repeated.put(key, msg);
+			count[0]++;
+		}
+
+		for(Map.Entry<String, String> e : repeated.entrySet()){
+			long[] count = seen.get(e.getKey());
+			out.printf("%s (repeated %d more times)\n", e.getValue(), count[0] - count[1]);
+			count[1] = count[0];
+		}
+
+		long d = dropped.get();
+		if(d != reportedDrops){
+			out.printf("tact: %d more violations were dropped while all %d slots were full\n",
+				d - reportedDrops, mask + 1);
+			reportedDrops = d;
+		}
+		out.flush();
+		return n;
+	}
+
+	private static String describe(Object o){
+		if(o == null)
+			return null;
+		if(o instanceof Thread || o instanceof Domain)
+			return o.toString();
+		return o.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(o));
+	}
+
+	/** format describes a violation; Checker throws it when it isn't reporting. */
+	static String format(int kind, String site, String obj, String other, Thread t){
+		StringBuilder sb = new StringBuilder("BAD ").append(names[kind]);
+		String arrow = kind == RELEASE_UNOWNED || kind == RELEASE ? " <- " : " -> ";
+		sb.append(" (").append(obj).append(arrow).append(t).append(")");
+		if(other != null)
+			sb.append(kind == ACCESS || kind == RELEASE ? " owned by "
+				: kind >= RACE_WRITE_WRITE ? " after " : " guarded by ").append(other);
+		if(site != null)
+			sb.append(" at ").append(site);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,97 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import java.io.*;
+
+public class ViolationsTest{
+	private ByteArrayOutputStream buf;
+	private Violations v;
+
+	@Before public void setUp(){
+		buf = new ByteArrayOutputStream();
+		v = new Violations(4, new PrintStream(buf));
+	}
+
+	private String[] lines(){
+		String s = buf.toString();
+		buf.reset();
+		return s.isEmpty() ? new String[0] : s.split("\n");
+	}
+
+	@Test public void format(){
+		Thread t = Thread.currentThread();
+		assertEquals("BAD access (o -> " + t + ") owned by x at A.b:3",
+			Violations.format(Violations.ACCESS, "A.b:3", "o", "x", t));
+		assertEquals("BAD release-unowned (o <- " + t + ")",
+			Violations.format(Violations.RELEASE_UNOWNED, null, "o", null, t));
+	}
+
+	@Test public void inOrder(){
+		Thread t = Thread.currentThread();
+		assertTrue(v.record(Violations.ACCESS, "A.a", "x", t, t));
+		assertTrue(v.record(Violations.UNGUARDED_THIS, "A.b", "x", null, t));
+		assertEquals(2, v.drain());
+
+		String[] ls = lines();
+		assertEquals(2, ls.length);
+		assertTrue(ls[0], ls[0].startsWith("BAD access (java.lang.String@"));
+		assertTrue(ls[0], ls[0].endsWith(" at A.a"));
+		assertTrue(ls[1], ls[1].startsWith("BAD unguarded-access [this]"));
+		assertEquals(0, v.drain());
+		assertEquals(0, lines().length);
+	}
+
+	@Test public void repeats(){
+		Thread t = Thread.currentThread();
+		for(int i = 0; i < 3; i++)
+			v.record(Violations.ACCESS, "A.a", new Object(), t, t);
+		assertEquals(3, v.drain());
+		String[] ls = lines();
+		assertEquals(2, ls.length);
+		assertTrue(ls[1], ls[1].endsWith("(repeated 2 more times)"));
+
+		v.record(Violations.ACCESS, "A.a", new Object(), t, t);
+		v.drain();
+		ls = lines();
+		assertEquals(1, ls.length);
+		assertTrue(ls[0], ls[0].endsWith("(repeated 1 more times)"));
+	}
+
+	@Test public void full(){
+		Thread t = Thread.currentThread();
+		for(int i = 0; i < 4; i++)
+			assertTrue(v.record(Violations.ACCESS, "A.a", "x", null, t));
+		assertFalse(v.record(Violations.ACCESS, "A.a", "x", null, t));
+		assertEquals(1, v.dropped());
+		assertEquals(4, v.drain());
+		assertTrue(buf.toString().contains("1 more violations were dropped"));
+
+		// Draining frees the slots.
+		assertTrue(v.record(Violations.ACCESS, "A.a", "x", null, t));
+		assertEquals(1, v.drain());
+	}
+
+	@Test public void concurrent() throws InterruptedException{
+		final Violations big = new Violations(1 << 16, new PrintStream(buf));
+		Thread[] ts = new Thread[4];
+		for(int i = 0; i < ts.length; i++){
+			ts[i] = new Thread(){
+				@Override public void run(){
+					for(int j = 0; j < 1000; j++)
+						big.record(Violations.ACCESS, "A.a", this, null, this);
+				}
+			};
+			ts[i].start();
+		}
+		int n = 0;
+		for(Thread t : ts){
+			t.join();
+			n += big.drain();
+		}
+		n += big.drain();
+		assertEquals(4000, n);
+		assertEquals(0, big.dropped());
+	}
+}
@@ -0,0 +1,64 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+VirtualThreadBench starts many virtual threads (100000, or the first
+argument) with Checker.releaseAndStartVirtual, each claiming a few objects
+of its own (8, or the second argument) and checking them repeatedly. It
+reports the time taken, the time the collector spent, and the size of the
+ownership table once the threads and their objects are gone. It needs
+Java 21.
+*/
+public class VirtualThreadBench{
+	private static final int CHECKS = 16;
+
+	public static void main(String[] args) throws Exception{
+		int nthreads = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int nobjs = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		for(int round = 0; round < 3; round++){
+			long gc = gcMillis();
+			long start = System.nanoTime();
+			Thread[] ts = new Thread[nthreads];
+			for(int i = 0; i < nthreads; i++){
+				Runnable task = new Runnable(){
+					public void run(){
+						Object[] objs = new Object[nobjs];
+						for(int j = 0; j < objs.length; j++)
+							objs[j] = new Object();
+						for(int k = 0; k < CHECKS; k++)
+							for(Object o : objs)
+								Checker.check(o);
+					}
+				};
+				Checker.check(task); // as injected code would on construction
+				try{
+					ts[i] = Checker.releaseAndStartVirtual(task);
+				}catch(UnsupportedOperationException e){
+					System.err.println("VirtualThreadBench needs Java 21 or newer.");
+					return;
+				}
+			}
+			for(Thread t : ts)
+				t.join();
+			double ms = (System.nanoTime() - start) / 1e6;
+			long claims = (long)nthreads * nobjs;
+
+			ts = null;
+			System.gc();
+			Metrics m = Checker.newMetrics();
+			System.out.printf("%d threads, %d claims: %.0f ms, %.0f ns/claim, gc %d ms, %d table entries left\n",
+				nthreads, claims, ms, ms * 1e6 / claims, gcMillis() - gc, m.getOwnedObjects());
+		}
+	}
+
+	private static long gcMillis(){
+		long n = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			n += Math.max(0, gc.getCollectionTime());
+		return n;
+	}
+}
@@ -0,0 +1,356 @@
+// Copyright © 2012 Steve McCoy under the MIT license.
+package edu.unh.cs.tact;
+
+import java.util.*;
+import java.lang.ref.*;
+
+/**
+WeakIdentityMap is a concurrent map whose keys are compared by identity
+and held weakly. Reads take no locks: they walk an immutable chain of
+entries published through a volatile table. Writes lock only the segment
+(stripe) that the key hashes to, so threads touching different objects
+rarely contend.
+<p>
+Each segment's table doubles as it fills, or as soon as a chain grows
+past a few entries, so lookups stay short. Entries of collected keys are
+unlinked as the collector reports them through a ReferenceQueue, during
+writes; lookups never allocate or clean up.
+*/
+class WeakIdentityMap<V> implements Map<Object, V>{
+	private final Segment<V>[] segments;
+	private final int segmentShift;
+
+	public WeakIdentityMap(){
+		this(defaultSegments());
+	}
+
+	@SuppressWarnings("unchecked")
+	public WeakIdentityMap(int nsegments){
+		int n = 1, shift = 0;
+		while(n < nsegments){
+			n <<= 1;
+			shift++;
+		}
+		segments = (Segment<V>[]) new Segment<?>[n];
+		for(int i = 0; i < n; i++)
+			segments[i] = new Segment<V>();
+		segmentShift = 32 - shift;
+	}
+
+	private static int defaultSegments(){
+		return Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	public V get(Object key){
+		int h = hash(key);
+		return segmentFor(h).get(key, h);
+	}
+
+	/** put maps key to value, replacing any existing mapping.
+	@return the previous value, or null if there was none
+	*/
+	public V put(Object key, V value){
+		int h = hash(key);
+		return segmentFor(h).put(key, h, value, false);
+	}
+
+	/** putIfAbsent maps key to value only if key has no mapping.
+	@return the existing value, or null if value was stored
+	*/
+	public V putIfAbsent(Object key, V value){
+		int h = hash(key);
+		return segmentFor(h).put(key, h, value, true);
+	}
+
+	public V remove(Object key){
+		int h = hash(key);
+		return segmentFor(h).remove(key, h, null);
+	}
+
+	/** remove removes key's mapping only if it is currently value. */
+	public boolean remove(Object key, Object value){
+		if(value == null)
+			return false;
+		int h = hash(key);
+		return segmentFor(h).remove(key, h, value) != null;
+	}
+
+	/** replace maps key to value only if it is currently mapped to old. */
+	public boolean replace(Object key, V old, V value){
+		int h = hash(key);
+		return segmentFor(h).replace(key, h, old, value);
+	}
+
+	public boolean containsKey(Object key){
+		return get(key) != null;
+	}
+
+	public int size(){
+		long n = 0;
+		for(Segment<V> s : segments)
+			n += s.count;
+		return (int)Math.min(n, Integer.MAX_VALUE);
+	}
+
+	public boolean isEmpty(){
+		return size() == 0;
+	}
+
+	/**
+	shape fills in stats for the map's tables as they are now; entries
+	may be added or removed while it looks. It returns stats.
+	*/
+	public Shape shape(Shape stats){
+		stats.entries = stats.buckets = stats.used = stats.longest = 0;
+		for(Segment<V> s : segments){
+			Entry<V>[] t = s.table;
+			stats.buckets += t.length;
+			for(Entry<V> first : t){
+				if(first == null)
+					continue;
+				int n = 0;
+				for(Entry<V> e = first; e != null; e = e.next)
+					n++;
+				stats.entries += n;
+				stats.used++;
+				stats.longest = Math.max(stats.longest, n);
+			}
+		}
+		return stats;
+	}
+
+	/** Shape describes how entries are spread over a map's buckets. */
+	public static class Shape{
+		/** entries counts the entries in chains, including any whose keys were just collected. */
+		public long entries;
+		public long buckets;
+		/** used is the number of buckets with at least one entry. */
+		public long used;
+		/** longest is the length of the longest chain. */
+		public int longest;
+
+		/** mean is the average length of the non-empty chains. */
+		public double mean(){
+			return used == 0 ? 0 : (double)entries / used;
+		}
+
+		@Override public String toString(){
+			return String.format("%d entries in %d of %d buckets, longest chain %d",
+				entries, used, buckets, longest);
+		}
+	}
+
+	private Segment<V> segmentFor(int h){
+		return segments[(h >>> segmentShift) & (segments.length - 1)];
+	}
+
+	private static int hash(Object key){
+		if(key == null)
+			throw new NullPointerException("key");
+		int h = System.identityHashCode(key);
+		// Spread the bits so both the segment (high) and bucket (low) indices vary.
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+	/** Entry is its own weak reference to the key, so each mapping costs one object. */
+	private static class Entry<V> extends WeakReference<Object>{
+		final int hash;
+		volatile V value;
+		final Entry<V> next;
+
+		Entry(Object key, int hash, V value, Entry<V> next, ReferenceQueue<Object> q){
+			super(key, q);
+			this.hash = hash;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	private static class Segment<V>{
+		private static final int MIN_BUCKETS = 16;
+		private static final int MAX_BUCKETS = 1 << 24;
+		/** A put that walks a longer chain than this grows the table. */
+		private static final int MAX_CHAIN = 8;
+
+		private final ReferenceQueue<Object> dead = new ReferenceQueue<Object>();
+
+		volatile Entry<V>[] table = newTable(MIN_BUCKETS);
+		volatile int count;
+
+		@SuppressWarnings("unchecked")
+		private static <V> Entry<V>[] newTable(int n){
+			return (Entry<V>[]) new Entry<?>[n];
+		}
+
+		V get(Object key, int h){
+			Entry<V>[] t = table;
+			for(Entry<V> e = t[h & (t.length - 1)]; e != null; e = e.next)
+				if(e.hash == h && e.get() == key)
+					return e.value;
+			return null;
+		}
+
+		synchronized V put(Object key, int h, V value, boolean onlyIfAbsent){
+			expunge();
+			Entry<V>[] t = table;
+			int i = h & (t.length - 1);
+			Entry<V> first = t[i];
+			int chain = 0;
+			for(Entry<V> e = first; e != null; e = e.next, chain++){
+				if(e.hash == h && e.get() == key){
+					V old = e.value;
+					if(!onlyIfAbsent)
+						e.value = value;
+					return old;
+				}
+			}
+			if((count >= t.length - (t.length >>> 2) || chain >= MAX_CHAIN)
+					&& t.length < MAX_BUCKETS){
+				t = rehash(t);
+				i = h & (t.length - 1);
+				first = t[i];
+			}
+			t[i] = new Entry<V>(key, h, value, first, dead);
+			count++;
+			table = t; // publish the new head
+			return null;
+		}
+
+		synchronized V remove(Object key, int h, Object expect){
+			expunge();
+			Entry<V>[] t = table;
+			int i = h & (t.length - 1);
+			Entry<V> first = t[i];
+			for(Entry<V> e = first; e != null; e = e.next){
+				if(e.hash != h || e.get() != key)
+					continue;
+				V old = e.value;
+				if(expect != null && old != expect)
+					return null;
+				e.clear();
+				t[i] = unlink(first, e);
+				count--;
+				table = t;
+				return old;
+			}
+			return null;
+		}
+
+		synchronized boolean replace(Object key, int h, V expect, V value){
+			expunge();
+			Entry<V>[] t = table;
+			for(Entry<V> e = t[h & (t.length - 1)]; e != null; e = e.next){
+				if(e.hash == h && e.get() == key){
+					if(e.value != expect)
+						return false;
+					e.value = value;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/** expunge unlinks the entries whose keys the collector has queued. */
+		@SuppressWarnings("unchecked")
+		private void expunge(){
+			Reference<?> r;
+			while((r = dead.poll()) != null){
+				Entry<V> gone = (Entry<V>) r;
+				Entry<V>[] t = table;
+				int i = gone.hash & (t.length - 1);
+				for(Entry<V> e = t[i]; e != null; e = e.next){
+					if(e == gone){
+						t[i] = unlink(t[i], gone);
+						count--;
+						table = t;
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		unlink returns a chain without gone. Readers may still be walking the
+		old chain, so the entries before gone are copied rather than relinked;
+		the entries after it are shared. Copies of collected keys are dropped.
+		*/
+		private Entry<V> unlink(Entry<V> first, Entry<V> gone){
+			Entry<V> head = gone.next;
+			for(Entry<V> e = first; e != gone; e = e.next){
+				Object k = e.get();
+				if(k == null){
+					count--;
+					continue;
+				}
+				head = new Entry<V>(k, e.hash, e.value, head, dead);
+			}
+			return head;
+		}
+
+		/**
+		rehash doubles the table. As in the unlinking, entries are copied into
+		the new table except for the trailing run of each chain that lands in
+		a single new bucket, which is reused as is.
+		*/
+		private Entry<V>[] rehash(Entry<V>[] old){
+			Entry<V>[] t = newTable(old.length << 1);
+			int mask = t.length - 1;
+			for(Entry<V> first : old){
+				if(first == null)
+					continue;
+
+				Entry<V> run = first;
+				int runIdx = first.hash & mask;
+				for(Entry<V> e = first.next; e != null; e = e.next){
+					int idx = e.hash & mask;
+					if(idx != runIdx){
+						run = e;
+						runIdx = idx;
+					}
+				}
+				t[runIdx] = run;
+
+				for(Entry<V> e = first; e != run; e = e.next){
+					Object k = e.get();
+					if(k == null){
+						count--;
+						continue;
+					}
+					int idx = e.hash & mask;
+					t[idx] = new Entry<V>(k, e.hash, e.value, t[idx], dead);
+				}
+			}
+			return t;
+		}
+	}
+
+
+	// Junk below
+
+	public void clear(){
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean containsValue(Object value){
+		throw new UnsupportedOperationException();
+	}
+
+	public Set<Map.Entry<Object, V>> entrySet(){
+		throw new UnsupportedOperationException();
+	}
+
+	public Set<Object> keySet(){
+		throw new UnsupportedOperationException();
+	}
+
+	public void putAll(Map<? extends Object, ? extends V> m){
+		throw new UnsupportedOperationException();
+	}
+
+	public Collection<V> values(){
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,68 @@
+package edu.unh.cs.tact_progs;
+
+import edu.unh.cs.tact.*;
+
+/*
+	Each thread multiplies matrices of its own, the way tuned array code
+	does, hoisting rows out of the inner loop. Nearly every instruction in
+	the inner loop is an array access, so this is tact's worst case.
+*/
+public class ArrayKernel extends Thread{
+	final static int NUMTHREADS = 4;
+	final static int N = 128;
+	final static int REPS = 2;
+
+	@GuardedBy("this") static double trace;
+
+	final int seed;
+
+	ArrayKernel(int seed){
+		this.seed = seed;
+	}
+
+	public void run(){
+		double[][] a = new double[N][N], b = new double[N][N], c = new double[N][N];
+		long x = seed;
+		for(int i = 0; i < N; i++){
+			for(int j = 0; j < N; j++){
+				x = x * 6364136223846793005L + 1442695040888963407L;
+				a[i][j] = (x >>> 11) * 0x1.0p-53;
+				b[i][j] = a[i][j] - 0.5;
+			}
+		}
+
+		for(int r = 0; r < REPS; r++){
+			for(int i = 0; i < N; i++){
+				double[] ai = a[i], ci = c[i];
+				for(int k = 0; k < N; k++){
+					double aik = ai[k];
+					double[] bk = b[k];
+					for(int j = 0; j < N; j++)
+						ci[j] += aik * bk[j];
+				}
+			}
+		}
+
+		double t = 0;
+		for(int i = 0; i < N; i++)
+			t += c[i][i];
+		synchronized(ArrayKernel.class){
+			trace += t;
+		}
+	}
+
+	public static void main(String args[]) throws InterruptedException{
+		Checker.init();
+		ArrayKernel[] ks = new ArrayKernel[NUMTHREADS];
+		for(int i = 0; i < NUMTHREADS; i++){
+			ks[i] = new ArrayKernel(i + 1);
+			Checker.releaseAndStart(ks[i]);
+		}
+		for(ArrayKernel k : ks)
+			k.join();
+
+		synchronized(ArrayKernel.class){
+			System.out.println("Sum of traces is " + trace);
+		}
+	}
+}
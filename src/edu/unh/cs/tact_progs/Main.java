@@ -1,7 +1,7 @@
 package edu.unh.cs.tact_progs;
 
 public class Main{
-	public static void main(String[] args){
+	public static void main(String[] args) throws Exception{
 		if(args.length == 0){
 			System.err.println("Please specify a program.");
 			System.exit(1);
@@ -19,5 +19,17 @@ public class Main{
 			test2.main(args);
 			return;
 		}
+		if(args[0].equals("producer-consumer")){
+			ProducerConsumer.main(args);
+			return;
+		}
+		if(args[0].equals("shared-cache")){
+			SharedCache.main(args);
+			return;
+		}
+		if(args[0].equals("array-kernel")){
+			ArrayKernel.main(args);
+			return;
+		}
 	}
 }
@@ -0,0 +1,133 @@
+package edu.unh.cs.tact_progs;
+
+import edu.unh.cs.tact.*;
+
+/*
+	Producers fill batches of numbers and pass them to consumers through
+	a bounded buffer. A producer releases each batch before it puts it in
+	the buffer, and the consumer that takes it claims it by reading it.
+*/
+public class ProducerConsumer{
+	final static int PRODUCERS = 2;
+	final static int CONSUMERS = 2;
+	final static int BATCHES = 50000;
+	final static int SIZE = 64;
+	final static Batch DONE = new Batch(0);
+
+	@GuardedBy("this") static long total;
+
+	static class Batch{
+		final long[] values;
+
+		Batch(int n){
+			values = new long[n];
+		}
+	}
+
+	static class Buffer{
+		@GuardedBy("this") private final Batch[] items;
+		@GuardedBy("this") private int head, tail, count;
+
+		Buffer(int n){
+			items = new Batch[n];
+			synchronized(this){
+				Checker.guardBy(items, this);
+			}
+		}
+
+		synchronized void put(Batch b) throws InterruptedException{
+			while(count == items.length)
+				wait();
+			items[tail] = b;
+			tail = (tail + 1) % items.length;
+			count++;
+			notifyAll();
+		}
+
+		synchronized Batch take() throws InterruptedException{
+			while(count == 0)
+				wait();
+			Batch b = items[head];
+			items[head] = null;
+			head = (head + 1) % items.length;
+			count--;
+			notifyAll();
+			return b;
+		}
+	}
+
+	static class Producer extends Thread{
+		final Buffer buf;
+		final int seed;
+
+		Producer(Buffer buf, int seed){
+			this.buf = buf;
+			this.seed = seed;
+		}
+
+		public void run(){
+			long x = seed;
+			try{
+				for(int i = 0; i < BATCHES / PRODUCERS; i++){
+					Batch b = new Batch(SIZE);
+					for(int j = 0; j < SIZE; j++){
+						x = x * 6364136223846793005L + 1442695040888963407L;
+						b.values[j] = x >>> 40;
+					}
+					Checker.releaseGraph(b, 1);
+					buf.put(b);
+				}
+			}catch(InterruptedException e){
+				return;
+			}
+		}
+	}
+
+	static class Consumer extends Thread{
+		final Buffer buf;
+
+		Consumer(Buffer buf){
+			this.buf = buf;
+		}
+
+		public void run(){
+			long sum = 0;
+			try{
+				for(Batch b = buf.take(); b != DONE; b = buf.take())
+					for(long v : b.values)
+						sum += v;
+			}catch(InterruptedException e){
+				return;
+			}
+			synchronized(ProducerConsumer.class){
+				total += sum;
+			}
+		}
+	}
+
+	public static void main(String args[]) throws InterruptedException{
+		Checker.init();
+		Buffer buf = new Buffer(16);
+		Producer[] ps = new Producer[PRODUCERS];
+		Consumer[] cs = new Consumer[CONSUMERS];
+		for(int i = 0; i < PRODUCERS; i++){
+			ps[i] = new Producer(buf, i + 1);
+			Checker.releaseAndStart(ps[i]);
+		}
+		for(int i = 0; i < CONSUMERS; i++){
+			cs[i] = new Consumer(buf);
+			Checker.releaseAndStart(cs[i]);
+		}
+
+		for(Producer p : ps)
+			p.join();
+		for(int i = 0; i < CONSUMERS; i++)
+			buf.put(DONE);
+		for(Consumer c : cs)
+			c.join();
+
+		synchronized(ProducerConsumer.class){
+			System.out.println("Sum of all batches is " + total);
+		}
+	}
+}
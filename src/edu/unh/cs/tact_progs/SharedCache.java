@@ -0,0 +1,112 @@
+package edu.unh.cs.tact_progs;
+
+import edu.unh.cs.tact.*;
+
+/*
+	Threads look up the Collatz stopping times of skewed random numbers
+	in a cache they share, computing and adding the ones it's missing.
+	The cache's tables are guarded by the cache.
+*/
+public class SharedCache{
+	final static int NUMTHREADS = 4;
+	final static int LOOKUPS = 500000;
+	final static int KEYS = 1 << 20;
+	final static int SLOTS = 1 << 14;
+
+	@GuardedBy("this") static long total;
+
+	static class Cache{
+		@GuardedBy("this") private final long[] keys;
+		@GuardedBy("this") private final int[] values;
+		@GuardedBy("this") private int hits, misses;
+
+		Cache(int n){
+			keys = new long[n];
+			values = new int[n];
+			synchronized(this){
+				for(int i = 0; i < n; i++)
+					keys[i] = -1;
+				Checker.guardBy(keys, this);
+				Checker.guardBy(values, this);
+			}
+		}
+
+		/** get returns k's value, or -1 if it isn't cached. */
+		synchronized int get(long k){
+			int i = slot(k);
+			if(keys[i] == k){
+				hits++;
+				return values[i];
+			}
+			misses++;
+			return -1;
+		}
+
+		synchronized void put(long k, int v){
+			int i = slot(k);
+			keys[i] = k;
+			values[i] = v;
+		}
+
+		private int slot(long k){
+			return (int)((k * 0x9e3779b97f4a7c15L) >>> 40) & (keys.length - 1);
+		}
+
+		synchronized String stats(){
+			return hits + " hits, " + misses + " misses";
+		}
+	}
+
+	static int collatz(long n){
+		int steps = 0;
+		while(n != 1){
+			n = (n & 1) == 0 ? n / 2 : 3 * n + 1;
+			steps++;
+		}
+		return steps;
+	}
+
+	static class Worker extends Thread{
+		final Cache cache;
+		final int seed;
+
+		Worker(Cache cache, int seed){
+			this.cache = cache;
+			this.seed = seed;
+		}
+
+		public void run(){
+			long x = seed, sum = 0;
+			for(int i = 0; i < LOOKUPS; i++){
+				x = x * 6364136223846793005L + 1442695040888963407L;
+				double u = (x >>> 11) * 0x1.0p-53;
+				long k = 1 + (long)(u * u * u * KEYS); // mostly small keys
+				int v = cache.get(k);
+				if(v < 0){
+					v = collatz(k);
+					cache.put(k, v);
+				}
+				sum += v;
+			}
+			synchronized(SharedCache.class){
+				total += sum;
+			}
+		}
+	}
+
+	public static void main(String args[]) throws InterruptedException{
+		Checker.init();
+		Cache cache = new Cache(SLOTS);
+		Worker[] ws = new Worker[NUMTHREADS];
+		for(int i = 0; i < NUMTHREADS; i++){
+			ws[i] = new Worker(cache, i + 1);
+			Checker.releaseAndStart(ws[i]);
+		}
+		for(Worker w : ws)
+			w.join();
+
+		synchronized(SharedCache.class){
+			System.out.println("Sum of stopping times is " + total + " (" + cache.stats() + ")");
+		}
+	}
+}